@@ -27,8 +27,6 @@ Place - Suite 330, Boston, MA 02111-1307, USA.
 
 */
 
-import javax.microedition.lcdui.*;
-
 
 public class AdvancedGraphicsChip extends GraphicsChip {
 	protected int[] frameBuffer;
@@ -66,6 +64,7 @@ public class AdvancedGraphicsChip extends GraphicsChip {
 			int tileIndex = (addr >> 4) + tileOffset;
 			
 			if (tileReadState[tileIndex]) {
+				Metrics.tileInvalidations++;
 				int r = tileImage.length - tileCount + tileIndex;
 				
 				do {
@@ -83,6 +82,7 @@ public class AdvancedGraphicsChip extends GraphicsChip {
 		int start = pal * tileCount * 4;
 		int stop = (pal + 1) * tileCount * 4;
 		
+		Metrics.paletteInvalidations++;
 		for (int r = start; r < stop; r++) {
 			tileImage[r] = null;
 		}
@@ -273,7 +273,14 @@ public class AdvancedGraphicsChip extends GraphicsChip {
 		
 		// step 4: to buffer (only last line)
 		if (line == 143) {
-			updateFrameBufferImage();
+			FrameTimer frameTimer = cpu.frameTimer;
+			if (frameTimer != null) {
+				int stage = frameTimer.enter(FrameTimer.CONVERT);
+				updateFrameBufferImage();
+				frameTimer.enter(stage);
+			} else {
+				updateFrameBufferImage();
+			}
 		}
 	}
 
@@ -282,7 +289,6 @@ public class AdvancedGraphicsChip extends GraphicsChip {
 			int[] buffer = scale ? scaledBuffer : frameBuffer;
 			for (int i = 0; i < buffer.length; i++)
 				buffer[i] = -1;
-			frameBufferImage = Image.createRGBImage(buffer, scaledWidth, scaledHeight, false);
 			return;
 		}
 		
@@ -413,12 +419,12 @@ public class AdvancedGraphicsChip extends GraphicsChip {
 					dstStop += scaledWidth;
 				}
 			}
-			
-			frameBufferImage = Image.createRGBImage(scaledBuffer, scaledWidth, scaledHeight, false);
-		} else {
-			frameBufferImage = Image.createRGBImage(frameBuffer, 160, 144, false);
 		}
 	}
+	
+	public int[] getFramePixels() {
+		return scale ? scaledBuffer : frameBuffer;
+	}
 
 	/** Create the image of a tile in the tile cache by reading the relevant data from video
 	 *  memory
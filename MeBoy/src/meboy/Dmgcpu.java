@@ -28,10 +28,6 @@ Place - Suite 330, Boston, MA 02111-1307, USA.
 
 */
 
-import javax.microedition.media.*;
-import javax.microedition.media.control.*;
-import javax.microedition.io.*;
-import javax.microedition.io.file.*;
 
 /** This is the main controlling class for the emulation
 *  It contains the code to emulate the Z80-like processor
@@ -39,7 +35,7 @@ import javax.microedition.io.file.*;
 *  in CPU address space that points to the correct area of
 *  ROM/RAM/IO.
 */
-public class Dmgcpu implements Runnable {
+public class Dmgcpu implements Runnable, Joypad {
 	// Constants for flags register
 	
 	/** Zero flag */
@@ -50,6 +46,22 @@ public class Dmgcpu implements Runnable {
 	private final int F_HALFCARRY = 0x20;
 	/** Carry flag */
 	private final int F_CARRY = 0x10;
+	
+	// Lazy flag modes. Unless flagMode is FLAGS_NONE, f is stale and the flags
+	// are kept in flagResult: zero if the low byte is 0, carry if bit 8 is set.
+	private final int FLAGS_NONE = 0;
+	/** halfcarry from flagHalf ^ flagResult */
+	private final int FLAGS_ADD = 1;
+	/** subtract, halfcarry from flagHalf ^ flagResult */
+	private final int FLAGS_SUB = 2;
+	/** halfcarry */
+	private final int FLAGS_AND = 3;
+	/** no subtract or halfcarry */
+	private final int FLAGS_LOGIC = 4;
+	/** incflags of the low byte */
+	private final int FLAGS_INC = 5;
+	/** decflags of the low byte */
+	private final int FLAGS_DEC = 6;
 
 	// same in single and double speed:
 	protected final int INSTRS_PER_DIV = 64;
@@ -87,9 +99,11 @@ public class Dmgcpu implements Runnable {
 	
 	
 	/** Registers: 8-bit */
-	private int a, b, c, d, e, f;
+	private int a, f;
+	/** Lazy flags, see buildFlags() */
+	private int flagMode, flagResult, flagHalf;
 	/** Registers: 16-bit */
-	private int sp, hl;
+	private int sp, hl, bc, de; // 16-bit register pairs
 	
 	// decoder variables
 	private byte[] decoderMemory;
@@ -97,18 +111,61 @@ public class Dmgcpu implements Runnable {
 	private int globalPC;
 	private int decoderMaxCruise; // if localPC exceeds this, a new (half)bank should be found
 	
+	// decoded block cache, see fetchBlock()
+	private static final int BLOCK_CACHE_SIZE = 1024; // must be a power of two
+	private static final int MAX_BLOCK_INSTRS = 32;
+	private static final int RAM_BLOCKS = 0x400 << 13; // keys below this are rom halfbank << 13 + address
+	private static final int HRAM_BLOCKS = RAM_BLOCKS + 0x8000;
+	private static final int HRAM_PAGE = 0x80;
+	private int[] blockKeys = new int[BLOCK_CACHE_SIZE];
+	private int[][] blockCache = new int[BLOCK_CACHE_SIZE][];
+	private int[] blockVersions = new int[BLOCK_CACHE_SIZE];
+	private int[] blockBuffer = new int[MAX_BLOCK_INSTRS];
+	private boolean[] codePages = new boolean[HRAM_PAGE + 1]; // 256 byte pages of mainRam (and hram) with cached blocks
+	private int[] pageVersions = new int[HRAM_PAGE + 1];
+	private int decoderBlockBase; // cache key of decoderMemory[0], or -1 if it can't be cached
+	private int[] block; // the block being executed
+	private int blockPos;
+	private int blockLength;
+	public int blockHits;
+	public int blockMisses;
+	
+	// idle loop detection, see idleLoop()
+	private static final int IDLE_MAX_LOOP = 16; // longest loop, in bytes
+	private int idlePC = -1; // target of the last short backward jump, or -1
+	private int idleCount; // instrCount at that jump
+	private int idleA, idleBC, idleDE, idleF, idleHL, idleSP;
+	private int idleVerified; // 1 if the loop has no side effects, -1 if it has, 0 if not checked yet
+	private boolean idleTimeRead; // DIV or TIMA was read since the last jump
+	public int idleSkips;
+	public long idleCycles;
+	
+	private Profiler profiler = MeBoy.profile ? new Profiler() : null;
+	
 	/** The number of instructions that have been executed since the last reset */
 	private int instrCount;
+	private int clockInstrCount; // instrCount when emulatedCycles was last updated
+	private long emulatedCycles; // at normal speed, 2^20 per second, see EmulatedClock
+	private int metricsCount; // instrCount when Metrics.instrs was last updated
 
 	private int graphicsChipMode; // takes values 0,2,3 -- mode 1 is signaled by line>=144
 	
-	private int nextModeTime;
-	private int nextTimaOverflow;
+	// Timed events. Each source keeps the instrCount at which it next needs
+	// to run, and nextTimedInterrupt holds the earliest active one, so the
+	// main loop only does a single compare. New sources get an id here and a
+	// case in initiateInterrupts(). Hdma and the sound frame updates run on
+	// graphics chip mode changes, and the rtc follows the clock when read,
+	// so they have no events of their own.
+	private static final int EVENT_MODE = 0; // graphics chip mode change
+	private static final int EVENT_TIMA = 1; // timer overflow
+	private static final int EVENT_SERIAL = 2; // serial transfer done
+	private static final int EVENT_COUNT = 3;
+	private int[] eventTime = new int[EVENT_COUNT];
+	private boolean[] eventActive = new boolean[EVENT_COUNT];
 	private int nextTimedInterrupt;
 	
 	public boolean interruptsEnabled = false;
 	public boolean interruptsArmed = false;
-	private boolean timaActive;
 	private boolean interruptEnableRequested;
 	protected boolean p10Requested;
 	protected boolean gbcFeatures;
@@ -124,6 +181,29 @@ public class Dmgcpu implements Runnable {
 	// 7 = main ram again (+ oam+reg)
 	public byte[][] memory = new byte[8][];
 	
+	// Read page table, one entry per 256 bytes of address space. A page
+	// reads readPages[page][readOffsets[page] + addr], or if readPages[page]
+	// is null, it is handled by the slow path in addressRead (oam, io, rtc,
+	// and addresses past 0xffff from wrapping registers).
+	private byte[][] readPages = new byte[0x200][];
+	private int[] readOffsets = new int[0x200];
+	
+	// Write page table. Writes to main ram, and to cart ram when the mbc
+	// doesn't need to see them, go to writePages[page][writeOffsets[page] + addr].
+	// Other pages are dispatched by their writeKinds entry.
+	private byte[][] writePages = new byte[0x100][];
+	private int[] writeOffsets = new int[0x100];
+	private int[] writeKinds = new int[0x100];
+	private static final int WRITE_IGNORE = 0;
+	private static final int WRITE_VRAM = 1;
+	private static final int WRITE_MBC1 = 2;
+	private static final int WRITE_MBC2 = 3;
+	private static final int WRITE_MBC3 = 4;
+	private static final int WRITE_MBC5 = 5;
+	private static final int WRITE_OAM = 6;
+	private static final int WRITE_IO = 7;
+	private int mbcWriteKind; // writeKinds entry of the rom and cart ram pages
+	
 	// 8kB main system RAM appears at 0xC000 in address space
 	// 32kB for GBC
 	private byte[] mainRam;
@@ -144,7 +224,11 @@ public class Dmgcpu implements Runnable {
 	
 	
 	public GraphicsChip graphicsChip;
-	public GBCanvas screen;
+	public GraphicsRecorder graphicsRecorder; // null unless a session is recorded
+	public volatile FrameTimer frameTimer; // null unless frame stages are timed, set from the ui thread
+	public VideoOutput video;
+	public Clock clock;
+	private RomStorage storage;
 	public boolean terminate;
 	
 	
@@ -163,7 +247,13 @@ public class Dmgcpu implements Runnable {
 	/** The bank number which is currently mapped at 0x4000 in CPU address space */
 	private int currentRomBank = 1;
 	int loadedRomBanks; // number of lazily loaded ROM banks, including 0
-	private int[] romTouch;
+	public int romBankSwitches;
+	public int romBankMisses; // banks that had to be loaded when mapped
+	private RomBankReader romReader; // null unless the cart is lazily loaded
+	private RomBankCache romCache; // null unless the cart is lazily loaded
+	private RomPrefetcher romPrefetcher; // null unless lazily loaded banks are read ahead
+	private int[] romBankUse; // switches to each bank this session, when lazily loaded
+	private int[] romBankProfile; // use counts from earlier sessions, see loadBankProfile
 	
 		/** The RAM bank number which is currently mapped at 0xA000 in CPU address space */
 	private int currentRamBank;
@@ -191,8 +281,8 @@ public class Dmgcpu implements Runnable {
 	
 	private final int MASTER_VOLUME = 8;
 	
-	private Player player;
-	private MIDIControl synth;
+	private AudioOutput audio;
+	private boolean muted; // while fast forwarding
 
 	
 	static int[] midiLookup;
@@ -238,6 +328,56 @@ public class Dmgcpu implements Runnable {
 	};
 	
 	
+	/** Instruction lengths in bytes, including the opcode */
+	private static final int instrLength[] = {
+		1, 3, 1, 1, 1, 1, 2, 1,  3, 1, 1, 1, 1, 1, 2, 1,
+		2, 3, 1, 1, 1, 1, 2, 1,  2, 1, 1, 1, 1, 1, 2, 1,
+		2, 3, 1, 1, 1, 1, 2, 1,  2, 1, 1, 1, 1, 1, 2, 1,
+		2, 3, 1, 1, 1, 1, 2, 1,  2, 1, 1, 1, 1, 1, 2, 1,
+		
+		1, 1, 1, 1, 1, 1, 1, 1,  1, 1, 1, 1, 1, 1, 1, 1,
+		1, 1, 1, 1, 1, 1, 1, 1,  1, 1, 1, 1, 1, 1, 1, 1,
+		1, 1, 1, 1, 1, 1, 1, 1,  1, 1, 1, 1, 1, 1, 1, 1,
+		1, 1, 1, 1, 1, 1, 1, 1,  1, 1, 1, 1, 1, 1, 1, 1,
+		
+		1, 1, 1, 1, 1, 1, 1, 1,  1, 1, 1, 1, 1, 1, 1, 1,
+		1, 1, 1, 1, 1, 1, 1, 1,  1, 1, 1, 1, 1, 1, 1, 1,
+		1, 1, 1, 1, 1, 1, 1, 1,  1, 1, 1, 1, 1, 1, 1, 1,
+		1, 1, 1, 1, 1, 1, 1, 1,  1, 1, 1, 1, 1, 1, 1, 1,
+		
+		1, 1, 3, 3, 3, 1, 2, 1,  1, 1, 3, 2, 3, 3, 2, 1,
+		1, 1, 3, 1, 3, 1, 2, 1,  1, 1, 3, 1, 3, 1, 2, 1,
+		2, 1, 1, 1, 1, 1, 2, 1,  2, 1, 3, 1, 1, 1, 2, 1,
+		2, 1, 1, 1, 1, 1, 2, 1,  2, 1, 3, 1, 1, 1, 2, 1,
+	};
+	
+	/** Instructions that may leave the straight-line path, ending a decoded block */
+	private static boolean[] endsBlock = new boolean[256];
+	static {
+		int[] branches = {0x10, 0x18, 0x20, 0x28, 0x30, 0x38, 0x76,
+				0xc0, 0xc2, 0xc3, 0xc4, 0xc7, 0xc8, 0xc9, 0xca, 0xcc, 0xcd, 0xcf,
+				0xd0, 0xd2, 0xd4, 0xd7, 0xd8, 0xd9, 0xda, 0xdc, 0xdf,
+				0xe7, 0xe9, 0xef, 0xf7, 0xff,
+				// illegal opcodes
+				0xd3, 0xdb, 0xdd, 0xe3, 0xe4, 0xeb, 0xec, 0xed, 0xf4, 0xfc, 0xfd};
+		for (int i = 0; i < branches.length; i++)
+			endsBlock[branches[i]] = true;
+	}
+	
+	/** Instructions that write memory, use the stack or branch, and can't be part of an idle loop */
+	private static boolean[] idleUnsafe = new boolean[256];
+	static {
+		int[] writes = {0x02, 0x08, 0x12, 0x22, 0x32, 0x34, 0x35, 0x36,
+				0x70, 0x71, 0x72, 0x73, 0x74, 0x75, 0x77,
+				0xc1, 0xc5, 0xd1, 0xd5, 0xe0, 0xe1, 0xe2, 0xe5, 0xea,
+				0xf1, 0xf3, 0xf5, 0xfb};
+		for (int i = 0; i < writes.length; i++)
+			idleUnsafe[writes[i]] = true;
+		for (int i = 0; i < 256; i++)
+			if (endsBlock[i])
+				idleUnsafe[i] = true;
+	}
+	
 	private static int cyclesPerInstrShift[] = {
 		2, 2, 2, 2, 2, 2, 4, 2, 2, 2, 2, 2, 2, 2, 4, 2,
 		2, 2, 2, 2, 2, 2, 4, 2, 2, 2, 2, 2, 2, 2, 4, 2,
@@ -260,49 +400,22 @@ public class Dmgcpu implements Runnable {
 		2, 2, 2, 2, 2, 2, 4, 2, 2, 2, 2, 2, 2, 2, 4, 2,
 	};
 	
-	public Dmgcpu(String cart, GBCanvas gbc) {
-		cartName = cart;
-		initCartridge();
-		screen = gbc;
-		
-		if (MeBoy.advancedGraphics)
-			graphicsChip = new AdvancedGraphicsChip(this);
-		else
-			graphicsChip = new SimpleGraphicsChip(this);
-		
-		memory[6] = mainRam;
-		memory[7] = mainRam;
-		
-		interruptsEnabled = false;
-		
-		a = gbcFeatures ? 0x11 : 0x01;
-		b = 0x00;
-		c = 0x13;
-		d = 0x00;
-		e = 0xd8;
-		f = 0xB0;
-		hl = 0x014D;
-		setPC(0x0100);
-		sp = 0xFFFE;
-
-		graphicsChipMode = 0;
-		nextModeTime = 0;
-		timaActive = false;
-		interruptEnableRequested = false;
-		nextTimedInterrupt = 0;
-		
-		initIncDecFlags();
-
-		ioHandlerReset();
-		
-		if (MeBoy.enableSound)
-			initSound();
+	/** Creates a cpu without sound, reading bundled carts from the jar file. */
+	public Dmgcpu(String cart, VideoOutput video) {
+		this(cart, video, null, new SystemClock(), new ResourceRomStorage(), null);
 	}
 	
-	public Dmgcpu(String cart, GBCanvas gbc, byte[] flatState) {
+	/** Starts the cart from the beginning if flatState is null, otherwise from the suspended state. */
+	public Dmgcpu(String cart, VideoOutput video, AudioOutput audio, Clock clock,
+				RomStorage storage, byte[] flatState) {
 		cartName = cart;
+		this.clock = clock;
+		if (clock instanceof EmulatedClock)
+			((EmulatedClock) clock).setCpu(this);
+		this.storage = storage;
 		initCartridge();
-		screen = gbc;
+		this.video = video;
+		this.audio = audio;
 		
 		if (MeBoy.advancedGraphics)
 			graphicsChip = new AdvancedGraphicsChip(this);
@@ -311,29 +424,43 @@ public class Dmgcpu implements Runnable {
 		
 		memory[6] = mainRam;
 		memory[7] = mainRam;
+		setPages(readPages, readOffsets, 0x00, 0x20, memory[0], 0);
+		setPages(readPages, readOffsets, 0x20, 0x20, memory[1], 0);
+		initWritePages();
+		mapWorkRam();
 		
-		unflatten(flatState);
+		if (flatState == null) {
+			interruptsEnabled = false;
+			
+			a = gbcFeatures ? 0x11 : 0x01;
+			bc = 0x0013;
+			de = 0x00d8;
+			f = 0xB0;
+			hl = 0x014D;
+			setPC(0x0100);
+			sp = 0xFFFE;
+			
+			graphicsChipMode = 0;
+			eventTime[EVENT_MODE] = 0;
+			eventActive[EVENT_MODE] = true;
+			eventActive[EVENT_TIMA] = false;
+			eventActive[EVENT_SERIAL] = false;
+			interruptEnableRequested = false;
+			nextTimedInterrupt = 0;
+		} else {
+			unflatten(flatState);
+		}
 		
 		initIncDecFlags();
+		initBlockCache();
 		
-		if (MeBoy.enableSound)
-			initSound();
+		if (flatState == null)
+			ioHandlerReset();
 	}
 	
-	private void initSound() {
-		try {
-			player = Manager.createPlayer(Manager.MIDI_DEVICE_LOCATOR);
-			player.realize();
-			player.start();
-			synth = (MIDIControl) player.getControl("MIDIControl");
-			if (MeBoy.advancedSound) {
-				synth.shortMidiEvent(0xC0, 81, 0);
-				synth.shortMidiEvent(0xC1, 81, 0);
-				synth.shortMidiEvent(0xC2, 81, 0);
-			}
-		} catch (Exception ex) {
-			ex.printStackTrace();
-		}
+	private void initBlockCache() {
+		for (int i = 0; i < BLOCK_CACHE_SIZE; i++)
+			blockKeys[i] = -1;
 	}
 	
 	private void initIncDecFlags() {
@@ -346,6 +473,20 @@ public class Dmgcpu implements Runnable {
 			decflags[i] = F_SUBTRACT + (((i & 0x0f) == 0x0f) ? F_HALFCARRY : 0);
 	}
 	
+	public static final void setInt(byte[] b, int i, int v) {
+		b[i++] = (byte) (v >> 24);
+		b[i++] = (byte) (v >> 16);
+		b[i++] = (byte) (v >> 8);
+		b[i++] = (byte) (v);
+	}
+	
+	public static final int getInt(byte[] b, int i) {
+		int r = b[i++] & 0xFF;
+		r = (r << 8) + (b[i++] & 0xFF);
+		r = (r << 8) + (b[i++] & 0xFF);
+		return (r << 8) + (b[i++] & 0xFF);
+	}
+	
 	public void unflatten(byte[] flatState) {
 		int offset = 0;
 		
@@ -355,11 +496,12 @@ public class Dmgcpu implements Runnable {
 			throw new RuntimeException(MeBoy.literal[48]);
 		
 		a = flatState[offset++] & 0xff;
-		b = flatState[offset++] & 0xff;
-		c = flatState[offset++] & 0xff;
-		d = flatState[offset++] & 0xff;
-		e = flatState[offset++] & 0xff;
+		bc = (flatState[offset++] & 0xff) << 8;
+		bc |= flatState[offset++] & 0xff;
+		de = (flatState[offset++] & 0xff) << 8;
+		de |= flatState[offset++] & 0xff;
 		f = flatState[offset++] & 0xff;
+		flagMode = FLAGS_NONE;
 		sp = flatState[offset++] & 0xff;
 		sp = (sp << 8) + (flatState[offset++] & 0xff);
 		hl = flatState[offset++] & 0xff;
@@ -368,16 +510,20 @@ public class Dmgcpu implements Runnable {
 		pc = (pc << 8) + (flatState[offset++] & 0xff);
 		// setPC() will be called below to set the fields.
 		
-		instrCount = GBCanvas.getInt(flatState, offset);
+		instrCount = getInt(flatState, offset);
+		metricsCount = instrCount;
+		clockInstrCount = instrCount;
 		offset += 4;
-		nextModeTime = GBCanvas.getInt(flatState, offset);
+		eventTime[EVENT_MODE] = getInt(flatState, offset);
 		offset += 4;
-		nextTimaOverflow = GBCanvas.getInt(flatState, offset);
+		eventTime[EVENT_TIMA] = getInt(flatState, offset);
 		offset += 4;
-		nextTimedInterrupt = GBCanvas.getInt(flatState, offset);
+		nextTimedInterrupt = getInt(flatState, offset);
 		offset += 4;
 		
-		timaActive = flatState[offset++] != 0;
+		eventActive[EVENT_MODE] = true;
+		eventActive[EVENT_TIMA] = flatState[offset++] != 0;
+		eventActive[EVENT_SERIAL] = false; // done right after the write, so never pending in a saved state
 		graphicsChipMode = flatState[offset++];
 		interruptsEnabled = flatState[offset++] != 0;
 		interruptsArmed = flatState[offset++] != 0;
@@ -390,9 +536,9 @@ public class Dmgcpu implements Runnable {
 		System.arraycopy(flatState, offset, registers, 0, 0x0100);
 		offset += 0x0100;
 
-		divReset = GBCanvas.getInt(flatState, offset);
+		divReset = getInt(flatState, offset);
 		offset += 4;
-		instrsPerTima = GBCanvas.getInt(flatState, offset);
+		instrsPerTima = getInt(flatState, offset);
 		offset += 4;
 		
 		// cartridge
@@ -401,11 +547,11 @@ public class Dmgcpu implements Runnable {
 			offset += 0x2000;
 		}
 		
-		currentRomBank = GBCanvas.getInt(flatState, offset);
+		currentRomBank = getInt(flatState, offset);
 		offset += 4;
 		mapRom(currentRomBank);
 		
-		currentRamBank = GBCanvas.getInt(flatState, offset);
+		currentRamBank = getInt(flatState, offset);
 		offset += 4;
 		if (currentRamBank != 0)
 			mapRam(currentRamBank);
@@ -432,9 +578,16 @@ public class Dmgcpu implements Runnable {
 				// instrs_in_mode are set correctly already
 			}
 		}
+		
+		for (int i = 0; i < codePages.length; i++) {
+			if (codePages[i])
+				invalidateCodePage(i);
+		}
 
 		setPC(pc);
 		
+		mapWorkRam();
+		
 		if (offset != flatState.length)
 			throw new RuntimeException(MeBoy.literal[49] + ": " + offset + ", " + flatState.length);
 	}
@@ -453,10 +606,11 @@ public class Dmgcpu implements Runnable {
 		flatState[offset++] = (byte) (gbcFeatures ? 1 : 0);
 		
 		flatState[offset++] = (byte) a;
-		flatState[offset++] = (byte) b;
-		flatState[offset++] = (byte) c;
-		flatState[offset++] = (byte) d;
-		flatState[offset++] = (byte) e;
+		flatState[offset++] = (byte) (bc >> 8);
+		flatState[offset++] = (byte) bc;
+		flatState[offset++] = (byte) (de >> 8);
+		flatState[offset++] = (byte) de;
+		buildFlags();
 		flatState[offset++] = (byte) f;
 		flatState[offset++] = (byte) (sp >> 8);
 		flatState[offset++] = (byte) sp;
@@ -466,16 +620,16 @@ public class Dmgcpu implements Runnable {
 		flatState[offset++] = (byte) (pc >> 8);
 		flatState[offset++] = (byte) pc;
 		
-		GBCanvas.setInt(flatState, offset, instrCount);
+		setInt(flatState, offset, instrCount);
 		offset += 4;
-		GBCanvas.setInt(flatState, offset, nextModeTime);
+		setInt(flatState, offset, eventTime[EVENT_MODE]);
 		offset += 4;
-		GBCanvas.setInt(flatState, offset, nextTimaOverflow);
+		setInt(flatState, offset, eventTime[EVENT_TIMA]);
 		offset += 4;
-		GBCanvas.setInt(flatState, offset, nextTimedInterrupt);
+		setInt(flatState, offset, nextTimedInterrupt);
 		offset += 4;
 		
-		flatState[offset++] = (byte) (timaActive ? 1 : 0);
+		flatState[offset++] = (byte) (eventActive[EVENT_TIMA] ? 1 : 0);
 		flatState[offset++] = (byte) (graphicsChipMode);
 		flatState[offset++] = (byte) (interruptsEnabled ? 1 : 0);
 		flatState[offset++] = (byte) (interruptsArmed ? 1 : 0);
@@ -488,9 +642,9 @@ public class Dmgcpu implements Runnable {
 		System.arraycopy(registers, 0, flatState, offset, 0x0100);
 		offset += 0x0100;
 		
-		GBCanvas.setInt(flatState, offset, divReset);
+		setInt(flatState, offset, divReset);
 		offset += 4;
-		GBCanvas.setInt(flatState, offset, instrsPerTima);
+		setInt(flatState, offset, instrsPerTima);
 		offset += 4;
 		
 		for (int j = 0; j < cartRam.length; j++) {
@@ -498,9 +652,9 @@ public class Dmgcpu implements Runnable {
 			offset += 0x2000;
 		}
 		
-		GBCanvas.setInt(flatState, offset, currentRomBank);
+		setInt(flatState, offset, currentRomBank);
 		offset += 4;
-		GBCanvas.setInt(flatState, offset, currentRamBank);
+		setInt(flatState, offset, currentRamBank);
 		offset += 4;
 		
 		flatState[offset++] = (byte) (mbc1LargeRamMode ? 1 : 0);
@@ -526,6 +680,10 @@ public class Dmgcpu implements Runnable {
 		*  the memory
 		*/
 	public final int addressRead(int addr) {
+		byte[] page = readPages[addr >> 8];
+		if (page != null)
+			return page[readOffsets[addr >> 8] + addr];
+		
 		if (addr < 0xa000) {
 			return memory[addr >> 13][addr & 0x1fff];
 		} else if (addr < 0xc000) {
@@ -551,49 +709,48 @@ public class Dmgcpu implements Runnable {
 		*  memory.
 		*/
 	public final void addressWrite(int addr, int data) {
-		int bank = addr >> 12;
-		switch (bank) {
-			case 0x0:
-			case 0x1:
-			case 0x2:
-			case 0x3:
-			case 0x4:
-			case 0x5:
-			case 0x6:
-			case 0x7:
-				cartridgeWrite(addr, data);
-				break;
-
-			case 0x8:
-			case 0x9:
+		if ((addr & 0xffff0000) != 0)
+			return; // from wrapping registers
+		
+		int pageNo = addr >> 8;
+		byte[] page = writePages[pageNo];
+		if (page != null) {
+			addr += writeOffsets[pageNo];
+			page[addr] = (byte) data;
+			if (page == mainRam) {
+				if (codePages[addr >> 8])
+					invalidateCodePage(addr >> 8);
+			} else {
+				markBatterySaveDirty();
+			}
+			return;
+		}
+		
+		switch (writeKinds[pageNo]) {
+			case WRITE_VRAM:
+				if (graphicsRecorder != null)
+					graphicsRecorder.vramWrite(addr - 0x8000, data & 0xff);
 				graphicsChip.addressWrite(addr - 0x8000, (byte) data);
 				break;
-
-			case 0xA:
-			case 0xB:
-				cartridgeWrite(addr, data);
+			case WRITE_MBC1:
+				mbc1Write(addr, data);
 				break;
-
-			case 0xC:
-				mainRam[addr - 0xC000] = (byte) data;
+			case WRITE_MBC2:
+				mbc2Write(addr, data);
 				break;
-				
-			case 0xD:
-				mainRam[addr - 0xD000 + gbcRamBank * 0x1000] = (byte) data;
+			case WRITE_MBC3:
+				mbc3Write(addr, data);
 				break;
-
-			case 0xE:
-				mainRam[addr - 0xE000] = (byte) data;
+			case WRITE_MBC5:
+				mbc5Write(addr, data);
 				break;
-				
-			case 0xF:
-				if (addr < 0xFE00) {
-					mainRam[addr - 0xF000 + gbcRamBank * 0x1000] = (byte) data;
-				} else if (addr < 0xFF00) {
-					oam[addr - 0xFE00] = (byte) data;
-				} else {
-					ioWrite(addr - 0xFF00, data);
-				}
+			case WRITE_OAM:
+				if (graphicsRecorder != null)
+					graphicsRecorder.oamWrite(addr - 0xFE00, data & 0xff);
+				oam[addr - 0xFE00] = (byte) data;
+				break;
+			case WRITE_IO:
+				ioWrite(addr - 0xFF00, data);
 				break;
 		}
 	}
@@ -603,6 +760,10 @@ public class Dmgcpu implements Runnable {
 		if ((sp >> 13) == 6) {
 			mainRam[--sp - 0xC000] = (byte) (pc >> 8);
 			mainRam[--sp - 0xC000] = (byte) (pc);
+			if (codePages[(sp - 0xC000) >> 8] || codePages[(sp - 0xBFFF) >> 8]) {
+				invalidateCodePage((sp - 0xC000) >> 8);
+				invalidateCodePage((sp - 0xBFFF) >> 8);
+			}
 		} else {
 			addressWrite(--sp, pc >> 8);
 			addressWrite(--sp, pc & 0xFF);
@@ -621,13 +782,13 @@ public class Dmgcpu implements Runnable {
 	private final int registerRead(int regNum) {
 		switch (regNum) {
 			case 0:
-				return b;
+				return bc >> 8;
 			case 1:
-				return c;
+				return bc & 0xFF;
 			case 2:
-				return d;
+				return de >> 8;
 			case 3:
-				return e;
+				return de & 0xFF;
 			case 4:
 				return (hl >> 8);
 			case 5:
@@ -645,16 +806,16 @@ public class Dmgcpu implements Runnable {
 	private final void registerWrite(int regNum, int data) {
 		switch (regNum) {
 			case 0:
-				b = data;
+				bc = (bc & 0x00FF) | (data << 8);
 				return;
 			case 1:
-				c = data;
+				bc = (bc & 0xFF00) | data;
 				return;
 			case 2:
-				d = data;
+				de = (de & 0x00FF) | (data << 8);
 				return;
 			case 3:
-				e = data;
+				de = (de & 0xFF00) | data;
 				return;
 			case 4:
 				// h
@@ -698,7 +859,7 @@ public class Dmgcpu implements Runnable {
 	}
 
 	public void playSound(int channel, int volume) {
-		if (player == null)
+		if (audio == null || muted)
 			return;
 		
 		try {
@@ -727,26 +888,26 @@ public class Dmgcpu implements Runnable {
 
 			if (MeBoy.advancedSound) {
 				if (soundFrequency[channel] > 0) {
-					synth.shortMidiEvent(0x80 + channel, soundFrequency[channel], 127);
+					audio.midiEvent(0x80 + channel, soundFrequency[channel], 127);
 				}
 
 				soundFrequency[channel] = n;
 
-				synth.shortMidiEvent(0xB0 + channel, 7, volume * MASTER_VOLUME);
+				audio.midiEvent(0xB0 + channel, 7, volume * MASTER_VOLUME);
 
 				if (channel == 0) {
 					// reset pitch wheel
-					synth.shortMidiEvent(0xE0, 0x2000 & 127, 0x2000 >> 7);
+					audio.midiEvent(0xE0, 0x2000 & 127, 0x2000 >> 7);
 				}
 
-				synth.shortMidiEvent(0x90 + channel, n, 127);
+				audio.midiEvent(0x90 + channel, n, 127);
 			} else {
 				if (soundFrequency[channel] > 0) {
-					synth.shortMidiEvent(0x80 + channel, soundFrequency[channel], soundVolume[channel] * MASTER_VOLUME);
+					audio.midiEvent(0x80 + channel, soundFrequency[channel], soundVolume[channel] * MASTER_VOLUME);
 				}
 
 				soundFrequency[channel] = n;
-				synth.shortMidiEvent(0x90 + channel, n, volume * MASTER_VOLUME);
+				audio.midiEvent(0x90 + channel, n, volume * MASTER_VOLUME);
 			}
 			soundVolume[channel] = volume;
 		} catch (Exception ex) {
@@ -755,7 +916,7 @@ public class Dmgcpu implements Runnable {
 	}
 
 	public void updateSoundFrequency() {
-		if (player == null)
+		if (audio == null || muted)
 			return;
 
 		if (soundFrequency[0] <= 0 || !MeBoy.advancedSound)
@@ -771,14 +932,14 @@ public class Dmgcpu implements Runnable {
 			if (wheel > 16383)
 				wheel = 16383;
 			
-			synth.shortMidiEvent(0xE0, wheel & 127, wheel >> 7);
+			audio.midiEvent(0xE0, wheel & 127, wheel >> 7);
 		} catch (Exception ex) {
 			ex.printStackTrace();
 		}
 	}
 	
 	public void updateSound(int channel) {
-		if (player == null)
+		if (audio == null || muted)
 			return;
 		
 		if (soundFrequency[channel] <= 0)
@@ -799,7 +960,7 @@ public class Dmgcpu implements Runnable {
 					if (soundVolume[channel] == 0) {
 						stopSound(channel);
 					} else if (MeBoy.advancedSound) {
-						synth.shortMidiEvent(0xB0 + channel, 7, soundVolume[channel] * MASTER_VOLUME);
+						audio.midiEvent(0xB0 + channel, 7, soundVolume[channel] * MASTER_VOLUME);
 					}
 				}
 			}
@@ -809,15 +970,15 @@ public class Dmgcpu implements Runnable {
 	}
 	
 	public void stopSound(int channel) {
-		if (player == null)
+		if (audio == null || muted)
 			return;
 		
 		try {
 			if (soundFrequency[channel] > 0) {
 				if (MeBoy.advancedSound) {
-					synth.shortMidiEvent(0x80 + channel, soundFrequency[channel], 127);
+					audio.midiEvent(0x80 + channel, soundFrequency[channel], 127);
 				} else {
-					synth.shortMidiEvent(0x80 + channel, soundFrequency[channel], soundVolume[channel] * MASTER_VOLUME);
+					audio.midiEvent(0x80 + channel, soundFrequency[channel], soundVolume[channel] * MASTER_VOLUME);
 				}
 			}
 
@@ -859,120 +1020,239 @@ public class Dmgcpu implements Runnable {
 		interruptsArmed = (registers[0xff] & registers[0x0f]) != 0;
 	}
 	
-	/** Check for interrupts that need to be initiated */
+	/** Runs the timed events that are due, and finds the time of the next one */
 	private final void initiateInterrupts() {
-		if (instrCount - nextModeTime >= 0) {
-			// changed graphics chip mode
-			if (graphicsChipMode == 3) {
-				// entered mode 0 (unless in vblank)
-				graphicsChipMode = 0;
-				nextModeTime += INSTRS_IN_MODE_0;
-				
-				int line = registers[0x44] & 0xff;
-				
-				if (line < 144) {
-					if (gbcFeatures && hdmaRunning) {
-						performHdma();
-					}
-						
-					if (((registers[0x40] & 0x80) != 0) && ((registers[0xff] & INT_LCDC) != 0)) {
-						if (((registers[0x41] & 0x08) != 0)) {
-							// trigger "mode 0 entered" interrupt
-							interruptsArmed = true;
-							registers[0x0f] |= INT_LCDC;
-						}
-					}
+		idlePC = -1;
+		
+		for (int event = 0; event < EVENT_COUNT; event++) {
+			if (eventActive[event] && instrCount - eventTime[event] >= 0) {
+				switch (event) {
+					case EVENT_MODE:
+						modeEvent();
+						break;
+					case EVENT_TIMA:
+						timaEvent();
+						break;
+					case EVENT_SERIAL:
+						serialEvent();
+						break;
 				}
-			} else if (graphicsChipMode == 0) {
-				// entered mode 2 (or mode 1, i.e. vblank)
-				graphicsChipMode = 2;
-				nextModeTime += INSTRS_IN_MODE_2;
-				
-				registers[0x44]++;
-				if ((registers[0x44] & 0xff) == 154) {
-					registers[0x44] = 0;
+			}
+		}
+		
+		if (interruptEnableRequested) {
+			interruptsEnabled = true;
+			interruptEnableRequested = false;
+		}
+		
+		int next = eventTime[EVENT_MODE];
+		for (int event = 1; event < EVENT_COUNT; event++) {
+			if (eventActive[event] && eventTime[event] - next < 0)
+				next = eventTime[event];
+		}
+		nextTimedInterrupt = next;
+	}
+	
+	/** Changes the graphics chip mode, with the interrupts, hdma, vblank and sound updates that go with it */
+	private final void modeEvent() {
+		// changed graphics chip mode
+		if (graphicsChipMode == 3) {
+			// entered mode 0 (unless in vblank)
+			graphicsChipMode = 0;
+			eventTime[EVENT_MODE] += INSTRS_IN_MODE_0;
+			
+			int line = registers[0x44] & 0xff;
+			
+			if (line < 144) {
+				if (gbcFeatures && hdmaRunning) {
+					performHdma();
 				}
-				
-				int line = registers[0x44] & 0xff;
-				
-				// check for mode 2 interrupt
-				if (line < 144) {
-					if (((registers[0x41] & 0x20) != 0)) {
-						// trigger "mode 2 entered" interrupt
+					
+				if (((registers[0x40] & 0x80) != 0) && ((registers[0xff] & INT_LCDC) != 0)) {
+					if (((registers[0x41] & 0x08) != 0)) {
+						// trigger "mode 0 entered" interrupt
 						interruptsArmed = true;
 						registers[0x0f] |= INT_LCDC;
 					}
 				}
-				
-				// check for lyc coincidence interrupt
-				if (((registers[0x40] & 0x80) != 0) && ((registers[0xff] & INT_LCDC) != 0)) {
-					if (((registers[0x41] & 0x40) != 0) && ((registers[0x45] & 0xff) == line)) {
-						// trigger "lyc coincidence" interrupt
-						interruptsArmed = true;
+			}
+		} else if (graphicsChipMode == 0) {
+			// entered mode 2 (or mode 1, i.e. vblank)
+			graphicsChipMode = 2;
+			eventTime[EVENT_MODE] += INSTRS_IN_MODE_2;
+			
+			registers[0x44]++;
+			if ((registers[0x44] & 0xff) == 154) {
+				registers[0x44] = 0;
+			}
+			
+			int line = registers[0x44] & 0xff;
+			
+			// check for mode 2 interrupt
+			if (line < 144) {
+				if (((registers[0x41] & 0x20) != 0)) {
+					// trigger "mode 2 entered" interrupt
+					interruptsArmed = true;
+					registers[0x0f] |= INT_LCDC;
+				}
+			}
+			
+			// check for lyc coincidence interrupt
+			if (((registers[0x40] & 0x80) != 0) && ((registers[0xff] & INT_LCDC) != 0)) {
+				if (((registers[0x41] & 0x40) != 0) && ((registers[0x45] & 0xff) == line)) {
+					// trigger "lyc coincidence" interrupt
+					interruptsArmed = true;
+					registers[0x0f] |= INT_LCDC;
+				}
+			}
+			
+			if (line == 144) {
+				// whole frame done, draw buffer and start vblank
+				Metrics.instrs += instrCount - metricsCount;
+				metricsCount = instrCount;
+				Metrics.romBanksLoaded = loadedRomBanks;
+				updateEmulatedCycles(); // often enough that the int difference can't wrap
+				if (graphicsRecorder != null)
+					graphicsRecorder.vBlank();
+				graphicsChip.vBlank();
+				FrameTimer timer = frameTimer;
+				if (timer != null)
+					timer.endFrame();
+
+				if (((registers[0x40] & 0x80) != 0) && ((registers[0xff] & INT_VBLANK) != 0)) {
+					interruptsArmed = true;
+					registers[0x0f] |= INT_VBLANK;
+
+					if (((registers[0x41] & 0x10) != 0) && ((registers[0xff] & INT_LCDC) != 0)) {
+						// VBLANK LCDC
+						// armed is already set
 						registers[0x0f] |= INT_LCDC;
 					}
 				}
 				
-				if (line == 144) {
-					// whole frame done, draw buffer and start vblank
-					graphicsChip.vBlank();
-	
-					if (((registers[0x40] & 0x80) != 0) && ((registers[0xff] & INT_VBLANK) != 0)) {
-						interruptsArmed = true;
-						registers[0x0f] |= INT_VBLANK;
-	
-						if (((registers[0x41] & 0x10) != 0) && ((registers[0xff] & INT_LCDC) != 0)) {
-							// VBLANK LCDC
-							// armed is already set
-							registers[0x0f] |= INT_LCDC;
-						}
-					}
+				for (int i = 0; i < 3; i++)
+					updateSound(i);
+			}
+			
+			if (line == 0) {
+				if (p10Requested) {
+					p10Requested = false;
 					
-					for (int i = 0; i < 3; i++)
-						updateSound(i);
-				}
-				
-				if (line == 0) {
-					if (p10Requested) {
-						p10Requested = false;
-						
-						if ((registers[0xff] & INT_P10) != 0) {
-							registers[0x0f] |= INT_P10;
-						}
-		
-						interruptsArmed = (registers[0xff] & registers[0x0f]) != 0;
+					if ((registers[0xff] & INT_P10) != 0) {
+						registers[0x0f] |= INT_P10;
 					}
+	
+					interruptsArmed = (registers[0xff] & registers[0x0f]) != 0;
 				}
-			} else {
-				// entered mode 3 (unless in vblank)
-				graphicsChipMode = 3;
-				nextModeTime += INSTRS_IN_MODE_3;
-				
-				int line = registers[0x44] & 0xff;
-				if (line < 144) {
-					// send the line to graphic chip
+			}
+		} else {
+			// entered mode 3 (unless in vblank)
+			graphicsChipMode = 3;
+			eventTime[EVENT_MODE] += INSTRS_IN_MODE_3;
+			
+			int line = registers[0x44] & 0xff;
+			if (line < 144) {
+				// send the line to graphic chip
+				if (graphicsRecorder != null)
+					graphicsRecorder.scanline(line);
+				FrameTimer timer = frameTimer;
+				if (timer != null) {
+					int stage = timer.enter(FrameTimer.SCANLINE);
+					graphicsChip.notifyScanline(line);
+					timer.enter(stage);
+				} else {
 					graphicsChip.notifyScanline(line);
 				}
 			}
 		}
+	}
+	
+	/** Reloads TIMA from TMA after an overflow */
+	private final void timaEvent() {
+		eventTime[EVENT_TIMA] += instrsPerTima * (0x100 - (registers[0x06] & 0xff));
+		
+		if ((registers[0xff] & INT_TIMA) != 0) {
+			interruptsArmed = true;
+			registers[0x0f] |= INT_TIMA;
+		}
+	}
+	
+	/** Ends a serial transfer. Without a link, 0xFF is received at once. */
+	private final void serialEvent() {
+		eventActive[EVENT_SERIAL] = false;
+		registers[0x01] = (byte) 0xFF; // when no LAN connection, always receive 0xFF from port.  Simulates empty socket.
+		if ((registers[0xff] & INT_SER) != 0) {
+			interruptsArmed = true;
+			registers[0x0f] |= INT_SER;
+		}
+		registers[0x02] &= 0x7F;
+	}
+	
+	/**
+	 * Called after a short backward jump was taken. Games often wait for the
+	 * next interrupt by polling LY, STAT or a flag in ram. If two passes
+	 * through such a loop leave the registers unchanged, and the loop neither
+	 * writes memory nor reads the timers, every pass until the next timed
+	 * event will be the same, so they are skipped in one go.
+	 */
+	private final void idleLoop(int offset) {
+		int target = localPC + globalPC;
+		buildFlags();
 		
-		if (timaActive && instrCount - nextTimaOverflow >= 0) {
-			nextTimaOverflow += instrsPerTima * (0x100 - (registers[0x06] & 0xff));
+		if (target != idlePC) {
+			idlePC = target;
+			idleVerified = 0;
+		} else if (!idleTimeRead && a == idleA && bc == idleBC && de == idleDE
+				&& f == idleF && hl == idleHL && sp == idleSP) {
+			if (idleVerified == 0)
+				idleVerified = isIdleLoop(target, target - (byte) offset - 2) ? 1 : -1;
 			
-			if ((registers[0xff] & INT_TIMA) != 0) {
-				interruptsArmed = true;
-				registers[0x0f] |= INT_TIMA;
+			int period = instrCount - idleCount;
+			if (idleVerified > 0 && period > 0) {
+				// stop short of the event, so it is handled at the same instruction as before
+				int passes = (nextTimedInterrupt - instrCount - 1) / period;
+				if (passes > 0) {
+					instrCount += passes * period;
+					idleSkips++;
+					idleCycles += passes * period;
+				}
 			}
 		}
-
-		if (interruptEnableRequested) {
-			interruptsEnabled = true;
-			interruptEnableRequested = false;
-		}
 		
-		nextTimedInterrupt = nextModeTime;
-		if (timaActive && nextTimaOverflow < nextTimedInterrupt)
-			nextTimedInterrupt = nextTimaOverflow;
+		idleCount = instrCount;
+		idleTimeRead = false;
+		idleA = a;
+		idleBC = bc;
+		idleDE = de;
+		idleF = f;
+		idleHL = hl;
+		idleSP = sp;
+	}
+	
+	/** Checks that the instructions from start up to the jump at end have no side effects */
+	private final boolean isIdleLoop(int start, int end) {
+		int pc = start;
+		while (pc < end) {
+			int op = addressRead(pc) & 0xff;
+			if (idleUnsafe[op])
+				return false;
+			if (op == 0xcb) {
+				// everything but BIT writes back to (hl)
+				int op2 = addressRead(pc + 1) & 0xff;
+				if ((op2 & 0xc0) != 0x40 && (op2 & 7) == 6)
+					return false;
+			}
+			pc += instrLength[op];
+		}
+		return pc == end;
+	}
+	
+	/** Sets the time of an event, making sure the main loop stops for it */
+	private final void schedule(int event, int time) {
+		eventTime[event] = time;
+		eventActive[event] = true;
+		if (time - nextTimedInterrupt < 0)
+			nextTimedInterrupt = time;
 	}
 	
 	public final void setPC(int pc) {
@@ -985,18 +1265,322 @@ public class Dmgcpu implements Runnable {
 				if (gbcRamBank > 1 && pc >= 0xC000)
 					decoderMaxCruise &= 0x0fff; // can't cruise in switched ram bank
 			}
+			
+			if (pc < 0x4000)
+				decoderBlockBase = globalPC;
+			else if (pc < 0x8000)
+				decoderBlockBase = (currentRomBank * 2 + ((pc >> 13) & 1)) << 13;
+			else if (pc < 0xC000)
+				decoderBlockBase = -1; // vram and cartram
+			else
+				decoderBlockBase = RAM_BLOCKS;
 		} else {
 			decoderMemory = registers;
 			localPC = pc & 0xff;
 			globalPC = 0xff00;
 			decoderMaxCruise = 0xfd;
+			decoderBlockBase = (pc >= 0xff80) ? HRAM_BLOCKS : -1;
+		}
+		blockLength = 0;
+	}
+	
+	/** Looks up the decoded block at the current PC, decoding it if it isn't
+	 *  cached. A block holds the instructions up to and including the next
+	 *  branch, each packed as opcode + (b2 << 8) + (b3 << 16).
+	 */
+	private final void fetchBlock() {
+		int key = decoderBlockBase + localPC;
+		int slot = (key ^ (key >> 11)) & (BLOCK_CACHE_SIZE - 1);
+		int page = (key >= RAM_BLOCKS) ? (key - RAM_BLOCKS) >> 8 : -1;
+		
+		if (blockKeys[slot] == key && (page < 0 || blockVersions[slot] == pageVersions[page])) {
+			blockHits++;
+			block = blockCache[slot];
+		} else {
+			blockMisses++;
+			int count = 0;
+			int pc = localPC;
+			int op;
+			do {
+				if (pc > decoderMaxCruise)
+					break;
+				op = decoderMemory[pc] & 0xff;
+				if (page >= 0 && (pc + instrLength[op] - 1) >> 8 != localPC >> 8)
+					break; // ram blocks stay within one page, see invalidateCodePage()
+				blockBuffer[count++] = op + ((decoderMemory[pc + 1] & 0xff) << 8) + (decoderMemory[pc + 2] << 16);
+				pc += instrLength[op];
+			} while (count < MAX_BLOCK_INSTRS && !endsBlock[op]);
+			
+			block = new int[count];
+			System.arraycopy(blockBuffer, 0, block, 0, count);
+			blockCache[slot] = block;
+			blockKeys[slot] = key;
+			if (page >= 0) {
+				blockVersions[slot] = pageVersions[page];
+				codePages[page] = true;
+			}
+		}
+		blockPos = 0;
+		blockLength = block.length;
+	}
+	
+	/** Drops the cached blocks in a 256 byte page of mainRam (or hram) after
+	 *  a write to it, and leaves the block being executed.
+	 */
+	private final void invalidateCodePage(int page) {
+		codePages[page] = false;
+		pageVersions[page]++;
+		blockLength = 0;
+	}
+	
+	/** Makes f valid, computing it from the last lazily recorded operation */
+	private final void buildFlags() {
+		int newf = (flagResult >> 4) & F_CARRY;
+		
+		switch (flagMode) {
+			case FLAGS_NONE:
+				return;
+			case FLAGS_ADD:
+				newf |= (flagHalf ^ flagResult) << 1 & F_HALFCARRY;
+				break;
+			case FLAGS_SUB:
+				newf |= F_SUBTRACT | ((flagHalf ^ flagResult) << 1 & F_HALFCARRY);
+				break;
+			case FLAGS_AND:
+				newf |= F_HALFCARRY;
+				break;
+			case FLAGS_INC:
+				newf |= incflags[flagResult & 0xff];
+				break;
+			case FLAGS_DEC:
+				newf |= decflags[flagResult & 0xff];
+				break;
+		}
+		
+		if ((flagResult & 0xff) == 0)
+			newf |= F_ZERO;
+		f = newf;
+		flagMode = FLAGS_NONE;
+	}
+	
+	/** Returns the carry flag as 0x100 or 0, without building f */
+	private final int carry() {
+		return ((flagMode == FLAGS_NONE) ? f << 4 : flagResult) & 0x100;
+	}
+	
+	/** Lazily records the flags of an 8-bit INC or DEC, which keep the carry */
+	private final void incDecFlags(int mode, int result) {
+		flagResult = carry() | result;
+		flagMode = mode;
+	}
+	
+	/** Lazily records the flags of ADD HL, which keeps the zero flag, and
+	 *  wraps hl to 16 bits. Halfcarry is wrong.
+	 */
+	private final void addHLFlags() {
+		if (flagMode == FLAGS_NONE)
+			flagResult = (f & F_ZERO) ^ F_ZERO;
+		else
+			flagResult &= 0xff;
+		
+		if (hl > 0xffff) {
+			flagResult |= 0x100;
+			hl &= 0xffff;
 		}
+		flagMode = FLAGS_LOGIC;
 	}
 	
+	/**
+	 * Executes a CB-prefixed opcode. The register forms are decoded here by
+	 * opcode, the (hl) forms go through executeShiftAny().
+	 */
 	private final void executeShift(int b2) {
+		if ((b2 & 0x07) == 6) {
+			executeShiftAny(b2);
+			return;
+		}
+		
+		instrCount += cyclesPerInstrShift[b2];
+		
+		if (b2 < 0x40) {
+			executeRotate(b2);
+			return;
+		}
+		
+		int bitMask = 1 << ((b2 & 0x38) >> 3);
+		
+		if (b2 < 0x80) { // BIT n, r
+			int data;
+			switch (b2 & 0x07) {
+				case 0:
+					data = bc >> 8;
+					break;
+				case 1:
+					data = bc & 0xff;
+					break;
+				case 2:
+					data = de >> 8;
+					break;
+				case 3:
+					data = de & 0xff;
+					break;
+				case 4:
+					data = hl >> 8;
+					break;
+				case 5:
+					data = hl & 0xff;
+					break;
+				default:
+					data = a;
+			}
+			flagResult = carry() | (data & bitMask);
+			flagMode = FLAGS_AND;
+		} else if (b2 < 0xC0) { // RES n, r
+			bitMask = ~bitMask;
+			switch (b2 & 0x07) {
+				case 0: bc &= (bitMask << 8) | 0xff; break;
+				case 1: bc &= bitMask; break;
+				case 2: de &= (bitMask << 8) | 0xff; break;
+				case 3: de &= bitMask; break;
+				case 4: hl &= (bitMask << 8) | 0xff; break;
+				case 5: hl &= bitMask; break;
+				default: a &= bitMask;
+			}
+		} else { // SET n, r
+			switch (b2 & 0x07) {
+				case 0: bc |= bitMask << 8; break;
+				case 1: bc |= bitMask; break;
+				case 2: de |= bitMask << 8; break;
+				case 3: de |= bitMask; break;
+				case 4: hl |= bitMask << 8; break;
+				case 5: hl |= bitMask; break;
+				default: a |= bitMask;
+			}
+		}
+	}
+	
+	/** Executes the rotates, shifts and SWAP on a register, opcodes CB 00 - CB 3f */
+	private final void executeRotate(int b2) {
+		switch (b2) {
+			case 0x00: bc = (bc & 0xff) | (rlc(bc >> 8) << 8); break; // RLC B
+			case 0x01: bc = (bc & 0xff00) | rlc(bc & 0xff); break; // RLC C
+			case 0x02: de = (de & 0xff) | (rlc(de >> 8) << 8); break; // RLC D
+			case 0x03: de = (de & 0xff00) | rlc(de & 0xff); break; // RLC E
+			case 0x04: hl = (hl & 0xff) | (rlc(hl >> 8) << 8); break; // RLC H
+			case 0x05: hl = (hl & 0xff00) | rlc(hl & 0xff); break; // RLC L
+			case 0x07: a = rlc(a); break; // RLC A
+			
+			case 0x08: bc = (bc & 0xff) | (rrc(bc >> 8) << 8); break; // RRC B
+			case 0x09: bc = (bc & 0xff00) | rrc(bc & 0xff); break; // RRC C
+			case 0x0A: de = (de & 0xff) | (rrc(de >> 8) << 8); break; // RRC D
+			case 0x0B: de = (de & 0xff00) | rrc(de & 0xff); break; // RRC E
+			case 0x0C: hl = (hl & 0xff) | (rrc(hl >> 8) << 8); break; // RRC H
+			case 0x0D: hl = (hl & 0xff00) | rrc(hl & 0xff); break; // RRC L
+			case 0x0F: a = rrc(a); break; // RRC A
+			
+			case 0x10: bc = (bc & 0xff) | (rl(bc >> 8) << 8); break; // RL B
+			case 0x11: bc = (bc & 0xff00) | rl(bc & 0xff); break; // RL C
+			case 0x12: de = (de & 0xff) | (rl(de >> 8) << 8); break; // RL D
+			case 0x13: de = (de & 0xff00) | rl(de & 0xff); break; // RL E
+			case 0x14: hl = (hl & 0xff) | (rl(hl >> 8) << 8); break; // RL H
+			case 0x15: hl = (hl & 0xff00) | rl(hl & 0xff); break; // RL L
+			case 0x17: a = rl(a); break; // RL A
+			
+			case 0x18: bc = (bc & 0xff) | (rr(bc >> 8) << 8); break; // RR B
+			case 0x19: bc = (bc & 0xff00) | rr(bc & 0xff); break; // RR C
+			case 0x1A: de = (de & 0xff) | (rr(de >> 8) << 8); break; // RR D
+			case 0x1B: de = (de & 0xff00) | rr(de & 0xff); break; // RR E
+			case 0x1C: hl = (hl & 0xff) | (rr(hl >> 8) << 8); break; // RR H
+			case 0x1D: hl = (hl & 0xff00) | rr(hl & 0xff); break; // RR L
+			case 0x1F: a = rr(a); break; // RR A
+			
+			case 0x20: bc = (bc & 0xff) | (sla(bc >> 8) << 8); break; // SLA B
+			case 0x21: bc = (bc & 0xff00) | sla(bc & 0xff); break; // SLA C
+			case 0x22: de = (de & 0xff) | (sla(de >> 8) << 8); break; // SLA D
+			case 0x23: de = (de & 0xff00) | sla(de & 0xff); break; // SLA E
+			case 0x24: hl = (hl & 0xff) | (sla(hl >> 8) << 8); break; // SLA H
+			case 0x25: hl = (hl & 0xff00) | sla(hl & 0xff); break; // SLA L
+			case 0x27: a = sla(a); break; // SLA A
+			
+			case 0x28: bc = (bc & 0xff) | (sra(bc >> 8) << 8); break; // SRA B
+			case 0x29: bc = (bc & 0xff00) | sra(bc & 0xff); break; // SRA C
+			case 0x2A: de = (de & 0xff) | (sra(de >> 8) << 8); break; // SRA D
+			case 0x2B: de = (de & 0xff00) | sra(de & 0xff); break; // SRA E
+			case 0x2C: hl = (hl & 0xff) | (sra(hl >> 8) << 8); break; // SRA H
+			case 0x2D: hl = (hl & 0xff00) | sra(hl & 0xff); break; // SRA L
+			case 0x2F: a = sra(a); break; // SRA A
+			
+			case 0x30: bc = (bc & 0xff) | (swap(bc >> 8) << 8); break; // SWAP B
+			case 0x31: bc = (bc & 0xff00) | swap(bc & 0xff); break; // SWAP C
+			case 0x32: de = (de & 0xff) | (swap(de >> 8) << 8); break; // SWAP D
+			case 0x33: de = (de & 0xff00) | swap(de & 0xff); break; // SWAP E
+			case 0x34: hl = (hl & 0xff) | (swap(hl >> 8) << 8); break; // SWAP H
+			case 0x35: hl = (hl & 0xff00) | swap(hl & 0xff); break; // SWAP L
+			case 0x37: a = swap(a); break; // SWAP A
+			
+			case 0x38: bc = (bc & 0xff) | (srl(bc >> 8) << 8); break; // SRL B
+			case 0x39: bc = (bc & 0xff00) | srl(bc & 0xff); break; // SRL C
+			case 0x3A: de = (de & 0xff) | (srl(de >> 8) << 8); break; // SRL D
+			case 0x3B: de = (de & 0xff00) | srl(de & 0xff); break; // SRL E
+			case 0x3C: hl = (hl & 0xff) | (srl(hl >> 8) << 8); break; // SRL H
+			case 0x3D: hl = (hl & 0xff00) | srl(hl & 0xff); break; // SRL L
+			case 0x3F: a = srl(a); break; // SRL A
+		}
+	}
+	
+	/** Rotates and shifts for executeRotate(), leaving the carry in bit 8 of flagResult */
+	private final int rlc(int data) {
+		flagResult = (data << 1) | (data >> 7);
+		flagMode = FLAGS_LOGIC;
+		return flagResult & 0xff;
+	}
+	
+	private final int rrc(int data) {
+		flagResult = ((data & 0x01) << 8) | ((data & 0x01) << 7) | (data >> 1);
+		flagMode = FLAGS_LOGIC;
+		return flagResult & 0xff;
+	}
+	
+	private final int rl(int data) {
+		flagResult = (data << 1) | (carry() >> 8);
+		flagMode = FLAGS_LOGIC;
+		return flagResult & 0xff;
+	}
+	
+	private final int rr(int data) {
+		flagResult = ((data & 0x01) << 8) | (carry() >> 1) | (data >> 1);
+		flagMode = FLAGS_LOGIC;
+		return flagResult & 0xff;
+	}
+	
+	private final int sla(int data) {
+		flagResult = data << 1;
+		flagMode = FLAGS_LOGIC;
+		return flagResult & 0xff;
+	}
+	
+	private final int sra(int data) {
+		flagResult = ((data & 0x01) << 8) | (data & 0x80) | (data >> 1);
+		flagMode = FLAGS_LOGIC;
+		return flagResult & 0xff;
+	}
+	
+	private final int swap(int data) {
+		flagResult = ((data & 0x0F) << 4) | (data >> 4);
+		flagMode = FLAGS_LOGIC;
+		return flagResult & 0xff;
+	}
+	
+	private final int srl(int data) {
+		flagResult = ((data & 0x01) << 8) | (data >> 1);
+		flagMode = FLAGS_LOGIC;
+		return flagResult & 0xff;
+	}
+	
+	/** Executes a CB-prefixed opcode on (hl), or on any register */
+	private final void executeShiftAny(int b2) {
 		int regNum = b2 & 0x07;
 		int data = registerRead(regNum);
-		int newf;
 		
 		instrCount += cyclesPerInstrShift[b2];
 		
@@ -1010,96 +1594,41 @@ public class Dmgcpu implements Runnable {
 		if ((b2 & 0xC0) == 0) {
 			switch ((b2 & 0xF8)) {
 				case 0x00: // RLC A
-					f = 0;
-					if (data >= 0x80) {
-						f = F_CARRY;
-					}
-					data = (data << 1) & 0xff;
-					if ((f & F_CARRY) != 0) {
-						data |= 1;
-					}
-					
+					data = (data << 1) | (data >> 7);
 					break;
 				case 0x08: // RRC A
-					f = 0;
-					if ((data & 0x01) != 0) {
-						f = F_CARRY;
-					}
-					data >>= 1;
-					if ((f & F_CARRY) != 0) {
-						data |= 0x80;
-					}
+					data = ((data & 0x01) << 8) | ((data & 0x01) << 7) | (data >> 1);
 					break;
 				case 0x10: // RL r
-					if (data >= 0x80) {
-						newf = F_CARRY;
-					} else {
-						newf = 0;
-					}
-					data = (data << 1) & 0xff;
-					
-					if ((f & F_CARRY) != 0) {
-						data |= 1;
-					}
-					f = newf;
+					data = (data << 1) | (carry() >> 8);
 					break;
 				case 0x18: // RR r
-					if ((data & 0x01) != 0) {
-						newf = F_CARRY;
-					} else {
-						newf = 0;
-					}
-					data >>= 1;
-					
-					if ((f & F_CARRY) != 0) {
-						data |= 0x80;
-					}
-						
-					f = newf;
+					data = ((data & 0x01) << 8) | (carry() >> 1) | (data >> 1);
 					break;
 				case 0x20: // SLA r
-					f = 0;
-					if ((data & 0x80) != 0) {
-						f = F_CARRY;
-					}
-					
-					data = (data << 1) & 0xff;
+					data <<= 1;
 					break;
 				case 0x28: // SRA r
-					f = 0;
-					if ((data & 0x01) != 0) {
-						f = F_CARRY;
-					}
-					
-					data = (data & 0x80) + (data >> 1); // i.e. duplicate high bit=sign
+					data = ((data & 0x01) << 8) | (data & 0x80) | (data >> 1); // i.e. duplicate high bit=sign
 					break;
 				case 0x30: // SWAP r
 					data = (((data & 0x0F) << 4) | (data >> 4));
-					f = 0;
-					
 					break;
 				case 0x38: // SRL r
-					f = 0;
-					if ((data & 0x01) != 0) {
-						f = F_CARRY;
-					}
-					
-					data >>= 1;
+					data = ((data & 0x01) << 8) | (data >> 1);
 					break;
 			}
 			
-			if (data == 0) {
-				f |= F_ZERO;
-			}
-			registerWrite(regNum, data);
+			// the carry is left in bit 8
+			flagResult = data;
+			flagMode = FLAGS_LOGIC;
+			registerWrite(regNum, data & 0xff);
 		} else {
 			int bitMask = 1 << ((b2 & 0x38) >> 3);
 			
 			if ((b2 & 0xC0) == 0x40) { // BIT n, r
-				f = ((f & F_CARRY) | F_HALFCARRY);
-				if ((data & bitMask) == 0) {
-					f |= F_ZERO;
-				}
+				flagResult = carry() | (data & bitMask);
+				flagMode = FLAGS_AND;
 			} else if ((b2 & 0xC0) == 0x80) { // RES n, r
 				registerWrite(regNum, (data & (0xFF - bitMask)));
 			} else if ((b2 & 0xC0) == 0xC0) { // SET n, r
@@ -1109,6 +1638,8 @@ public class Dmgcpu implements Runnable {
 	}
 	
 	private final void executeDAA() {
+		buildFlags();
+		
 		int upperNibble = (a >> 4) & 0x0f;
 		int lowerNibble = a & 0x0f;
 		
@@ -1179,953 +1710,1080 @@ public class Dmgcpu implements Runnable {
 		f = newf;
 	}
 	
+	/** Executes opcodes 0x80 - 0xbf: 8-bit arithmetic and logic on a register or (hl) */
 	private final void executeALU(int b1) {
-		int operand = registerRead(b1 & 0x07);
-		switch ((b1 & 0x38) >> 3) {
-			case 1: // ADC A, r
-				if ((f & F_CARRY) != 0) {
-					operand++;
+		switch (b1) {
+			case 0x80: add(bc >> 8); break; // ADD A, B
+			case 0x81: add(bc & 0xff); break; // ADD A, C
+			case 0x82: add(de >> 8); break; // ADD A, D
+			case 0x83: add(de & 0xff); break; // ADD A, E
+			case 0x84: add(hl >> 8); break; // ADD A, H
+			case 0x85: add(hl & 0xff); break; // ADD A, L
+			case 0x86: add(addressRead(hl) & 0xff); break; // ADD A, (HL)
+			case 0x87: add(a); break; // ADD A, A
+			
+			case 0x88: adc(bc >> 8); break; // ADC A, B
+			case 0x89: adc(bc & 0xff); break; // ADC A, C
+			case 0x8A: adc(de >> 8); break; // ADC A, D
+			case 0x8B: adc(de & 0xff); break; // ADC A, E
+			case 0x8C: adc(hl >> 8); break; // ADC A, H
+			case 0x8D: adc(hl & 0xff); break; // ADC A, L
+			case 0x8E: adc(addressRead(hl) & 0xff); break; // ADC A, (HL)
+			case 0x8F: adc(a); break; // ADC A, A
+			
+			case 0x90: sub(bc >> 8); break; // SUB A, B
+			case 0x91: sub(bc & 0xff); break; // SUB A, C
+			case 0x92: sub(de >> 8); break; // SUB A, D
+			case 0x93: sub(de & 0xff); break; // SUB A, E
+			case 0x94: sub(hl >> 8); break; // SUB A, H
+			case 0x95: sub(hl & 0xff); break; // SUB A, L
+			case 0x96: sub(addressRead(hl) & 0xff); break; // SUB A, (HL)
+			case 0x97: sub(a); break; // SUB A, A
+			
+			case 0x98: sbc(bc >> 8); break; // SBC A, B
+			case 0x99: sbc(bc & 0xff); break; // SBC A, C
+			case 0x9A: sbc(de >> 8); break; // SBC A, D
+			case 0x9B: sbc(de & 0xff); break; // SBC A, E
+			case 0x9C: sbc(hl >> 8); break; // SBC A, H
+			case 0x9D: sbc(hl & 0xff); break; // SBC A, L
+			case 0x9E: sbc(addressRead(hl) & 0xff); break; // SBC A, (HL)
+			case 0x9F: sbc(a); break; // SBC A, A
+			
+			case 0xA0: and(bc >> 8); break; // AND A, B
+			case 0xA1: and(bc & 0xff); break; // AND A, C
+			case 0xA2: and(de >> 8); break; // AND A, D
+			case 0xA3: and(de & 0xff); break; // AND A, E
+			case 0xA4: and(hl >> 8); break; // AND A, H
+			case 0xA5: and(hl & 0xff); break; // AND A, L
+			case 0xA6: and(addressRead(hl) & 0xff); break; // AND A, (HL)
+			case 0xA7: and(a); break; // AND A, A
+			
+			case 0xA8: xor(bc >> 8); break; // XOR A, B
+			case 0xA9: xor(bc & 0xff); break; // XOR A, C
+			case 0xAA: xor(de >> 8); break; // XOR A, D
+			case 0xAB: xor(de & 0xff); break; // XOR A, E
+			case 0xAC: xor(hl >> 8); break; // XOR A, H
+			case 0xAD: xor(hl & 0xff); break; // XOR A, L
+			case 0xAE: xor(addressRead(hl) & 0xff); break; // XOR A, (HL)
+			case 0xAF: xor(a); break; // XOR A, A
+			
+			case 0xB0: or(bc >> 8); break; // OR A, B
+			case 0xB1: or(bc & 0xff); break; // OR A, C
+			case 0xB2: or(de >> 8); break; // OR A, D
+			case 0xB3: or(de & 0xff); break; // OR A, E
+			case 0xB4: or(hl >> 8); break; // OR A, H
+			case 0xB5: or(hl & 0xff); break; // OR A, L
+			case 0xB6: or(addressRead(hl) & 0xff); break; // OR A, (HL)
+			case 0xB7: or(a); break; // OR A, A
+			
+			case 0xB8: cp(bc >> 8); break; // CP A, B
+			case 0xB9: cp(bc & 0xff); break; // CP A, C
+			case 0xBA: cp(de >> 8); break; // CP A, D
+			case 0xBB: cp(de & 0xff); break; // CP A, E
+			case 0xBC: cp(hl >> 8); break; // CP A, H
+			case 0xBD: cp(hl & 0xff); break; // CP A, L
+			case 0xBE: cp(addressRead(hl) & 0xff); break; // CP A, (HL)
+			case 0xBF: cp(a); break; // CP A, A
+		}
+	}
+	
+	/** 8-bit arithmetic and logic on a, recording the flags lazily */
+	private final void add(int operand) {
+		flagHalf = a ^ operand;
+		a += operand;
+		flagResult = a;
+		flagMode = FLAGS_ADD;
+		a &= 0xff;
+	}
+	
+	private final void adc(int operand) {
+		add(operand + (carry() >> 8));
+	}
+	
+	private final void sub(int operand) {
+		flagHalf = a ^ operand;
+		a -= operand;
+		flagResult = a;
+		flagMode = FLAGS_SUB;
+		a &= 0xff;
+	}
+	
+	private final void sbc(int operand) {
+		sub(operand + (carry() >> 8));
+	}
+	
+	private final void and(int operand) {
+		a &= operand;
+		flagResult = a;
+		flagMode = FLAGS_AND;
+	}
+	
+	private final void xor(int operand) {
+		a ^= operand;
+		flagResult = a;
+		flagMode = FLAGS_LOGIC;
+	}
+	
+	private final void or(int operand) {
+		a |= operand;
+		flagResult = a;
+		flagMode = FLAGS_LOGIC;
+	}
+	
+	private final void cp(int operand) {
+		flagHalf = a ^ operand;
+		flagResult = a - operand;
+		flagMode = FLAGS_SUB;
+	}
+	
+	/** Executes opcodes 0x00 - 0x3f: 16-bit loads, INC/DEC, rotates and relative jumps */
+	private final void execute00(int b1, int b2, int b3) {
+		int newf;
+		
+		switch (b1) {
+			case 0x00: // NOP
+				break;
+			case 0x01: // LD BC, nn
+				localPC += 2;
+				bc = ((b3 & 0xff) << 8) + b2;
+				break;
+			case 0x02: // LD (BC), A
+				addressWrite(bc, a);
+				break;
+			case 0x03: // INC BC
+				bc = (bc + 1) & 0xFFFF;
+				break;
+			case 0x04: // INC B
+				b2 = ((bc >> 8) + 1) & 0xff;
+				incDecFlags(FLAGS_INC, b2);
+				bc = (bc & 0xff) + (b2 << 8);
+				break;
+			case 0x05: // DEC B
+				b2 = ((bc >> 8) - 1) & 0xff;
+				incDecFlags(FLAGS_DEC, b2);
+				bc = (bc & 0xff) + (b2 << 8);
+				break;
+			case 0x06: // LD B, nn
+				localPC++;
+				bc = (bc & 0xFF) | (b2 << 8);
+				break;
+			case 0x07: // RLC A
+				flagResult = (a << 1) | (a >> 7);
+				flagMode = FLAGS_LOGIC;
+				a = flagResult & 0xff;
+				break;
+			case 0x08: // LD (nnnn), SP
+				localPC += 2;
+				newf = ((b3 & 0xff) << 8) + b2;
+				addressWrite(newf, sp);
+				addressWrite(newf + 1, sp >> 8);
+				break;
+			case 0x09: // ADD HL, BC
+				hl += bc;
+				addHLFlags();
+				break;
+			case 0x0A: // LD A, (BC)
+				a = addressRead(bc) & 0xff;
+				break;
+			case 0x0B: // DEC BC
+				bc = (bc - 1) & 0xFFFF;
+				break;
+			case 0x0C: // INC C
+				b2 = (bc + 1) & 0xff;
+				incDecFlags(FLAGS_INC, b2);
+				bc = (bc & 0xff00) + b2;
+				break;
+			case 0x0D: // DEC C
+				b2 = (bc - 1) & 0xff;
+				incDecFlags(FLAGS_DEC, b2);
+				bc = (bc & 0xff00) + b2;
+				break;
+			case 0x0E: // LD C, nn
+				localPC++;
+				bc = (bc & 0xFF00) | b2;
+				break;
+			case 0x0F: // RRC A
+				flagResult = ((a & 0x01) << 8) | ((a & 0x01) << 7) | (a >> 1);
+				flagMode = FLAGS_LOGIC;
+				a = flagResult & 0xff;
+				break;
+			case 0x10: // STOP
+				localPC++;
+				
+				if (gbcFeatures) {
+					if ((registers[0x4D] & 0x01) != 0) {
+						int newKey1Reg = registers[0x4D] & 0xFE;
+						int multiplier = 1;
+						if ((newKey1Reg & 0x80) != 0) {
+							newKey1Reg &= 0x7F;
+						} else {
+							multiplier = 2;
+							newKey1Reg |= 0x80;
+						}
+
+						updateEmulatedCycles(); // at the old speed
+						INSTRS_IN_MODE_0 = BASE_INSTRS_IN_MODE_0 * multiplier;
+						INSTRS_IN_MODE_2 = BASE_INSTRS_IN_MODE_2 * multiplier;
+						INSTRS_IN_MODE_3 = BASE_INSTRS_IN_MODE_3 * multiplier;
+						
+						registers[0x4D] = (byte) newKey1Reg;
+					}
+				}
+
+				break;
+			case 0x11: // LD DE, nnnn
+				localPC += 2;
+				de = ((b3 & 0xff) << 8) + b2;
+				break;
+			case 0x12: // LD (DE), A
+				addressWrite(de, a);
+				break;
+			case 0x13: // INC DE
+				de = (de + 1) & 0xFFFF;
+				break;
+			case 0x14: // INC D
+				b2 = ((de >> 8) + 1) & 0xff;
+				incDecFlags(FLAGS_INC, b2);
+				de = (de & 0xff) + (b2 << 8);
+				break;
+			case 0x15: // DEC D
+				b2 = ((de >> 8) - 1) & 0xff;
+				incDecFlags(FLAGS_DEC, b2);
+				de = (de & 0xff) + (b2 << 8);
+				break;
+			case 0x16: // LD D, nn
+				localPC++;
+				de = (de & 0xFF) | (b2 << 8);
+				break;
+			case 0x17: // RL A
+				flagResult = (a << 1) | (carry() >> 8);
+				flagMode = FLAGS_LOGIC;
+				a = flagResult & 0xff;
+				break;
+			case 0x18: // JR nn
+				localPC += 1 + (byte) b2;
+				if (localPC < 0 || localPC > decoderMaxCruise) {
+					// switch bank
+					setPC(localPC + globalPC);
 				}
-				// Note!  No break!
-			case 0: // ADD A, r
+				if (b2 >= 0x100 - IDLE_MAX_LOOP)
+					idleLoop(b2);
 				
-				if ((a & 0x0F) + (operand & 0x0F) >= 0x10) {
-					f = F_HALFCARRY;
+				break;
+			case 0x19: // ADD HL, DE
+				hl += de;
+				addHLFlags();
+				break;
+			case 0x1A: // LD A, (DE)
+				a = addressRead(de) & 0xff;
+				break;
+			case 0x1B: // DEC DE
+				de = (de - 1) & 0xFFFF;
+				break;
+			case 0x1C: // INC E
+				b2 = (de + 1) & 0xff;
+				incDecFlags(FLAGS_INC, b2);
+				de = (de & 0xff00) + b2;
+				break;
+			case 0x1D: // DEC E
+				b2 = (de - 1) & 0xff;
+				incDecFlags(FLAGS_DEC, b2);
+				de = (de & 0xff00) + b2;
+				break;
+			case 0x1E: // LD E, nn
+				localPC++;
+				de = (de & 0xFF00) | b2;
+				break;
+			case 0x1F: // RR A
+				flagResult = ((a & 0x01) << 8) | (carry() >> 1) | (a >> 1);
+				flagMode = FLAGS_LOGIC;
+				a = flagResult & 0xff;
+				break;
+			case 0x20: // JR NZ, nn
+				buildFlags();
+				if (f < F_ZERO) {
+					localPC += 1 + (byte) b2;
+					if (localPC < 0 || localPC > decoderMaxCruise) {
+						// switch bank
+						setPC(localPC + globalPC);
+					}
+					if (b2 >= 0x100 - IDLE_MAX_LOOP)
+						idleLoop(b2);
+				} else {
+					localPC++;
+				}
+				break;
+			case 0x21: // LD HL, nnnn
+				localPC += 2;
+				hl = ((b3 & 0xff) << 8) + b2;
+				break;
+			case 0x22: // LD (HL+), A
+				addressWrite(hl++, a);
+				break;
+			case 0x23: // INC HL
+				hl = (hl + 1) & 0xFFFF;
+				break;
+			case 0x24: // INC H
+				b2 = ((hl >> 8) + 1) & 0xff;
+				incDecFlags(FLAGS_INC, b2);
+				hl = (hl & 0xff) + (b2 << 8);
+				break;
+			case 0x25: // DEC H
+				b2 = ((hl >> 8) - 1) & 0xff;
+				incDecFlags(FLAGS_DEC, b2);
+				hl = (hl & 0xff) + (b2 << 8);
+				break;
+			case 0x26: // LD H, nn
+				localPC++;
+				hl = (hl & 0xFF) | (b2 << 8);
+				break;
+			case 0x27: // DAA
+				executeDAA();
+				break;
+			case 0x28: // JR Z, nn
+				buildFlags();
+				if (f >= F_ZERO) {
+					localPC += 1 + (byte) b2;
+					if (localPC < 0 || localPC > decoderMaxCruise) {
+						// switch bank
+						setPC(localPC + globalPC);
+					}
+					if (b2 >= 0x100 - IDLE_MAX_LOOP)
+						idleLoop(b2);
+				} else {
+					localPC++;
+				}
+				break;
+			case 0x29: // ADD HL, HL
+				hl *= 2;
+				addHLFlags();
+				break;
+			case 0x2A: // LDI A, (HL)
+				a = addressRead(hl++) & 0xff;
+				break;
+			case 0x2B: // DEC HL
+				hl = (hl - 1) & 0xffff;
+				break;
+			case 0x2C: // INC L
+				b2 = (hl + 1) & 0xff;
+				incDecFlags(FLAGS_INC, b2);
+				hl = (hl & 0xff00) + b2;
+				break;
+			case 0x2D: // DEC L
+				b2 = (hl - 1) & 0xff;
+				incDecFlags(FLAGS_DEC, b2);
+				hl = (hl & 0xff00) + b2;
+				break;
+			case 0x2E: // LD L, nn
+				localPC++;
+				hl = (hl & 0xFF00) | b2;
+				break;
+			case 0x2F: // CPL A
+				a = ((~a) & 0x00FF);
+				buildFlags();
+				f |= F_SUBTRACT | F_HALFCARRY;
+				break;
+			case 0x30: // JR NC, nn
+				buildFlags();
+				if ((f & F_CARRY) == 0) {
+					localPC += 1 + (byte) b2;
+					if (localPC < 0 || localPC > decoderMaxCruise) {
+						// switch bank
+						setPC(localPC + globalPC);
+					}
+					if (b2 >= 0x100 - IDLE_MAX_LOOP)
+						idleLoop(b2);
+				} else {
+					localPC++;
+				}
+				break;
+			case 0x31: // LD SP, nnnn
+				localPC += 2;
+				sp = ((b3 & 0xff) << 8) + b2;
+				break;
+			case 0x32:
+				addressWrite(hl--, a); // LD (HL-), A
+				break;
+			case 0x33: // INC SP
+				sp = (sp + 1) & 0xFFFF;
+				break;
+			case 0x34: // INC (HL)
+				b2 = (addressRead(hl) + 1) & 0xff;
+				incDecFlags(FLAGS_INC, b2);
+				addressWrite(hl, b2);
+				break;
+			case 0x35: // DEC (HL)
+				b2 = (addressRead(hl) - 1) & 0xff;
+				incDecFlags(FLAGS_DEC, b2);
+				addressWrite(hl, b2);
+				break;
+			case 0x36: // LD (HL), nn
+				localPC++;
+				addressWrite(hl, b2);
+				break;
+			case 0x37: // SCF
+				buildFlags();
+				f = (f & F_ZERO) | F_CARRY;
+				break;
+			case 0x38: // JR C, nn
+				buildFlags();
+				if ((f & F_CARRY) != 0) {
+					localPC += 1 + (byte) b2;
+					if (localPC < 0 || localPC > decoderMaxCruise) {
+						// switch bank
+						setPC(localPC + globalPC);
+					}
+					if (b2 >= 0x100 - IDLE_MAX_LOOP)
+						idleLoop(b2);
 				} else {
-					f = 0;
+					localPC += 1;
 				}
+				break;
+			case 0x39: // ADD HL, SP
+				hl += sp;
+				addHLFlags();
+				break;
+			case 0x3A: // LD A, (HL-)
+				a = addressRead(hl--) & 0xff;
+				break;
+			case 0x3B: // DEC SP
+				sp = (sp - 1) & 0xFFFF;
+				break;
+			case 0x3C: // INC A
+				a = (a + 1) & 0xff;
+				incDecFlags(FLAGS_INC, a);
+				break;
+			case 0x3D: // DEC A
+				a = (a - 1) & 0xff;
+				incDecFlags(FLAGS_DEC, a);
+				break;
+			case 0x3E: // LD A, nn
+				localPC++;
+				a = b2;
+				break;
+			case 0x3F: // CCF
+				buildFlags();
+				f = (f & (F_CARRY | F_ZERO)) ^ F_CARRY;
+				break;
+		}
+	}
+	
+	/** Executes opcodes 0x40 - 0x7f: 8-bit register loads and HALT */
+	private final void executeLoad(int b1) {
+		switch (b1) {
+				// B = r
+			case 0x40: break;
+			case 0x41: bc = (bc & 0xFF) * 0x0101; break;
+			case 0x42: bc = (bc & 0xFF) | (de & 0xFF00); break;
+			case 0x43: bc = (bc & 0xFF) | ((de & 0xFF) << 8); break;
+			case 0x44: bc = (bc & 0xFF) | (hl & 0xFF00); break;
+			case 0x45: bc = (bc & 0xFF) | ((hl & 0xFF) << 8); break;
+			case 0x46: bc = (bc & 0xFF) | ((addressRead(hl) & 0xff) << 8); break;
+			case 0x47: bc = (bc & 0xFF) | (a << 8); break;
 				
-				a += operand;
+				// C = r
+			case 0x48: bc = (bc >> 8) * 0x0101; break;
+			case 0x49: break;
+			case 0x4a: bc = (bc & 0xFF00) | (de >> 8); break;
+			case 0x4b: bc = (bc & 0xFF00) | (de & 0xFF); break;
+			case 0x4c: bc = (bc & 0xFF00) | (hl >> 8); break;
+			case 0x4d: bc = (bc & 0xFF00) | (hl & 0xFF); break;
+			case 0x4e: bc = (bc & 0xFF00) | (addressRead(hl) & 0xff); break;
+			case 0x4f: bc = (bc & 0xFF00) | a; break;
 				
-				if (a > 0xff) {
-					f |= F_CARRY;
-					a &= 0xff;
+				// D = r
+			case 0x50: de = (de & 0xFF) | (bc & 0xFF00); break;
+			case 0x51: de = (de & 0xFF) | ((bc & 0xFF) << 8); break;
+			case 0x52: break;
+			case 0x53: de = (de & 0xFF) * 0x0101; break;
+			case 0x54: de = (de & 0xFF) | (hl & 0xFF00); break;
+			case 0x55: de = (de & 0xFF) | ((hl & 0xFF) << 8); break;
+			case 0x56: de = (de & 0xFF) | ((addressRead(hl) & 0xff) << 8); break;
+			case 0x57: de = (de & 0xFF) | (a << 8); break;
+				
+				// E = r
+			case 0x58: de = (de & 0xFF00) | (bc >> 8); break;
+			case 0x59: de = (de & 0xFF00) | (bc & 0xFF); break;
+			case 0x5a: de = (de >> 8) * 0x0101; break;
+			case 0x5b: break;
+			case 0x5c: de = (de & 0xFF00) | (hl >> 8); break;
+			case 0x5d: de = (de & 0xFF00) | (hl & 0xFF); break;
+			case 0x5e: de = (de & 0xFF00) | (addressRead(hl) & 0xff); break;
+			case 0x5f: de = (de & 0xFF00) | a; break;
+				
+				// h = r
+			case 0x60: hl = (hl & 0xFF) | (bc & 0xFF00); break;
+			case 0x61: hl = (hl & 0xFF) | ((bc & 0xFF) << 8); break;
+			case 0x62: hl = (hl & 0xFF) | (de & 0xFF00); break;
+			case 0x63: hl = (hl & 0xFF) | ((de & 0xFF) << 8); break;
+			case 0x64: break;
+			case 0x65: hl = (hl & 0xFF) * 0x0101; break;
+			case 0x66: hl = (hl & 0xFF) | ((addressRead(hl) & 0xff) << 8); break;
+			case 0x67: hl = (hl & 0xFF) | (a << 8); break;
+				
+				// l = r
+			case 0x68: hl = (hl & 0xFF00) | (bc >> 8); break;
+			case 0x69: hl = (hl & 0xFF00) | (bc & 0xFF); break;
+			case 0x6a: hl = (hl & 0xFF00) | (de >> 8); break;
+			case 0x6b: hl = (hl & 0xFF00) | (de & 0xFF); break;
+			case 0x6c: hl = (hl >> 8) * 0x0101; break;
+			case 0x6d: break;
+			case 0x6e: hl = (hl & 0xFF00) | (addressRead(hl) & 0xff); break;
+			case 0x6f: hl = (hl & 0xFF00) | a; break;
+				
+				// (hl) = r
+			case 0x70: addressWrite(hl, bc >> 8); break;
+			case 0x71: addressWrite(hl, bc & 0xFF); break;
+			case 0x72: addressWrite(hl, de >> 8); break;
+			case 0x73: addressWrite(hl, de & 0xFF); break;
+			case 0x74: addressWrite(hl, hl >> 8); break;
+			case 0x75: addressWrite(hl, hl); break;
+			case 0x76: // HALT
+				interruptsEnabled = true;
+
+				if (interruptsArmed) {
+					nextTimedInterrupt = instrCount;
+				} else {
+					while (!interruptsArmed) {
+						if (terminate) {
+							// stopped while halted (see runFrames), halt again when resumed
+							setPC(localPC + globalPC - 1);
+							return;
+						}
+						instrCount = nextTimedInterrupt;
+						initiateInterrupts();
+					}
+					instrCount++;
+					nextTimedInterrupt = instrCount;
 				}
+
+				break;
+			case 0x77: addressWrite(hl, a); break;
 				
-				if (a == 0) {
-					f |= F_ZERO;
+				// LD A, n:
+			case 0x78: a = bc >> 8; break;
+			case 0x79: a = (bc & 0xFF); break;
+			case 0x7a: a = de >> 8; break;
+			case 0x7b: a = (de & 0xFF); break;
+			case 0x7c: a = (hl >> 8); break;
+			case 0x7d: a = (hl & 0xFF); break;
+			case 0x7e: a = addressRead(hl) & 0xff; break;
+			case 0x7f: break;
+				
+		}
+	}
+	
+	/** Executes opcodes 0xc0 - 0xff: jumps, calls, stack operations and immediate operands */
+	private final void executeC0(int b1, int b2, int b3) {
+		switch (b1) {
+			case 0xC0: // RET NZ
+				buildFlags();
+				if (f < F_ZERO) {
+					popPC();
+				}
+				break;
+			case 0xC1: // POP BC
+				bc = ((addressRead(sp + 1) & 0xff) << 8) + (addressRead(sp) & 0xff);
+				sp += 2;
+				break;
+			case 0xC2: // JP NZ, nnnn
+				buildFlags();
+				if (f < F_ZERO) {
+					setPC(((b3 & 0xff) << 8) + b2);
+				} else {
+					localPC += 2;
+				}
+				break;
+			case 0xC3: // JP nnnn
+				setPC(((b3 & 0xff) << 8) + b2);
+				break;
+			case 0xC4: // CALL NZ, nnnn
+				localPC += 2;
+				buildFlags();
+				if (f < F_ZERO) {
+					pushPC();
+					setPC(((b3 & 0xff) << 8) + b2);
+				}
+				break;
+			case 0xC5: // PUSH BC
+				addressWrite(--sp, bc >> 8);
+				addressWrite(--sp, bc & 0xff);
+				break;
+			case 0xC6: // ADD A, nn
+				localPC++;
+				flagHalf = a ^ b2;
+				a += b2;
+				flagResult = a;
+				flagMode = FLAGS_ADD;
+				a &= 0xff;
+				break;
+			case 0xC7: // RST 00
+				pushPC();
+				setPC(0x00);
+				break;
+			case 0xC8: // RET Z
+				buildFlags();
+				if (f >= F_ZERO) {
+					popPC();
+				}
+				break;
+			case 0xC9: // RET
+				popPC();
+				break;
+			case 0xCA: // JP Z, nnnn
+				buildFlags();
+				if (f >= F_ZERO) {
+					setPC(((b3 & 0xff) << 8) + b2);
+				} else {
+					localPC += 2;
+				}
+				break;
+			case 0xCB: // Shift/bit test
+				localPC++;
+				executeShift(b2);
+				break;
+			case 0xCC: // CALL Z, nnnn
+				localPC += 2;
+				buildFlags();
+				if (f >= F_ZERO) {
+					pushPC();
+					setPC(((b3 & 0xff) << 8) + b2);
+				}
+				break;
+			case 0xCD: // CALL nnnn
+				localPC += 2;
+				pushPC();
+				setPC(((b3 & 0xff) << 8) + b2);
+				break;
+			case 0xCE: // ADC A, nn
+				localPC++;
+				b2 += carry() >> 8;
+				flagHalf = a ^ b2;
+				a += b2;
+				flagResult = a;
+				flagMode = FLAGS_ADD;
+				a &= 0xff;
+				break;
+			case 0xCF: // RST 08
+				pushPC();
+				setPC(0x08);
+				break;
+			case 0xD0: // RET NC
+				buildFlags();
+				if ((f & F_CARRY) == 0) {
+					popPC();
+				}
+				break;
+			case 0xD1: // POP DE
+				de = ((addressRead(sp + 1) & 0xff) << 8) + (addressRead(sp) & 0xff);
+				sp += 2;
+				break;
+			case 0xD2: // JP NC, nnnn
+				buildFlags();
+				if ((f & F_CARRY) == 0) {
+					setPC(((b3 & 0xff) << 8) + b2);
+				} else {
+					localPC += 2;
+				}
+				break;
+			case 0xD4: // CALL NC, nnnn
+				localPC += 2;
+				buildFlags();
+				if ((f & F_CARRY) == 0) {
+					pushPC();
+					setPC(((b3 & 0xff) << 8) + b2);
+				}
+				break;
+			case 0xD5: // PUSH DE
+				addressWrite(--sp, de >> 8);
+				addressWrite(--sp, de & 0xff);
+				break;
+			case 0xD6: // SUB A, nn
+				localPC++;
+				flagHalf = a ^ b2;
+				a -= b2;
+				flagResult = a;
+				flagMode = FLAGS_SUB;
+				a &= 0xff;
+				break;
+			case 0xD7: // RST 10
+				pushPC();
+				setPC(0x10);
+				break;
+			case 0xD8: // RET C
+				buildFlags();
+				if ((f & F_CARRY) != 0) {
+					popPC();
+				}
+				break;
+			case 0xD9: // RETI
+				interruptsEnabled = true;
+				if (interruptsArmed) {
+					nextTimedInterrupt = instrCount;
 				}
+				popPC();
 				break;
-			case 3: // SBC A, r
+			case 0xDA: // JP C, nnnn
+				buildFlags();
 				if ((f & F_CARRY) != 0) {
-					operand++;
+					setPC(((b3 & 0xff) << 8) + b2);
+				} else {
+					localPC += 2;
+				}
+				break;
+			case 0xDC: // CALL C, nnnn
+				localPC += 2;
+				buildFlags();
+				if ((f & F_CARRY) != 0) {
+					pushPC();
+					setPC(((b3 & 0xff) << 8) + b2);
 				}
-				// Note! No break!
-			case 2: // SUB A, r
+				break;
+			case 0xDE: // SBC A, nn
+				localPC++;
+				b2 += carry() >> 8;
 				
+				// not lazy, as zero isn't set when the result wraps to 0
+				flagMode = FLAGS_NONE;
 				f = F_SUBTRACT;
-				
-				if ((a & 0x0F) < (operand & 0x0F)) {
+				if ((a & 0x0F) < (b2 & 0x0F)) {
 					f |= F_HALFCARRY;
 				}
 				
-				a -= operand;
+				a -= b2;
 				
 				if (a < 0) {
 					f |= F_CARRY;
 					a &= 0xff;
-				}
-				if (a == 0) {
+				} else if (a == 0) {
 					f |= F_ZERO;
 				}
-					
 				break;
-			case 4: // AND A, r
-				a &= operand;
-				if (a == 0) {
-					f = F_HALFCARRY + F_ZERO;
-				} else {
-					f = F_HALFCARRY;
-				}
+			case 0xDF: // RST 18
+				pushPC();
+				setPC(0x18);
 				break;
-			case 5: // XOR A, r
-				a ^= operand;
-				f = (a == 0) ? F_ZERO : 0;
+			case 0xE0: // LDH (FFnn), A
+				localPC++;
+				ioWrite(b2, a);
 				break;
-			case 6: // OR A, r
-				a |= operand;
-				f = (a == 0) ? F_ZERO : 0;
+			case 0xE1: // POP HL
+				hl = ((addressRead(sp + 1) & 0xff) << 8) + (addressRead(sp) & 0xff);
+				sp += 2;
 				break;
-			case 7: // CP A, r (compare)
-				f = F_SUBTRACT;
-				if (a == operand) {
-					f |= F_ZERO;
-				} else if (a < operand) {
-					f |= F_CARRY;
+			case 0xE2: // LDH (FF00 + C), A
+				ioWrite(bc & 0xff, a);
+				break;
+			case 0xE5: // PUSH HL
+				addressWrite(--sp, hl >> 8);
+				addressWrite(--sp, hl);
+				break;
+			case 0xE6: // AND nn
+				localPC++;
+				a &= b2;
+				flagResult = a;
+				flagMode = FLAGS_LOGIC;
+				break;
+			case 0xE7: // RST 20
+				pushPC();
+				setPC(0x20);
+				break;
+			case 0xE8: // ADD SP, nn
+				localPC++;
+				
+				sp += (byte) b2;
+				flagMode = FLAGS_NONE;
+				f = 0;
+				if (sp > 0xffff || sp < 0) {
+					sp &= 0xffff;
+					f = F_CARRY;
 				}
-				if ((a & 0x0F) < (operand & 0x0F)) {
-					f |= F_HALFCARRY;
+				break;
+			case 0xE9: // JP (HL)
+				setPC(hl);
+				break;
+			case 0xEA: // LD (nnnn), A
+				localPC += 2;
+				addressWrite(((b3 & 0xff) << 8) + b2, a);
+				break;
+			case 0xEE: // XOR A, nn
+				localPC++;
+				a ^= b2;
+				flagResult = a;
+				flagMode = FLAGS_LOGIC;
+				break;
+			case 0xEF: // RST 28
+				pushPC();
+				setPC(0x28);
+				break;
+			case 0xF0: // LDH A, (FFnn)
+				localPC++;
+				a = ioRead(b2) & 0xff; // fixme, direct access?
+				
+				break;
+			case 0xF1: // POP AF
+				f = addressRead(sp++) & 0xff; // fixme, f0 or ff?
+				flagMode = FLAGS_NONE;
+				a = addressRead(sp++) & 0xff;
+				break;
+			case 0xF2: // LD A, (FF00 + C)
+				a = ioRead(bc & 0xff) & 0xff; // fixme, direct access?
+				break;
+			case 0xF3: // DI
+				interruptsEnabled = false;
+				break;
+			case 0xF5: // PUSH AF
+				addressWrite(--sp, a);
+				buildFlags();
+				addressWrite(--sp, f);
+				break;
+			case 0xF6: // OR A, nn
+				localPC++;
+				a |= b2;
+				flagResult = a;
+				flagMode = FLAGS_LOGIC;
+				break;
+			case 0xF7: // RST 30
+				pushPC();
+				setPC(0x30);
+				break;
+			case 0xF8: // LD HL, SP + nn  ** HALFCARRY FLAG NOT SET ***
+				localPC++;
+				hl = sp + (byte) b2;
+				flagMode = FLAGS_NONE;
+				f = 0;
+				if ((hl & 0xffff0000) != 0) {
+					f = F_CARRY;
+					hl &= 0xFFFF;
 				}
 				break;
-		}
-	}
-	
-	public final void run() {
-		try {
-		terminate = false;
-		
-		int newf = 0;
-		int b1, b2, offset, b3;
-		
-		System.gc();
-		int startTime = (int) System.currentTimeMillis();
-		
-		graphicsChip.timer = startTime;
-		
-		while (!terminate) {
-			if (localPC <= decoderMaxCruise) {
-				b1 = decoderMemory[localPC++] & 0xff;
-				offset = decoderMemory[localPC];
-				b2 = offset & 0xff;
-				b3 = decoderMemory[localPC + 1];
-			} else {
-				int pc = localPC + globalPC;
-				b1 = addressRead(pc++) & 0xff;
-				offset = addressRead(pc);
-				b2 = offset & 0xff;
-				b3 = addressRead(pc + 1);
-				setPC(pc);
-			}
-			
-			switch (b1) {
-				case 0x00: // NOP
-					break;
-				case 0x01: // LD BC, nn
-					localPC += 2;
-					b = b3 & 0xff;
-					c = b2;
-					break;
-				case 0x02: // LD (BC), A
-					addressWrite((b << 8) | c, a);
-					break;
-				case 0x03: // INC BC
-					c++;
-					if (c == 0x0100) {
-						c = 0;
-						b = (b + 1) & 0xff;
-					}
-					break;
-				case 0x04: // INC B
-					b = (b + 1) & 0xff;
-					f = (f & F_CARRY) | incflags[b];
-					break;
-				case 0x05: // DEC B
-					b = (b - 1) & 0xff;
-					f = (f & F_CARRY) | decflags[b];
-					break;
-				case 0x06: // LD B, nn
-					localPC++;
-					b = b2;
-					break;
-				case 0x07: // RLC A
-					if (a >= 0x80) {
-						f = F_CARRY;
-						a = ((a << 1) + 1) & 0xff;
-					} else if (a == 0) {
-						f = F_ZERO;
-					} else {
-						a <<= 1;
-						f = 0;
-					}
-					break;
-				case 0x08: // LD (nnnn), SP
-					localPC += 2;
-					newf = ((b3 & 0xff) << 8) + b2;
-					addressWrite(newf, sp);
-					addressWrite(newf + 1, sp >> 8);
-					break;
-				case 0x09: // ADD HL, BC
-					hl = (hl + ((b << 8) + c));
-					if ((hl & 0xffff0000) != 0) {
-						f = (f & F_ZERO) | F_CARRY; // halfcarry is wrong
-						hl &= 0xFFFF;
-					} else {
-						f &= F_ZERO; // halfcarry is wrong
-					}
-					break;
-				case 0x0A: // LD A, (BC)
-					a = addressRead((b << 8) + c) & 0xff;
-					break;
-				case 0x0B: // DEC BC
-					c--;
-					if (c < 0) {
-						c = 0xFF;
-						b = (b - 1) & 0xff;
-					}
-					break;
-				case 0x0C: // INC C
-					c = (c + 1) & 0xff;
-					f = (f & F_CARRY) | incflags[c];
-					break;
-				case 0x0D: // DEC C
-					c = (c - 1) & 0xff;
-					f = (f & F_CARRY) | decflags[c];
-					break;
-				case 0x0E: // LD C, nn
-					localPC++;
-					c = b2;
-					break;
-				case 0x0F: // RRC A
-					if ((a & 0x01) == 0x01) {
-						f = F_CARRY;
-					} else {
-						f = 0;
-					}
-					a >>= 1;
-					if ((f & F_CARRY) != 0) {
-						a |= 0x80;
-					}
-					if (a == 0) {
-						f |= F_ZERO;
-					}
-					break;
-				case 0x10: // STOP
-					localPC++;
-					
-					if (gbcFeatures) {
-						if ((registers[0x4D] & 0x01) != 0) {
-							int newKey1Reg = registers[0x4D] & 0xFE;
-							int multiplier = 1;
-							if ((newKey1Reg & 0x80) != 0) {
-								newKey1Reg &= 0x7F;
-							} else {
-								multiplier = 2;
-								newKey1Reg |= 0x80;
-							}
-
-							INSTRS_IN_MODE_0 = BASE_INSTRS_IN_MODE_0 * multiplier;
-							INSTRS_IN_MODE_2 = BASE_INSTRS_IN_MODE_2 * multiplier;
-							INSTRS_IN_MODE_3 = BASE_INSTRS_IN_MODE_3 * multiplier;
-							
-							registers[0x4D] = (byte) newKey1Reg;
-						}
-					}
-
-					break;
-				case 0x11: // LD DE, nnnn
-					localPC += 2;
-					d = b3 & 0xff;
-					e = b2;
-					break;
-				case 0x12: // LD (DE), A
-					addressWrite((d << 8) + e, a);
-					break;
-				case 0x13: // INC DE
-					e++;
-					if (e == 0x0100) {
-						e = 0;
-						d = (d + 1) & 0xff;
-					}
-					break;
-				case 0x14: // INC D
-					d = (d + 1) & 0xff;
-					f = (f & F_CARRY) | incflags[d];
-					break;
-				case 0x15: // DEC D
-					d = (d - 1) & 0xff;
-					f = (f & F_CARRY) | decflags[d];
-					break;
-				case 0x16: // LD D, nn
-					localPC++;
-					d = b2;
-					break;
-				case 0x17: // RL A
-					if ((a & 0x80) != 0) {
-						newf = F_CARRY;
-					} else {
-						newf = 0;
-					}
-					a <<= 1;
-
-					if ((f & F_CARRY) != 0) {
-						a |= 1;
-					}
-					
-					a &= 0xFF;
-					if (a == 0) {
-						newf |= F_ZERO;
-					}
-					f = newf;
-					break;
-				case 0x18: // JR nn
-					localPC += 1 + offset;
-					if (localPC < 0 || localPC > decoderMaxCruise) {
-						// switch bank
-						setPC(localPC + globalPC);
-					}
-					
-					break;
-				case 0x19: // ADD HL, DE
-					hl += ((d << 8) + e);
-					if ((hl & 0xFFFF0000) != 0) {
-						f = ((f & F_ZERO) | F_CARRY); // halfcarry is wrong
-						hl &= 0xFFFF;
-					} else {
-						f &= F_ZERO; // halfcarry is wrong
-					}
-					break;
-				case 0x1A: // LD A, (DE)
-					a = (addressRead((d << 8) + e)) & 0xff;
-					break;
-				case 0x1B: // DEC DE
-					e--;
-					if (e < 0) {
-						e = 0xFF;
-						d = (d - 1) & 0xff;
-					}
-					break;
-				case 0x1C: // INC E
-					e = (e + 1) & 0xff;
-					f = (f & F_CARRY) | incflags[e];
-					break;
-				case 0x1D: // DEC E
-					e = (e - 1) & 0xff;
-					f = (f & F_CARRY) | decflags[e];
-					break;
-				case 0x1E: // LD E, nn
-					localPC++;
-					e = b2;
-					break;
-				case 0x1F: // RR A
-					if ((a & 0x01) != 0) {
-						newf = F_CARRY;
-					} else {
-						newf = 0;
-					}
-					a >>= 1;
-
-					if ((f & F_CARRY) != 0) {
-						a |= 0x80;
-					}
-
-					if (a == 0) {
-						newf |= F_ZERO;
-					}
-					f = newf;
-					break;
-				case 0x20: // JR NZ, nn
-					if (f < F_ZERO) {
-						localPC += 1 + offset;
-						if (localPC < 0 || localPC > decoderMaxCruise) {
-							// switch bank
-							setPC(localPC + globalPC);
-						}
-					} else {
-						localPC++;
-					}
-					break;
-				case 0x21: // LD HL, nnnn
-					localPC += 2;
-					hl = ((b3 & 0xff) << 8) + b2;
-					break;
-				case 0x22: // LD (HL+), A
-					addressWrite(hl++, a);
-					break;
-				case 0x23: // INC HL
-					hl = (hl + 1) & 0xFFFF;
-					break;
-				case 0x24: // INC H
-					b2 = ((hl >> 8) + 1) & 0xff;
-					f = (f & F_CARRY) | incflags[b2];
-					hl = (hl & 0xff) + (b2 << 8);
-					break;
-				case 0x25: // DEC H
-					b2 = ((hl >> 8) - 1) & 0xff;
-					f = (f & F_CARRY) | decflags[b2];
-					hl = (hl & 0xff) + (b2 << 8);
-					break;
-				case 0x26: // LD H, nn
-					localPC++;
-					hl = (hl & 0xFF) | (b2 << 8);
-					break;
-				case 0x27: // DAA
-					executeDAA();
-					break;
-				case 0x28: // JR Z, nn
-					if (f >= F_ZERO) {
-						localPC += 1 + offset;
-						if (localPC < 0 || localPC > decoderMaxCruise) {
-							// switch bank
-							setPC(localPC + globalPC);
-						}
-					} else {
-						localPC++;
-					}
-					break;
-				case 0x29: // ADD HL, HL
-					hl *= 2;
-					if ((hl & 0xFFFF0000) != 0) {
-						f = (f & F_ZERO) | F_CARRY; // halfcarry is wrong
-						hl &= 0xFFFF;
-					} else {
-						f &= F_ZERO; // halfcarry is wrong
-					}
-					break;
-				case 0x2A: // LDI A, (HL)
-					a = addressRead(hl++) & 0xff;
-					break;
-				case 0x2B: // DEC HL
-					hl = (hl - 1) & 0xffff;
-					break;
-				case 0x2C: // INC L
-					b2 = (hl + 1) & 0xff;
-					f = (f & F_CARRY) | incflags[b2];
-					hl = (hl & 0xff00) + b2;
-					break;
-				case 0x2D: // DEC L
-					b2 = (hl - 1) & 0xff;
-					f = (f & F_CARRY) | decflags[b2];
-					hl = (hl & 0xff00) + b2;
-					break;
-				case 0x2E: // LD L, nn
-					localPC++;
-					hl = (hl & 0xFF00) | b2;
-					break;
-				case 0x2F: // CPL A
-					a = ((~a) & 0x00FF);
-					f |= F_SUBTRACT | F_HALFCARRY;
-					break;
-				case 0x30: // JR NC, nn
-					if ((f & F_CARRY) == 0) {
-						localPC += 1 + offset;
-						if (localPC < 0 || localPC > decoderMaxCruise) {
-							// switch bank
-							setPC(localPC + globalPC);
-						}
-					} else {
-						localPC++;
-					}
-					break;
-				case 0x31: // LD SP, nnnn
-					localPC += 2;
-					sp = ((b3 & 0xff) << 8) + b2;
-					break;
-				case 0x32:
-					addressWrite(hl--, a); // LD (HL-), A
-					break;
-				case 0x33: // INC SP
-					sp = (sp + 1) & 0xFFFF;
-					break;
-				case 0x34: // INC (HL)
-					b2 = (addressRead(hl) + 1) & 0xff;
-					f = (f & F_CARRY) | incflags[b2];
-					addressWrite(hl, b2);
-					break;
-				case 0x35: // DEC (HL)
-					b2 = (addressRead(hl) - 1) & 0xff;
-					f = (f & F_CARRY) | decflags[b2];
-					addressWrite(hl, b2);
-					break;
-				case 0x36: // LD (HL), nn
-					localPC++;
-					addressWrite(hl, b2);
-					break;
-				case 0x37: // SCF
-					f = (f & F_ZERO) | F_CARRY;
-					break;
-				case 0x38: // JR C, nn
-					if ((f & F_CARRY) != 0) {
-						localPC += 1 + offset;
-						if (localPC < 0 || localPC > decoderMaxCruise) {
-							// switch bank
-							setPC(localPC + globalPC);
-						}
-					} else {
-						localPC += 1;
-					}
-					break;
-				case 0x39: // ADD HL, SP
-					hl += sp;
-					if (hl > 0x0000FFFF) {
-						f = (f & F_ZERO) | F_CARRY; // halfcarry is wrong
-						hl &= 0xFFFF;
-					} else {
-						f &= F_ZERO; // halfcarry is wrong
-					}
-					break;
-				case 0x3A: // LD A, (HL-)
-					a = addressRead(hl--) & 0xff;
-					break;
-				case 0x3B: // DEC SP
-					sp = (sp - 1) & 0xFFFF;
-					break;
-				case 0x3C: // INC A
-					a = (a + 1) & 0xff;
-					f = (f & F_CARRY) | incflags[a];
-					break;
-				case 0x3D: // DEC A
-					a = (a - 1) & 0xff;
-					f = (f & F_CARRY) | decflags[a];
-					break;
-				case 0x3E: // LD A, nn
-					localPC++;
-					a = b2;
-					break;
-				case 0x3F: // CCF
-					f = (f & (F_CARRY | F_ZERO)) ^ F_CARRY;
-					break;
-					
-					// B = r
-				case 0x40: break;
-				case 0x41: b = c; break;
-				case 0x42: b = d; break;
-				case 0x43: b = e; break;
-				case 0x44: b = hl >> 8; break;
-				case 0x45: b = hl & 0xFF; break;
-				case 0x46: b = addressRead(hl) & 0xff; break;
-				case 0x47: b = a; break;
-					
-					// C = r
-				case 0x48: c = b; break;
-				case 0x49: break;
-				case 0x4a: c = d; break;
-				case 0x4b: c = e; break;
-				case 0x4c: c = hl >> 8; break;
-				case 0x4d: c = hl & 0xFF; break;
-				case 0x4e: c = addressRead(hl) & 0xff; break;
-				case 0x4f: c = a; break;
-					
-					// D = r
-				case 0x50: d = b; break;
-				case 0x51: d = c; break;
-				case 0x52: break;
-				case 0x53: d = e; break;
-				case 0x54: d = hl >> 8; break;
-				case 0x55: d = hl & 0xFF; break;
-				case 0x56: d = addressRead(hl) & 0xff; break;
-				case 0x57: d = a; break;
-					
-					// E = r
-				case 0x58: e = b; break;
-				case 0x59: e = c; break;
-				case 0x5a: e = d; break;
-				case 0x5b: break;
-				case 0x5c: e = hl >> 8; break;
-				case 0x5d: e = hl & 0xFF; break;
-				case 0x5e: e = addressRead(hl) & 0xff; break;
-				case 0x5f: e = a; break;
-					
-					// h = r
-				case 0x60: hl = (hl & 0xFF) | (b << 8); break;
-				case 0x61: hl = (hl & 0xFF) | (c << 8); break;
-				case 0x62: hl = (hl & 0xFF) | (d << 8); break;
-				case 0x63: hl = (hl & 0xFF) | (e << 8); break;
-				case 0x64: break;
-				case 0x65: hl = (hl & 0xFF) * 0x0101; break;
-				case 0x66: hl = (hl & 0xFF) | ((addressRead(hl) & 0xff) << 8); break;
-				case 0x67: hl = (hl & 0xFF) | (a << 8); break;
-					
-					// l = r
-				case 0x68: hl = (hl & 0xFF00) | b; break;
-				case 0x69: hl = (hl & 0xFF00) | c; break;
-				case 0x6a: hl = (hl & 0xFF00) | d; break;
-				case 0x6b: hl = (hl & 0xFF00) | e; break;
-				case 0x6c: hl = (hl >> 8) * 0x0101; break;
-				case 0x6d: break;
-				case 0x6e: hl = (hl & 0xFF00) | (addressRead(hl) & 0xff); break;
-				case 0x6f: hl = (hl & 0xFF00) | a; break;
-					
-					// (hl) = r
-				case 0x70: addressWrite(hl, b); break;
-				case 0x71: addressWrite(hl, c); break;
-				case 0x72: addressWrite(hl, d); break;
-				case 0x73: addressWrite(hl, e); break;
-				case 0x74: addressWrite(hl, hl >> 8); break;
-				case 0x75: addressWrite(hl, hl); break;
-				case 0x76: // HALT
-					interruptsEnabled = true;
-
-					if (interruptsArmed) {
-						nextTimedInterrupt = instrCount;
-					} else {
-						while (!interruptsArmed) {
-							instrCount = nextTimedInterrupt;
-							initiateInterrupts();
-						}
-						instrCount++;
-						nextTimedInterrupt = instrCount;
-					}
-
-					break;
-				case 0x77: addressWrite(hl, a); break;
-					
-					// LD A, n:
-				case 0x78: a = b; break;
-				case 0x79: a = c; break;
-				case 0x7a: a = d; break;
-				case 0x7b: a = e; break;
-				case 0x7c: a = (hl >> 8); break;
-				case 0x7d: a = (hl & 0xFF); break;
-				case 0x7e: a = addressRead(hl) & 0xff; break;
-				case 0x7f: break;
-					
-				// ALU, 0x80 - 0xbf
-					
-				case 0xA7: // AND A, A
-					if (a == 0) {
-						f = F_HALFCARRY + F_ZERO;
-					} else {
-						f = F_HALFCARRY;
-					}
-					break;
-					
-				case 0xAF: // XOR A, A (== LD A, 0)
-					a = 0;
-					f = F_ZERO;
-					break;
-				case 0xC0: // RET NZ
-					if (f < F_ZERO) {
-						popPC();
-					}
-					break;
-				case 0xC1: // POP BC
-					c = addressRead(sp++) & 0xff;
-					b = addressRead(sp++) & 0xff;
-					break;
-				case 0xC2: // JP NZ, nnnn
-					if (f < F_ZERO) {
-						setPC(((b3 & 0xff) << 8) + b2);
-					} else {
-						localPC += 2;
-					}
-					break;
-				case 0xC3: // JP nnnn
-					setPC(((b3 & 0xff) << 8) + b2);
-					break;
-				case 0xC4: // CALL NZ, nnnn
-					localPC += 2;
-					if (f < F_ZERO) {
-						pushPC();
-						setPC(((b3 & 0xff) << 8) + b2);
-					}
-					break;
-				case 0xC5: // PUSH BC
-					addressWrite(--sp, b);
-					addressWrite(--sp, c);
-					break;
-				case 0xC6: // ADD A, nn
-					localPC++;
-					if ((a & 0x0F) + (b2 & 0x0F) >= 0x10) {
-						f = F_HALFCARRY;
-					} else {
-						f = 0;
-					}
-					
-					a += b2;
-					
-					if (a > 0xff) {
-						f |= F_CARRY;
-						a &= 0xff;
-					}
-					
-					if (a == 0) {
-						f |= F_ZERO;
-					}
-					break;
-				case 0xC7: // RST 00
-					pushPC();
-					setPC(0x00);
-					break;
-				case 0xC8: // RET Z
-					if (f >= F_ZERO) {
-						popPC();
-					}
-					break;
-				case 0xC9: // RET
-					popPC();
-					break;
-				case 0xCA: // JP Z, nnnn
-					if (f >= F_ZERO) {
-						setPC(((b3 & 0xff) << 8) + b2);
-					} else {
-						localPC += 2;
-					}
-					break;
-				case 0xCB: // Shift/bit test
-					localPC++;
-					executeShift(b2);
-					break;
-				case 0xCC: // CALL Z, nnnn
-					localPC += 2;
-					if (f >= F_ZERO) {
-						pushPC();
-						setPC(((b3 & 0xff) << 8) + b2);
-					}
-					break;
-				case 0xCD: // CALL nnnn
-					localPC += 2;
-					pushPC();
-					setPC(((b3 & 0xff) << 8) + b2);
-					break;
-				case 0xCE: // ADC A, nn
-					localPC++;
-					
-					if ((f & F_CARRY) != 0) {
-						b2++;
-					}
-					if ((a & 0x0F) + (b2 & 0x0F) >= 0x10) {
-						f = F_HALFCARRY;
-					} else {
-						f = 0;
-					}
-					
-					a += b2;
-				
-					if (a > 0xff) {
-						f |= F_CARRY;
-						a &= 0xff;
-					}
-					
-					if (a == 0) {
-						f |= F_ZERO;
-					}
-					break;
-				case 0xCF: // RST 08
-					pushPC();
-					setPC(0x08);
-					break;
-				case 0xD0: // RET NC
-					if ((f & F_CARRY) == 0) {
-						popPC();
-					}
-					break;
-				case 0xD1: // POP DE
-					e = addressRead(sp++) & 0xff;
-					d = addressRead(sp++) & 0xff;
-					break;
-				case 0xD2: // JP NC, nnnn
-					if ((f & F_CARRY) == 0) {
-						setPC(((b3 & 0xff) << 8) + b2);
-					} else {
-						localPC += 2;
-					}
-					break;
-				case 0xD4: // CALL NC, nnnn
-					localPC += 2;
-					if ((f & F_CARRY) == 0) {
-						pushPC();
-						setPC(((b3 & 0xff) << 8) + b2);
-					}
-					break;
-				case 0xD5: // PUSH DE
-					addressWrite(--sp, d);
-					addressWrite(--sp, e);
-					break;
-				case 0xD6: // SUB A, nn
-					localPC++;
-					
-					f = F_SUBTRACT;
-					
-					if ((a & 0x0F) < (b2 & 0x0F)) {
-						f |= F_HALFCARRY;
-					}
-					
-					a -= b2;
-					
-					if (a < 0) {
-						f |= F_CARRY;
-						a &= 0xff;
-					} else if (a == 0) {
-						f |= F_ZERO;
-					}
-					break;
-				case 0xD7: // RST 10
-					pushPC();
-					setPC(0x10);
-					break;
-				case 0xD8: // RET C
-					if ((f & F_CARRY) != 0) {
-						popPC();
-					}
-					break;
-				case 0xD9: // RETI
-					interruptsEnabled = true;
-					if (interruptsArmed) {
-						nextTimedInterrupt = instrCount;
-					}
-					popPC();
-					break;
-				case 0xDA: // JP C, nnnn
-					if ((f & F_CARRY) != 0) {
-						setPC(((b3 & 0xff) << 8) + b2);
-					} else {
-						localPC += 2;
-					}
-					break;
-				case 0xDC: // CALL C, nnnn
-					localPC += 2;
-					if ((f & F_CARRY) != 0) {
-						pushPC();
-						setPC(((b3 & 0xff) << 8) + b2);
-					}
-					break;
-				case 0xDE: // SBC A, nn
-					localPC++;
-					if ((f & F_CARRY) != 0) {
-						b2++;
-					}
-					
-					f = F_SUBTRACT;
-					if ((a & 0x0F) < (b2 & 0x0F)) {
-						f |= F_HALFCARRY;
-					}
-					
-					a -= b2;
-					
-					if (a < 0) {
-						f |= F_CARRY;
-						a &= 0xff;
-					} else if (a == 0) {
-						f |= F_ZERO;
-					}
-					break;
-				case 0xDF: // RST 18
-					pushPC();
-					setPC(0x18);
-					break;
-				case 0xE0: // LDH (FFnn), A
-					localPC++;
-					ioWrite(b2, a);
-					break;
-				case 0xE1: // POP HL
-					hl = ((addressRead(sp + 1) & 0xff) << 8) + (addressRead(sp) & 0xff);
-					sp += 2;
-					break;
-				case 0xE2: // LDH (FF00 + C), A
-					ioWrite(c, a);
-					break;
-				case 0xE5: // PUSH HL
-					addressWrite(--sp, hl >> 8);
-					addressWrite(--sp, hl);
-					break;
-				case 0xE6: // AND nn
-					localPC++;
-					a &= b2;
-					if (a == 0)
-						f = F_ZERO;
-					else
-						f = 0;
-					break;
-				case 0xE7: // RST 20
-					pushPC();
-					setPC(0x20);
-					break;
-				case 0xE8: // ADD SP, nn
-					localPC++;
-					
-					sp += offset;
-					f = 0;
-					if (sp > 0xffff || sp < 0) {
-						sp &= 0xffff;
-						f = F_CARRY;
-					}
-					break;
-				case 0xE9: // JP (HL)
-					setPC(hl);
-					break;
-				case 0xEA: // LD (nnnn), A
-					localPC += 2;
-					addressWrite(((b3 & 0xff) << 8) + b2, a);
-					break;
-				case 0xEE: // XOR A, nn
-					localPC++;
-					a ^= b2;
-					f = 0;
-					if (a == 0)
-						f = F_ZERO;
-					break;
-				case 0xEF: // RST 28
-					pushPC();
-					setPC(0x28);
-					break;
-				case 0xF0: // LDH A, (FFnn)
-					localPC++;
-					a = ioRead(b2) & 0xff; // fixme, direct access?
-					
-					break;
-				case 0xF1: // POP AF
-					f = addressRead(sp++) & 0xff; // fixme, f0 or ff?
-					a = addressRead(sp++) & 0xff;
-					break;
-				case 0xF2: // LD A, (FF00 + C)
-					a = ioRead(c) & 0xff; // fixme, direct access?
-					break;
-				case 0xF3: // DI
-					interruptsEnabled = false;
-					break;
-				case 0xF5: // PUSH AF
-					addressWrite(--sp, a);
-					addressWrite(--sp, f);
-					break;
-				case 0xF6: // OR A, nn
-					localPC++;
-					a |= b2;
-					f = 0;
-					if (a == 0) {
-						f = F_ZERO;
-					}
-					break;
-				case 0xF7: // RST 30
-					pushPC();
-					setPC(0x30);
-					break;
-				case 0xF8: // LD HL, SP + nn  ** HALFCARRY FLAG NOT SET ***
-					localPC++;
-					hl = (sp + offset);
-					f = 0;
-					if ((hl & 0xffff0000) != 0) {
-						f = F_CARRY;
-						hl &= 0xFFFF;
-					}
-					break;
-				case 0xF9: // LD SP, HL
-					sp = hl;
-					break;
-				case 0xFA: // LD A, (nnnn)
-					localPC += 2;
-					a = addressRead(((b3 & 0xff) << 8) + b2) & 0xff;
-					break;
-				case 0xFB: // EI
-					interruptEnableRequested = true;
-					nextTimedInterrupt = instrCount + cyclesPerInstr[b1] + 1; // fixme, this is an ugly hack
+			case 0xF9: // LD SP, HL
+				sp = hl;
+				break;
+			case 0xFA: // LD A, (nnnn)
+				localPC += 2;
+				a = addressRead(((b3 & 0xff) << 8) + b2) & 0xff;
+				break;
+			case 0xFB: // EI
+				interruptEnableRequested = true;
+				nextTimedInterrupt = instrCount + cyclesPerInstr[b1] + 1; // fixme, this is an ugly hack
+				break;
+			case 0xFE: // CP nn
+				localPC++;
+				flagHalf = a ^ b2;
+				flagResult = a - b2;
+				flagMode = FLAGS_SUB;
+				break;
+			case 0xFF: // RST 38
+				pushPC();
+				setPC(0x38);
+				break;
+				
+			default:
+				throw new RuntimeException(Integer.toHexString(b1));
+		}
+	}
+	
+	/** Counts the instruction, and samples its pc and bank now and then */
+	private final void profile(int b1, int b2) {
+		if (profiler.instruction(b1, b2)) {
+			int pc = localPC + globalPC - 1;
+			int bank = 0;
+			if (pc >= 0x4000 && pc < 0x8000)
+				bank = currentRomBank;
+			else if (pc >= 0xa000 && pc < 0xc000)
+				bank = currentRamBank;
+			else if (pc >= 0xd000 && pc < 0xe000 && gbcFeatures)
+				bank = gbcRamBank;
+			profiler.sample(bank, pc);
+		}
+	}
+	
+	public final void run() {
+		try {
+		terminate = false;
+		
+		System.gc();
+		int startTime = (int) clock.currentTimeMillis();
+		
+		graphicsChip.timer = startTime;
+		
+		execute();
+		
+		if (MeBoy.profile)
+			profiler.dump();
+		} catch (Exception ex) {
+			terminate();
+			ex.printStackTrace();
+			MeBoy.showError(null, "error#20", ex);
+		}
+	}
+	
+	/** Runs the given number of frames on the calling thread, returning after
+	 *  the last vblank. Unlike run(), nothing is paced against the clock, the
+	 *  display isn't waited for and no frames are skipped: each frame is drawn
+	 *  and passed to the video output (if any). Errors are thrown to the caller.
+	 */
+	public final void runFrames(int frames) {
+		if (frames <= 0)
+			return;
+		
+		terminate = false;
+		graphicsChip.drawFrames(frames);
+		try {
+			execute();
+		} finally {
+			graphicsChip.stepFrames = 0; // in case terminate was set from outside
+		}
+	}
+	
+	/** Runs exactly one frame, see runFrames. */
+	public final void stepUntilVBlank() {
+		runFrames(1);
+	}
+	
+	/** The interpreter loop, runs until terminate is set. */
+	private final void execute() {
+		int b1, b2, b3;
+		
+		while (!terminate) {
+			if (blockPos >= blockLength && decoderBlockBase >= 0 && localPC <= decoderMaxCruise)
+				fetchBlock();
+			
+			if (blockPos < blockLength) {
+				int op = block[blockPos++];
+				b1 = op & 0xff;
+				b2 = (op >> 8) & 0xff;
+				b3 = op >> 16;
+				localPC++;
+			} else if (localPC <= decoderMaxCruise) {
+				b1 = decoderMemory[localPC++] & 0xff;
+				b2 = decoderMemory[localPC] & 0xff;
+				b3 = decoderMemory[localPC + 1];
+			} else {
+				int pc = localPC + globalPC;
+				b1 = addressRead(pc++) & 0xff;
+				b2 = addressRead(pc) & 0xff;
+				b3 = addressRead(pc + 1);
+				setPC(pc);
+			}
+			
+			if (MeBoy.profile)
+				profile(b1, b2);
+			
+			// The opcode handlers are split in four groups, keeping this loop
+			// and each handler small enough for the VM to compile.
+			switch (b1 >> 6) {
+				case 0:
+					execute00(b1, b2, b3);
 					break;
-				case 0xFE: // CP nn
-					localPC++;
-					f = ((a & 0x0F) < (b2 & 0x0F)) ? F_HALFCARRY | F_SUBTRACT : F_SUBTRACT;
-					if (a == b2) {
-						f |= F_ZERO;
-					} else if (a < b2) {
-						f |= F_CARRY;
-					}
+				case 1:
+					executeLoad(b1);
 					break;
-				case 0xFF: // RST 38
-					pushPC();
-					setPC(0x38);
+				case 2:
+					executeALU(b1);
 					break;
-					
 				default:
-					if ((b1 & 0xC0) == 0x80) { // Byte 0x10?????? indicates ALU op, i.e. 0x80 - 0xbf
-						executeALU(b1);
-					} else {
-						throw new RuntimeException(Integer.toHexString(b1));
-					}
+					executeC0(b1, b2, b3);
 			}
 			
 			instrCount += cyclesPerInstr[b1];
 			
 			if (instrCount - nextTimedInterrupt >= 0) {
+				if (MeBoy.profile)
+					profiler.eventStart();
 				initiateInterrupts();
+				if (MeBoy.profile)
+					profiler.eventEnd();
 				
 				if (interruptsArmed && interruptsEnabled) {
 					checkInterrupts();
 				}
 			}
 		}
-		} catch (Exception ex) {
-			terminate();
-			ex.printStackTrace();
-			MeBoy.showError(null, "error#20", ex);
+	}
+	
+	/** Runs the given number of frames on the calling thread, unthrottled and
+	 *  without drawing, starting from the current state. The state is restored
+	 *  afterwards, so running the same suspended game on two builds gives
+	 *  comparable numbers. Returns instructions per second, or -1 if the
+	 *  emulation failed.
+	 */
+	public final int benchmark(int frames) {
+		byte[] state = flatten();
+		int startCount = instrCount;
+		int startHits = blockHits;
+		int startMisses = blockMisses;
+		int startSkips = idleSkips;
+		long startIdle = idleCycles;
+		
+		long time;
+		int instrs;
+		boolean finished;
+		graphicsChip.benchmarkFrames = frames;
+		graphicsChip.skipping = true;
+		try {
+			System.gc();
+			long startTime = System.currentTimeMillis();
+			run();
+			time = System.currentTimeMillis() - startTime;
+			instrs = instrCount - startCount;
+			finished = graphicsChip != null && graphicsChip.benchmarkFrames == 0;
+		} finally {
+			// also when run() ended early, so that resuming continues the game as it was
+			if (graphicsChip != null) {
+				graphicsChip.benchmarkFrames = 0;
+				graphicsChip.skipping = false;
+				unflatten(state);
+			}
 		}
+		
+		if (!finished)
+			return -1; // run() failed and has reported the error
+		
+		if (time <= 0)
+			time = 1;
+		int rate = (int) (instrs * 1000L / time);
+		MeBoy.log("Benchmark: " + frames + " frames, " + instrs + " instrs in " + time + " ms = "
+				+ rate + " instrs/s, block cache " + (blockHits - startHits) + " hits, "
+				+ (blockMisses - startMisses) + " misses, " + (idleSkips - startSkips) + " idle skips saving "
+				+ (idleCycles - startIdle) + " instrs");
+		return rate;
+	}
+	
+	/** A copy loop that is heavy on register pair opcodes, see benchmarkPairs() */
+	private static final byte[] PAIR_BENCHMARK = {
+		(byte) 0x31, (byte) 0xfe, (byte) 0xdf, // LD SP, DFFE
+		(byte) 0x01, (byte) 0x00, (byte) 0x40, // LD BC, 4000
+		(byte) 0x11, (byte) 0x00, (byte) 0xd0, // LD DE, D000
+		(byte) 0x0a, // LD A, (BC)
+		(byte) 0x12, // LD (DE), A
+		(byte) 0x03, // INC BC
+		(byte) 0x13, // INC DE
+		(byte) 0xc5, (byte) 0xd5, (byte) 0xd1, (byte) 0xc1, // PUSH BC, PUSH DE, POP DE, POP BC
+		(byte) 0x21, (byte) 0x00, (byte) 0x00, // LD HL, 0000
+		(byte) 0x09, (byte) 0x19, // ADD HL, BC; ADD HL, DE
+		(byte) 0x7a, (byte) 0xfe, (byte) 0xdf, // LD A, D; CP DF
+		(byte) 0x20, (byte) 0xee, // JR NZ, C009
+		(byte) 0x18, (byte) 0xe6, // JR C003
+	};
+	
+	/**
+	 * Like benchmark(), but runs a copy loop from work ram that mostly uses
+	 * the BC and DE register pairs, instead of the game.
+	 */
+	public final int benchmarkPairs(int frames) {
+		byte[] state = flatten();
+		
+		interruptsEnabled = false;
+		interruptEnableRequested = false;
+		for (int i = 0; i < PAIR_BENCHMARK.length; i++)
+			addressWrite(0xc000 + i, PAIR_BENCHMARK[i]);
+		setPC(0xc000);
+		
+		int rate = benchmark(frames);
+		unflatten(state);
+		return rate;
 	}
 	
 	// IOHandler
@@ -2161,13 +2819,15 @@ public class Dmgcpu implements Runnable {
 			return output;
 		} else if (num == 0x04) {
 			// DIV
+			idleTimeRead = true;
 			return (byte) ((instrCount - divReset - 1) / INSTRS_PER_DIV);
 		} else if (num == 0x05) {
 			// TIMA
-			if (!timaActive)
+			idleTimeRead = true;
+			if (!eventActive[EVENT_TIMA])
 				return registers[num];
 			
-			return ((instrCount + instrsPerTima * 0x100 - nextTimaOverflow) / instrsPerTima);
+			return ((instrCount + instrsPerTima * 0x100 - eventTime[EVENT_TIMA]) / instrsPerTima);
 		}
 		
 		return registers[num];
@@ -2175,6 +2835,9 @@ public class Dmgcpu implements Runnable {
 	
 	/** Write data to IO Ram */
 	public void ioWrite(int num, int data) {
+		if (graphicsRecorder != null)
+			graphicsRecorder.ioWrite(num, data);
+		
 		switch (num) {
 			case 0x00: // FF00 - Joypad
 				int output = 0;
@@ -2196,17 +2859,8 @@ public class Dmgcpu implements Runnable {
 			case 0x02: // Serial
 				registers[0x02] = (byte) data;
 				
-				if ((registers[0x02] & 0x01) == 1) {
-					registers[0x01] = (byte) 0xFF; // when no LAN connection, always receive 0xFF from port.  Simulates empty socket.
-					if ((registers[0xff] & INT_SER) != 0) {
-						interruptsArmed = true;
-						registers[0x0f] |= INT_SER;
-						
-						if (interruptsEnabled)
-							nextTimedInterrupt = instrCount;
-					}
-					registers[0x02] &= 0x7F;
-				}
+				if ((registers[0x02] & 0x01) == 1)
+					schedule(EVENT_SERIAL, instrCount); // internal clock, done after this instruction
 				
 				break;
 				
@@ -2215,23 +2869,22 @@ public class Dmgcpu implements Runnable {
 				break;
 				
 			case 0x05: // TIMA
-				if (timaActive)
-					nextTimaOverflow = instrCount + instrsPerTima * (0x100 - (data & 0xff));
+				if (eventActive[EVENT_TIMA])
+					schedule(EVENT_TIMA, instrCount + instrsPerTima * (0x100 - (data & 0xff)));
 				break;
 				
 			case 0x07: // TAC
 				if ((data & 0x04) != 0) {
-					if (!timaActive) {
-						timaActive = true;
-						nextTimaOverflow = instrCount + instrsPerTima * (0x100 - (registers[0x05] & 0xff));
+					if (!eventActive[EVENT_TIMA]) {
+						schedule(EVENT_TIMA, instrCount + instrsPerTima * (0x100 - (registers[0x05] & 0xff)));
 					}
 					
 					instrsPerTima = 4 << (2 * ((data-1)&3));
 					// 0-3 -> {256, 4, 16, 64}
 				} else {
-					if (timaActive) {
-						timaActive = false;
-						registers[0x05] = (byte) ((instrCount + instrsPerTima * 0x100 - nextTimaOverflow) / instrsPerTima);
+					if (eventActive[EVENT_TIMA]) {
+						eventActive[EVENT_TIMA] = false;
+						registers[0x05] = (byte) ((instrCount + instrsPerTima * 0x100 - eventTime[EVENT_TIMA]) / instrsPerTima);
 					}
 				}
 				registers[num] = (byte) data;
@@ -2337,6 +2990,10 @@ public class Dmgcpu implements Runnable {
 				System.arraycopy(memory[data >> 5], (data << 8) & 0x1f00, oam, 0, 0xa0);
 				// This is meant to be run at the same time as the CPU is executing
 				// instructions, but I don't think it's crucial.
+				if (graphicsRecorder != null) {
+					for (int i = 0; i < 0xa0; i++)
+						graphicsRecorder.oamWrite(i, oam[i] & 0xff);
+				}
 				break;
 				
 			case 0x47: // FF47 - BKG and WIN palette
@@ -2399,7 +3056,10 @@ public class Dmgcpu implements Runnable {
 						int dmaLen = ((data & 0x7F) * 16) + 16;
 	
 						for (int r = 0; r < dmaLen; r++) {
-							graphicsChip.addressWrite(dmaDst + r, (byte) addressRead(dmaSrc + r));
+							int b = addressRead(dmaSrc + r);
+							if (graphicsRecorder != null)
+								graphicsRecorder.vramWrite(dmaDst + r, b);
+							graphicsChip.addressWrite(dmaDst + r, (byte) b);
 						}
 						// fixme, move instrCount?
 						
@@ -2471,6 +3131,7 @@ public class Dmgcpu implements Runnable {
 					} else {
 						gbcRamBank = data & 0x07;
 					}
+					mapWorkRam();
 					
 					if (globalPC >= 0xC000) {
 						// verify cruising if executing in RAM
@@ -2485,10 +3146,14 @@ public class Dmgcpu implements Runnable {
 				interruptsArmed = (registers[0xff] & registers[0x0f]) != 0;
 				if (interruptsArmed && interruptsEnabled)
 					nextTimedInterrupt = instrCount;
+				if (codePages[HRAM_PAGE])
+					invalidateCodePage(HRAM_PAGE);
 				break;
 
 			default:
 				registers[num] = (byte) data;
+				if (num >= 0x80 && codePages[HRAM_PAGE])
+					invalidateCodePage(HRAM_PAGE);
 				break;
 		}
 	}
@@ -2509,7 +3174,16 @@ public class Dmgcpu implements Runnable {
 			return;
 		}
 
-		java.io.InputStream is = getClass().getResourceAsStream(cartName + '0');
+		java.io.InputStream is = null;
+		boolean perBank = false;
+		try {
+			is = storage.open(romBankName(cartName, 0));
+			perBank = is != null;
+			if (is == null)
+				is = storage.open(cartName + '0'); // built before banks had their own resources
+		} catch (java.io.IOException ex) {
+			// reported below
+		}
 		if (is == null) {
 			throw new RuntimeException(MeBoy.literal[49] + " (" + cartName + ")");
 		}
@@ -2538,10 +3212,10 @@ public class Dmgcpu implements Runnable {
 				
 				// Read ROM into memory
 				for (int i = 1; i < numRomBanks * 2; i++) {
-					if ((i & 15) == 0) {
+					if (perBank ? (i & 1) == 0 : (i & 15) == 0) {
 						// open next file
 						is.close();
-						is = getClass().getResourceAsStream(cartName + (i >> 4));
+						is = storage.open(perBank ? romBankName(cartName, i >> 1) : cartName + (i >> 4));
 					}
 					
 					total = 0x2000;
@@ -2560,13 +3234,13 @@ public class Dmgcpu implements Runnable {
 				do {
 					total -= is.read(rom[1], 0x2000 - total, total);
 				} while (total > 0);
-				loadedRomBanks = 1;
+				initLazyLoading(numRomBanks, new RomBankReader(storage, cartName,
+						perBank ? RomBankReader.BANKS : RomBankReader.CHUNKS));
 			}
 			is.close();
 			
 			memory[0] = rom[0];
 			memory[1] = rom[1];
-			romTouch = new int[rom.length/2];
 			mapRom(1);
 			
 			int numRamBanks = getNumRAMBanks();
@@ -2580,7 +3254,7 @@ public class Dmgcpu implements Runnable {
 			cartRam = new byte[numRamBanks][0x2000];
 			memory[5] = cartRam[0];
 			
-			lastRtcUpdate = (int) System.currentTimeMillis();
+			lastRtcUpdate = (int) clock.currentTimeMillis();
 		} catch (Exception ex) {
 			if (MeBoy.debug)
 				ex.printStackTrace();
@@ -2588,6 +3262,16 @@ public class Dmgcpu implements Runnable {
 		}
 	}
 
+	/** Sets up the bank cache of a lazily loaded cart, with bank 0 loaded */
+	private final void initLazyLoading(int numRomBanks, RomBankReader reader) {
+		romReader = reader;
+		loadedRomBanks = 1;
+		romCache = new RomBankCache(numRomBanks, MeBoy.lazyLoadingThreshold - 1); // bank 0 stays loaded
+		romBankUse = new int[numRomBanks];
+		if (MeBoy.romPrefetchSlots > 0)
+			romPrefetcher = new RomPrefetcher(reader, numRomBanks, MeBoy.romPrefetchSlots);
+	}
+
 	private final void initCartridgeFromBytes(byte[] romData) {
 		try {
 			int headerOffset = 0;
@@ -2630,7 +3314,6 @@ public class Dmgcpu implements Runnable {
 
 			memory[0] = rom[0];
 			memory[1] = rom[1];
-			romTouch = new int[rom.length >> 1];
 			mapRom(1);
 
 			int numRamBanks = getNumRAMBanks();
@@ -2640,7 +3323,7 @@ public class Dmgcpu implements Runnable {
 			cartRam = new byte[numRamBanks][0x2000];
 			memory[5] = cartRam[0];
 
-			lastRtcUpdate = (int) System.currentTimeMillis();
+			lastRtcUpdate = (int) clock.currentTimeMillis();
 
 			MeBoy.log("Loaded external ROM '" + cartName + "' (" + (numRomBanks * 16) + " kB).");
 		} catch (RuntimeException ex) {
@@ -2654,19 +3337,20 @@ public class Dmgcpu implements Runnable {
 	}
 
 	private final void initCartridgeFromFile(String fileUrl) {
-		FileConnection fc = null;
 		java.io.InputStream is = null;
 		try {
-			fc = (FileConnection) Connector.open(fileUrl, Connector.READ);
-			if (!fc.exists() || fc.isDirectory()) {
+			long fileSize = storage.size(fileUrl);
+			if (fileSize < 0) {
 				throw new RuntimeException("Not a ROM file: " + fileUrl);
 			}
-			long fileSize = fc.fileSize();
 			if (fileSize < 0x4000) {
 				throw new RuntimeException("ROM too small: " + fileSize);
 			}
 
-			is = fc.openInputStream();
+			is = storage.open(fileUrl);
+			if (is == null) {
+				throw new RuntimeException("Not a ROM file: " + fileUrl);
+			}
 			byte[] firstHalf = new byte[0x2000];
 			int read = 0;
 			while (read < firstHalf.length) {
@@ -2701,9 +3385,16 @@ public class Dmgcpu implements Runnable {
 			}
 			gbcRamBank = 1;
 
-			rom = new byte[numRomBanks * 2][0x2000];
+			boolean lazy = numRomBanks > MeBoy.lazyLoadingThreshold;
+			if (lazy) {
+				// only bank 0 now, the rest is read from the file when mapped
+				rom = new byte[numRomBanks * 2][];
+				rom[1] = new byte[0x2000];
+			} else {
+				rom = new byte[numRomBanks * 2][0x2000];
+			}
 			rom[0] = firstHalf;
-			for (int i = 1; i < rom.length; i++) {
+			for (int i = 1; i < rom.length && rom[i] != null; i++) {
 				int offset = 0;
 				while (offset < 0x2000) {
 					int r = is.read(rom[i], offset, 0x2000 - offset);
@@ -2716,11 +3407,14 @@ public class Dmgcpu implements Runnable {
 					break;
 				}
 			}
-			loadedRomBanks = rom.length >> 1;
+			if (lazy) {
+				initLazyLoading(numRomBanks, new RomBankReader(storage, fileUrl, RomBankReader.FILE));
+			} else {
+				loadedRomBanks = rom.length >> 1;
+			}
 
 			memory[0] = rom[0];
 			memory[1] = rom[1];
-			romTouch = new int[rom.length >> 1];
 			mapRom(1);
 
 			int numRamBanks = getNumRAMBanks();
@@ -2729,7 +3423,7 @@ public class Dmgcpu implements Runnable {
 			}
 			cartRam = new byte[numRamBanks][0x2000];
 			memory[5] = cartRam[0];
-			lastRtcUpdate = (int) System.currentTimeMillis();
+			lastRtcUpdate = (int) clock.currentTimeMillis();
 
 			MeBoy.log("Loaded external ROM file '" + fileUrl + "' (" + (numRomBanks * 16) + " kB).");
 		} catch (RuntimeException ex) {
@@ -2746,12 +3440,6 @@ public class Dmgcpu implements Runnable {
 				}
 			} catch (Exception e) {
 			}
-			try {
-				if (fc != null) {
-					fc.close();
-				}
-			} catch (Exception e) {
-			}
 		}
 	}
 
@@ -2767,209 +3455,372 @@ public class Dmgcpu implements Runnable {
 	/** Maps a ROM bank into the CPU address space at 0x4000 */
 	private final void mapRom(int bankNo) {
 		bankNo = bankNo & ((rom.length >> 1) -1);
+		boolean switched = bankNo != currentRomBank;
+		if (switched) {
+			romBankSwitches++;
+			Metrics.romBankSwitches++;
+			
+			if (romCache != null && bankNo != 0 && rom[bankNo * 2] != null) {
+				romCache.touch(bankNo);
+				romCache.hits++;
+				Metrics.romBankHits++;
+			}
+			if (romPrefetcher != null)
+				romPrefetcher.learn(currentRomBank, bankNo);
+			if (romBankUse != null)
+				romBankUse[bankNo]++;
+		}
 		currentRomBank = bankNo;
 		
-		romTouch[bankNo] = instrCount;
-		if (rom[bankNo * 2] == null) {
-			try {
-				byte[][] newmem = new byte[2][];
-				if (loadedRomBanks >= MeBoy.lazyLoadingThreshold) {
-					// overwrite previous bank
-					
-					int candidate = 0; // candidate to be overwritten
-					int candidateAge = 0x80000000;
-					
-					int bankCount = rom.length >> 1;
-					
-					// look for the oldest bank
-					for (int i = 1; i < bankCount; i++) {
-						if (rom[i * 2] != null) {
-							int age = instrCount - romTouch[i];
-							if (age > candidateAge) {
-								candidateAge = age;
-								candidate = i;
-							}
-						}
-					}
-					
-					newmem[0] = rom[candidate*2];
-					newmem[1] = rom[candidate*2+1];
-					rom[candidate*2] = null;
-					rom[candidate*2+1] = null;
-				} else {
-					newmem[0] = new byte[0x2000];
-					newmem[1] = new byte[0x2000];
-					
-					loadedRomBanks++;
-				}
-				
-				int file = bankNo >> 3;
-				int offset = (bankNo & 7) * 0x4000;
-				java.io.InputStream is = getClass().getResourceAsStream(cartName + file);
-				
-				if (is == null || is.skip(offset) != offset)
-					throw new RuntimeException("Failed skipping to " + bankNo);
+		if (rom[bankNo * 2] == null)
+			loadRomBank(bankNo);
+		if (switched && romPrefetcher != null)
+			romPrefetcher.predict(bankNo, rom);
+		
+		memory[2] = rom[bankNo*2];
+		memory[3] = rom[bankNo*2+1];
+		setPages(readPages, readOffsets, 0x40, 0x20, memory[2], 0);
+		setPages(readPages, readOffsets, 0x60, 0x20, memory[3], 0);
+		if ((globalPC & 0xC000) == 0x4000) {
+			setPC(localPC + globalPC);
+		}
+	}
+	
+	/** Loads a ROM bank of a lazily loaded cart, into the buffers of the least recently used bank if the cache is full */
+	private final void loadRomBank(int bankNo) {
+		romBankMisses++;
+		romCache.misses++;
+		Metrics.romBankLoads++;
+		try {
+			byte[][] newmem = new byte[2][];
+			if (romCache.isFull()) {
+				// overwrite the least recently used bank
+				int eldest = romCache.removeEldest();
+				Metrics.romBankEvictions++;
 				
-				for (int i = bankNo*2; i < bankNo*2+2; i++) {
-					int total = 0x2000;
-					rom[i] = newmem[i & 1];
-					do {
-						total -= is.read(rom[i], 0x2000 - total, total);
-					} while (total > 0);
-				}
-				// MeBoy.log("loaded bank " + bankNo + " from " + file + " -> " + loadedRomBanks);
+				newmem[0] = rom[eldest*2];
+				newmem[1] = rom[eldest*2+1];
+				rom[eldest*2] = null;
+				rom[eldest*2+1] = null;
+			} else {
+				newmem[0] = new byte[0x2000];
+				newmem[1] = new byte[0x2000];
 				
-				is.close();
-			} catch (Exception ex) {
-				if (MeBoy.debug)
-					ex.printStackTrace();
+				loadedRomBanks++;
+			}
+			
+			if (romPrefetcher == null || !romPrefetcher.take(bankNo, newmem))
+				romReader.read(bankNo, newmem);
+			// MeBoy.log("loaded bank " + bankNo + " -> " + loadedRomBanks);
+			
+			rom[bankNo*2] = newmem[0];
+			rom[bankNo*2+1] = newmem[1];
+			romCache.add(bankNo);
+		} catch (Exception ex) {
+			if (MeBoy.debug)
+				ex.printStackTrace();
+	
+			throw new RuntimeException("error#22, " + ex);
+		}
+	}
+	
+	/** True if the cart is lazily loaded, so that its bank use is recorded */
+	public final boolean hasBankProfile() {
+		return romBankUse != null;
+	}
+	
+	/**
+	 * Returns the bank profile to store with the battery save: the use count
+	 * of each bank this session, plus half the counts of the profile loaded
+	 * at the start, so that older sessions fade out. Returns null unless the
+	 * cart is lazily loaded.
+	 */
+	public final byte[] getBankProfile() {
+		if (romBankUse == null)
+			return null;
+		
+		int bankCount = romBankUse.length;
+		byte[] profile = new byte[5 + bankCount * 4];
+		profile[0] = 1; // version
+		setInt(profile, 1, bankCount);
+		for (int i = 0; i < bankCount; i++) {
+			int count = romBankUse[i];
+			if (romBankProfile != null)
+				count += romBankProfile[i] >> 1;
+			setInt(profile, 5 + i * 4, count);
+		}
+		return profile;
+	}
 	
-				throw new RuntimeException("error#22, " + ex);
+	/**
+	 * Preloads the most used banks of an earlier session (see
+	 * getBankProfile) into the free part of the bank cache. The banks are
+	 * read in file order, so that the reader only skips forward, and the
+	 * hottest end up most recently used.
+	 * Profiles of other carts are ignored.
+	 */
+	public final void loadBankProfile(byte[] profile) {
+		if (romBankUse == null || profile == null || profile.length < 5 || profile[0] != 1
+				|| getInt(profile, 1) != romBankUse.length || profile.length != 5 + romBankUse.length * 4)
+			return;
+		
+		int bankCount = romBankUse.length;
+		romBankProfile = new int[bankCount];
+		for (int i = 0; i < bankCount; i++)
+			romBankProfile[i] = getInt(profile, 5 + i * 4);
+		
+		// pick the hottest banks that are not loaded, up to the free capacity
+		int free = romCache.capacity() - romCache.size();
+		int[] picked = new int[Math.max(free, 0)];
+		boolean[] chosen = new boolean[bankCount];
+		int count = 0;
+		while (count < picked.length) {
+			int best = -1;
+			for (int i = 1; i < bankCount; i++) {
+				if (!chosen[i] && rom[i * 2] == null && romBankProfile[i] > 0
+						&& (best < 0 || romBankProfile[i] > romBankProfile[best]))
+					best = i;
 			}
+			if (best < 0)
+				break;
+			chosen[best] = true;
+			picked[count++] = best;
 		}
+		if (count == 0)
+			return;
 		
-		memory[2] = rom[bankNo*2];
-		memory[3] = rom[bankNo*2+1];
-		if ((globalPC & 0xC000) == 0x4000) {
-			setPC(localPC + globalPC);
+		try {
+			for (int bankNo = 1; bankNo < bankCount; bankNo++) {
+				if (!chosen[bankNo])
+					continue;
+				byte[][] newmem = new byte[][] {new byte[0x2000], new byte[0x2000]};
+				romReader.read(bankNo, newmem);
+				rom[bankNo * 2] = newmem[0];
+				rom[bankNo * 2 + 1] = newmem[1];
+				loadedRomBanks++;
+			}
+		} catch (Exception ex) {
+			// banks that were not preloaded are loaded when mapped
+			if (MeBoy.debug)
+				ex.printStackTrace();
+		}
+		
+		// coldest first, so that the hottest are evicted last
+		for (int i = count - 1; i >= 0; i--) {
+			if (rom[picked[i] * 2] != null)
+				romCache.add(picked[i]);
 		}
+		MeBoy.log("Bank profile: " + loadedRomBanks + " of " + bankCount + " ROM banks loaded.");
+	}
+	
+	/** Name of the resource holding one ROM bank of a bundled cart */
+	static final String romBankName(String cartName, int bankNo) {
+		return cartName + '/' + bankNo;
 	}
 	
 	private final void mapRam(int bankNo) {
 		currentRamBank = bankNo;
 		if (currentRamBank < cartRam.length)
 			memory[5] = cartRam[currentRamBank];
+		mapCartRamPages();
 	}
 	
-	/** Writes to an address in CPU address space.  Writes to ROM may cause a mapping change.
-		*/
-	private final void cartridgeWrite(int addr, int data) {
-		int halfbank = addr >> 13;
-		int subaddr = addr & 0x1fff;
-		
+	/** Maps cart ram at 0xA000. The rtc registers are handled by the slow
+	 *  paths, and writes only go straight to ram when the mbc allows it.
+	 */
+	private final void mapCartRamPages() {
+		byte[] ram = (currentRamBank >= 8) ? null : memory[5];
+		setPages(readPages, readOffsets, 0xa0, 0x20, ram, 0);
+		if (mbcWriteKind == WRITE_IGNORE)
+			ram = null;
+		setPages(writePages, writeOffsets, 0xa0, 0x20, ram, 0);
+	}
+	
+	/** Sets the write page kinds for the cartridge type and maps cart ram */
+	private final void initWritePages() {
 		switch (cartType) {
-			case 0:
-				// ROM Only
-				break;
-
 			case 1:
 			case 2:
 			case 3:
-				// MBC1
-				if (halfbank == 0) {
-					cartRamEnabled = ((data & 0x0F) == 0x0A);
-				} else if (halfbank == 1) {
-					int bankNo = data & 0x1F;
-					if (bankNo == 0)
-						bankNo = 1;
-					mapRom((currentRomBank & 0x60) | bankNo);
-				} else if (halfbank == 2) {
-					if (mbc1LargeRamMode) {
-						mapRam(data & 0x03);
-					} else {
-						mapRom((currentRomBank & 0x1F) | ((data & 0x03) << 5));
-					}
-				} else if (halfbank == 3) {
-					mbc1LargeRamMode = ((data & 1) == 1);
-				} else if (halfbank == 5 && memory[halfbank] != null) {
-					// fixme, we should check cartRamEnabled, but that seems
-					// to break Pokemon yellow... (which uses MBC5, but I'm erring
-					// on the side of caution).
-					memory[halfbank][subaddr] = (byte) data;
-					markBatterySaveDirty();
-				}
+				mbcWriteKind = WRITE_MBC1;
 				break;
-				
 			case 5:
 			case 6:
-				// MBC2
-				if ((halfbank == 1)) {
-					if ((addr & 0x0100) != 0) {
-						int bankNo = data & 0x0F;
-						if (bankNo == 0)
-							bankNo = 1;
-						mapRom(bankNo);
-					} else {
-						cartRamEnabled = ((data & 0x0F) == 0x0A);
-					}
-				} else if (halfbank == 5 && memory[halfbank] != null) {
-					// fixme, we should check cartRamEnabled, but that seems
-					// to break Pokemon yellow... (which uses MBC5, but I'm erring
-					// on the side of caution).
-					memory[halfbank][subaddr] = (byte) data;
-					markBatterySaveDirty();
-				}
-				
+				mbcWriteKind = WRITE_MBC2;
 				break;
-				
 			case 0x0F:
 			case 0x10:
 			case 0x11:
 			case 0x12:
 			case 0x13:
-				// MBC3
-				if (halfbank == 0) {
-					cartRamEnabled = ((data & 0x0F) == 0x0A);
-				} else if (halfbank == 1) {
-					// Select ROM bank
-					int bankNo = data & 0x7F;
-					if (bankNo == 0)
-						bankNo = 1;
-					mapRom(bankNo);
-				} else if (halfbank == 2) {
-					// Select RAM bank
-					if (cartRam.length > 0)
-						mapRam(data & 0x0f); // only 0-3 for ram banks, 8+ for RTC
-				} else if (halfbank == 3) {
-					// fixme, rtc latch
-				} else if (halfbank == 5) {
-					// memory write
-					if (currentRamBank >= 8) {
-						// rtc register
-						rtcSync();
-						rtcReg[currentRamBank - 8] = (byte) data;
-						markBatterySaveDirty();
-					} else if (memory[halfbank] != null) {
-						// normal memory
-						// fixme, we should check cartRamEnabled, but that seems
-						// to break Pokemon yellow... (which uses MBC5, but I'm erring
-						// on the side of caution).
-						memory[halfbank][subaddr] = (byte) data;
-						markBatterySaveDirty();
-					}
-				}
+				mbcWriteKind = WRITE_MBC3;
 				break;
-				
-				
 			case 0x19:
 			case 0x1A:
 			case 0x1B:
 			case 0x1C:
 			case 0x1D:
 			case 0x1E:
-				// MBC5
-				if (addr >> 12 == 1) {
-					cartRamEnabled = ((data & 0x0F) == 0x0A);
-				} else if (addr >> 12 == 2) {
-					int bankNo = (currentRomBank & 0xFF00) | data;
-					// note: bank 0 can be mapped to 0x4000
-					mapRom(bankNo);
-				} else if (addr >> 12 == 3) {
-					int bankNo = (currentRomBank & 0x00FF) | ((data & 0x01) << 8);
-					// note: bank 0 can be mapped to 0x4000
-					mapRom(bankNo);
-				} else if (halfbank == 2) {
-					if (cartRam.length > 0)
-						mapRam(data & 0x0f);
-				} else if (halfbank == 5) {
-					if (memory[halfbank] != null) {
-						// fixme, we should check cartRamEnabled, but that seems
-						// to break Pokemon yellow...
-						memory[halfbank][subaddr] = (byte) data;
-						markBatterySaveDirty();
-					}
-				}
+				mbcWriteKind = WRITE_MBC5;
 				break;
+			default:
+				// ROM only
+				mbcWriteKind = WRITE_IGNORE;
+		}
+		
+		for (int i = 0; i < 0x100; i++) {
+			if (i < 0x80 || (i >= 0xa0 && i < 0xc0))
+				writeKinds[i] = mbcWriteKind;
+			else if (i < 0xa0)
+				writeKinds[i] = WRITE_VRAM;
+		}
+		writeKinds[0xfe] = WRITE_OAM;
+		writeKinds[0xff] = WRITE_IO;
+		
+		mapCartRamPages();
+	}
+	
+	/** Maps the video ram bank at 0x8000 */
+	final void mapVideoRam(byte[] videoRam) {
+		memory[4] = videoRam;
+		setPages(readPages, readOffsets, 0x80, 0x20, videoRam, 0);
+	}
+	
+	/** Maps main ram at 0xC000, including the switched GBC bank and the echo at 0xE000 */
+	private final void mapWorkRam() {
+		for (int i = 0; i < 2; i++) {
+			byte[][] pages = (i == 0) ? readPages : writePages;
+			int[] offsets = (i == 0) ? readOffsets : writeOffsets;
+			setPages(pages, offsets, 0xc0, 0x10, mainRam, 0);
+			setPages(pages, offsets, 0xd0, 0x10, mainRam, gbcRamBank * 0x1000);
+			setPages(pages, offsets, 0xe0, 0x10, mainRam, 0);
+			setPages(pages, offsets, 0xf0, 0x0e, mainRam, gbcRamBank * 0x1000);
+		}
+	}
+	
+	/** Points count pages from firstPage on at mem, starting at index offset */
+	private final void setPages(byte[][] pages, int[] offsets, int firstPage, int count, byte[] mem, int offset) {
+		offset -= firstPage << 8;
+		for (int i = firstPage; i < firstPage + count; i++) {
+			pages[i] = mem;
+			offsets[i] = offset;
+		}
+	}
+	
+	/** Writes to the MBC1 registers or cart ram */
+	private final void mbc1Write(int addr, int data) {
+		int halfbank = addr >> 13;
+		int subaddr = addr & 0x1fff;
+		
+		if (halfbank == 0) {
+			cartRamEnabled = ((data & 0x0F) == 0x0A);
+		} else if (halfbank == 1) {
+			int bankNo = data & 0x1F;
+			if (bankNo == 0)
+				bankNo = 1;
+			mapRom((currentRomBank & 0x60) | bankNo);
+		} else if (halfbank == 2) {
+			if (mbc1LargeRamMode) {
+				mapRam(data & 0x03);
+			} else {
+				mapRom((currentRomBank & 0x1F) | ((data & 0x03) << 5));
+			}
+		} else if (halfbank == 3) {
+			mbc1LargeRamMode = ((data & 1) == 1);
+		} else if (halfbank == 5 && memory[halfbank] != null) {
+			// fixme, we should check cartRamEnabled, but that seems
+			// to break Pokemon yellow... (which uses MBC5, but I'm erring
+			// on the side of caution).
+			memory[halfbank][subaddr] = (byte) data;
+			markBatterySaveDirty();
+		}
+	}
+	
+	/** Writes to the MBC2 registers or cart ram */
+	private final void mbc2Write(int addr, int data) {
+		int halfbank = addr >> 13;
+		int subaddr = addr & 0x1fff;
+		
+		if ((halfbank == 1)) {
+			if ((addr & 0x0100) != 0) {
+				int bankNo = data & 0x0F;
+				if (bankNo == 0)
+					bankNo = 1;
+				mapRom(bankNo);
+			} else {
+				cartRamEnabled = ((data & 0x0F) == 0x0A);
+			}
+		} else if (halfbank == 5 && memory[halfbank] != null) {
+			// fixme, we should check cartRamEnabled, but that seems
+			// to break Pokemon yellow... (which uses MBC5, but I'm erring
+			// on the side of caution).
+			memory[halfbank][subaddr] = (byte) data;
+			markBatterySaveDirty();
+		}
+	}
+	
+	/** Writes to the MBC3 registers, cart ram or rtc */
+	private final void mbc3Write(int addr, int data) {
+		int halfbank = addr >> 13;
+		int subaddr = addr & 0x1fff;
+		
+		if (halfbank == 0) {
+			cartRamEnabled = ((data & 0x0F) == 0x0A);
+		} else if (halfbank == 1) {
+			// Select ROM bank
+			int bankNo = data & 0x7F;
+			if (bankNo == 0)
+				bankNo = 1;
+			mapRom(bankNo);
+		} else if (halfbank == 2) {
+			// Select RAM bank
+			if (cartRam.length > 0)
+				mapRam(data & 0x0f); // only 0-3 for ram banks, 8+ for RTC
+		} else if (halfbank == 3) {
+			// fixme, rtc latch
+		} else if (halfbank == 5) {
+			// memory write
+			if (currentRamBank >= 8) {
+				// rtc register
+				rtcSync();
+				rtcReg[currentRamBank - 8] = (byte) data;
+				markBatterySaveDirty();
+			} else if (memory[halfbank] != null) {
+				// normal memory
+				// fixme, we should check cartRamEnabled, but that seems
+				// to break Pokemon yellow... (which uses MBC5, but I'm erring
+				// on the side of caution).
+				memory[halfbank][subaddr] = (byte) data;
+				markBatterySaveDirty();
+			}
+		}
+	}
+	
+	/** Writes to the MBC5 registers or cart ram */
+	private final void mbc5Write(int addr, int data) {
+		int halfbank = addr >> 13;
+		int subaddr = addr & 0x1fff;
+		
+		if (addr >> 12 == 1) {
+			cartRamEnabled = ((data & 0x0F) == 0x0A);
+		} else if (addr >> 12 == 2) {
+			int bankNo = (currentRomBank & 0xFF00) | data;
+			// note: bank 0 can be mapped to 0x4000
+			mapRom(bankNo);
+		} else if (addr >> 12 == 3) {
+			int bankNo = (currentRomBank & 0x00FF) | ((data & 0x01) << 8);
+			// note: bank 0 can be mapped to 0x4000
+			mapRom(bankNo);
+		} else if (halfbank == 2) {
+			if (cartRam.length > 0)
+				mapRam(data & 0x0f);
+		} else if (halfbank == 5) {
+			if (memory[halfbank] != null) {
+				// fixme, we should check cartRamEnabled, but that seems
+				// to break Pokemon yellow...
+				memory[halfbank][subaddr] = (byte) data;
+				markBatterySaveDirty();
+			}
 		}
 	}
 	
@@ -2977,25 +3828,11 @@ public class Dmgcpu implements Runnable {
 	protected final void rtcSync() {
 		if ((rtcReg[4] & 0x40) == 0) {
 			// active
-			int now = (int) System.currentTimeMillis();
-			while (now - lastRtcUpdate > 1000) {
-				lastRtcUpdate += 1000;
-				
-				if (++rtcReg[0] == 60) {
-					rtcReg[0] = 0;
-					
-					if (++rtcReg[1] == 60) {
-						rtcReg[1] = 0;
-						
-						if (++rtcReg[2] == 24) {
-							rtcReg[2] = 0;
-							
-							if (++rtcReg[3] == 0) {
-								rtcReg[4] = (byte) ((rtcReg[4] | (rtcReg[4] << 7)) ^ 1);
-							}
-						}
-					}
-				}
+			int elapsed = (int) clock.currentTimeMillis() - lastRtcUpdate;
+			if (elapsed > 1000) {
+				int seconds = (elapsed - 1) / 1000; // leaves 1-1000 ms for the next sync
+				lastRtcUpdate += seconds * 1000;
+				rtcSkip(seconds);
 			}
 		}
 	}
@@ -3089,6 +3926,23 @@ public class Dmgcpu implements Runnable {
 		return graphicsChip.lastSkipCount;
 	}
 	
+	/** Emulated time since the cart was started, in ms: the instructions run so far at normal speed. */
+	public final long getEmulatedMillis() {
+		updateEmulatedCycles();
+		return (emulatedCycles * 1000) >> 20;
+	}
+	
+	private final void updateEmulatedCycles() {
+		int multiplier = INSTRS_IN_MODE_2 / BASE_INSTRS_IN_MODE_2; // 2 in double speed mode
+		int cycles = (instrCount - clockInstrCount) / multiplier;
+		clockInstrCount += cycles * multiplier;
+		emulatedCycles += cycles;
+	}
+	
+	public boolean hasGbcFeatures() {
+		return gbcFeatures;
+	}
+	
 	public boolean isTerminated() {
 		return terminate;
 	}
@@ -3100,13 +3954,34 @@ public class Dmgcpu implements Runnable {
 		stopSound(2);
 	}
 	
+	/** Sets the emulation speed as a multiple of normal speed. Above 1, the
+	 *  vblank pacing runs that much faster, only every speed:th frame is drawn
+	 *  and the sound is muted. Interrupts and timing are unaffected.
+	 */
+	public void setSpeed(int speed) {
+		if (speed < 1)
+			speed = 1;
+		
+		if (speed > 1) {
+			stopSound(0);
+			stopSound(1);
+			stopSound(2);
+		}
+		muted = speed > 1;
+		graphicsChip.speed = speed;
+	}
+	
+	public int getSpeed() {
+		return graphicsChip.speed;
+	}
+	
 	public byte[] getRtcReg() {
 		return rtcReg;
 	}
 
 	private void markBatterySaveDirty() {
 		batterySaveDirty = true;
-		lastBatteryWriteTime = System.currentTimeMillis();
+		lastBatteryWriteTime = clock.currentTimeMillis();
 	}
 
 	public boolean isBatterySaveDirty() {
@@ -3204,11 +4079,22 @@ public class Dmgcpu implements Runnable {
 		rtcReg = null;
 		cartRam = null;
 		rom = null;
-		romTouch = null;
+		romCache = null;
+		if (romPrefetcher != null)
+			romPrefetcher.stop();
+		romPrefetcher = null;
+		if (romReader != null)
+			romReader.close();
+		romReader = null;
 		cartName = null;
 		graphicsChip = null;
 		mainRam = null;
-		screen = null;
+		video = null;
+		if (audio != null)
+			audio.close();
+		audio = null;
+		clock = null;
+		storage = null;
 		memory = null;
 		decoderMemory = null;
 		System.gc();
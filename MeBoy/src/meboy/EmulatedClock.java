@@ -0,0 +1,60 @@
+package meboy;
+
+/*
+
+MeBoy
+
+Copyright 2005-2009 Bjorn Carlin
+http://www.arktos.se/
+
+Based on JavaBoy, COPYRIGHT (C) 2001 Neil Millstone and The Victoria
+University of Manchester. Bluetooth support based on code contributed by
+Martin Neumann.
+
+This program is free software; you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the Free
+Software Foundation; either version 2 of the License, or (at your option)
+any later version.
+
+This program is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+more details.
+
+
+You should have received a copy of the GNU General Public License along with
+this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+Place - Suite 330, Boston, MA 02111-1307, USA.
+
+*/
+
+/**
+ * Clock that runs on emulated time: the instructions the cpu has run, at
+ * normal speed, plus any time slept. Nothing depends on the host, so a
+ * headless run (and its realtime clock) is the same every time. Time
+ * starts at startMillis when the cpu is created with this clock.
+ */
+public class EmulatedClock implements Clock {
+	private long offset; // startMillis plus the time slept
+	private Dmgcpu cpu;
+	
+	public EmulatedClock(long startMillis) {
+		offset = startMillis;
+	}
+	
+	/** Called by the Dmgcpu constructor. */
+	final void setCpu(Dmgcpu cpu) {
+		this.cpu = cpu;
+	}
+	
+	public long currentTimeMillis() {
+		if (cpu == null)
+			return offset;
+		return offset + cpu.getEmulatedMillis();
+	}
+	
+	/** Sleeping passes time without running the cpu, so frame pacing still terminates. */
+	public void sleep(int ms) {
+		offset += ms;
+	}
+}
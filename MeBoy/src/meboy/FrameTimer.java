@@ -0,0 +1,139 @@
+package meboy;
+
+/*
+
+MeBoy
+
+Copyright 2005-2009 Bjorn Carlin
+http://www.arktos.se/
+
+Based on JavaBoy, COPYRIGHT (C) 2001 Neil Millstone and The Victoria
+University of Manchester. Bluetooth support based on code contributed by
+Martin Neumann.
+
+This program is free software; you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the Free
+Software Foundation; either version 2 of the License, or (at your option)
+any later version.
+
+This program is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+more details.
+
+
+You should have received a copy of the GNU General Public License along with
+this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+Place - Suite 330, Boston, MA 02111-1307, USA.
+
+*/
+
+/**
+ * Splits the time of each frame into stages, and keeps the last FRAMES
+ * frames in a ring buffer. The cpu thread is always in one stage, and the
+ * time since the last switch is charged to that stage. A frame ends after
+ * the vblank, so its sleep and wait time belong to the frame just drawn.
+ * Paint time is measured on the ui thread and added to the current frame.
+ * Totals since the timer was created are kept as well, for long headless
+ * runs.
+ *
+ * The clock has millisecond resolution, so single stages are mostly 0 or 1
+ * ms, but the sums over many frames are still fair estimates. Dmgcpu only
+ * calls it when Dmgcpu.frameTimer is set.
+ */
+public final class FrameTimer {
+	/** Emulation between vblanks, except the stages below */
+	public static final int CPU = 0;
+	/** Drawing scanlines in notifyScanline */
+	public static final int SCANLINE = 1;
+	/** Scaling the frame and creating the image to show */
+	public static final int CONVERT = 2;
+	/** Waiting for the ui thread to paint the last frame */
+	public static final int WAIT = 3;
+	/** Sleeping in vBlank when ahead of time */
+	public static final int SLEEP = 4;
+	/** Painting on the ui thread, which runs alongside the cpu thread */
+	public static final int PAINT = 5;
+	public static final int STAGES = 6;
+
+	public static final String[] STAGE_NAMES = {"cpu", "scanline", "convert", "wait", "sleep", "paint"};
+
+	public static final int FRAMES = 64; // power of two
+
+	private int[] times = new int[FRAMES * STAGES];
+	private int frame; // index of the current frame in the ring buffer
+	private int frames; // finished frames, up to FRAMES
+	private long[] totals = new long[STAGES];
+	private int totalFrames;
+	private int stage = CPU;
+	private long lastSwitch = System.currentTimeMillis();
+
+	/** Charges the time since the last switch to the current stage, and returns the previous stage */
+	public final int enter(int newStage) {
+		long now = System.currentTimeMillis();
+		times[frame * STAGES + stage] += (int) (now - lastSwitch);
+		lastSwitch = now;
+		int old = stage;
+		stage = newStage;
+		return old;
+	}
+
+	/** Adds paint time, from the ui thread */
+	public final void addPaint(int ms) {
+		times[frame * STAGES + PAINT] += ms;
+	}
+
+	/** Ends the current frame, and starts the next one in the cpu stage */
+	public final void endFrame() {
+		enter(CPU);
+		for (int i = 0; i < STAGES; i++)
+			totals[i] += times[frame * STAGES + i];
+		totalFrames++;
+		frame = (frame + 1) & (FRAMES - 1);
+		for (int i = 0; i < STAGES; i++)
+			times[frame * STAGES + i] = 0;
+		if (frames < FRAMES)
+			frames++;
+	}
+
+	/** Number of finished frames in the buffer */
+	public final int getFrames() {
+		return frames;
+	}
+
+	/** Time in ms of the given stage in a finished frame, 0 being the latest */
+	public final int getTime(int age, int stage) {
+		return times[((frame - 1 - age) & (FRAMES - 1)) * STAGES + stage];
+	}
+
+	/** Average ms per frame of the given stage over the finished frames, times 10 */
+	public final int getAverage10(int stage) {
+		if (frames == 0)
+			return 0;
+		int sum = 0;
+		for (int i = 0; i < frames; i++)
+			sum += getTime(i, stage);
+		return sum * 10 / frames;
+	}
+
+	/** Total ms of the given stage over all finished frames */
+	public final long getTotal(int stage) {
+		return totals[stage];
+	}
+
+	/** Number of finished frames since the timer was created */
+	public final int getTotalFrames() {
+		return totalFrames;
+	}
+
+	/** Returns the averages as "stage: ms" lines */
+	public final String report() {
+		StringBuffer sb = new StringBuffer();
+		sb.append("Frame stages (").append(frames).append(" frames):\n");
+		for (int i = 0; i < STAGES; i++) {
+			int avg = getAverage10(i);
+			sb.append(STAGE_NAMES[i]).append(": ").append(avg / 10).append('.').append(avg % 10).append(" ms\n");
+		}
+		return sb.toString();
+	}
+}
@@ -30,17 +30,20 @@ Place - Suite 330, Boston, MA 02111-1307, USA.
 
 import javax.microedition.lcdui.*;
 import javax.microedition.rms.*;
+import meboy.app.AppInfo;
 import meboy.io.SaveFileStore;
 import meboy.io.SuspendedGameStore;
 
 
-public class GBCanvas extends Canvas implements CommandListener {
+public class GBCanvas extends Canvas implements CommandListener, VideoOutput {
 	private static final int BUTTON_COUNT = 8;
 	private static final int FPS_HISTORY_SIZE = 16;
 	private static final int FPS_HISTORY_MASK = FPS_HISTORY_SIZE - 1;
 	private static final int FPS_BAR_HEIGHT = 16;
+	private static final int[] STAGE_COLORS = {0x3366cc, 0x33aa33, 0xdddd33, 0xcc3333, 0xffffff, 0x993399}; // see FrameTimer
 	private static final int AUTO_SAVE_POLL_MS = 1000;
 	private static final int AUTO_SAVE_DEBOUNCE_MS = 2000;
+	private static final int BENCHMARK_FRAMES = 600;
 	private static final String SETTINGS_RECORD_NAME = "set";
 	private static final int INT_BYTES = 4;
 	private static final int SETTINGS_KEYS_OFFSET = 0;
@@ -64,6 +67,7 @@ public class GBCanvas extends Canvas implements CommandListener {
 
 	public MeBoy parent;
 	private Dmgcpu cpu;
+	private final Clock clock = new SystemClock(); // wall time, for the cpu, fps and save timestamps
 	private int w, h, l, t;
 	private int sw, sh, trans; // translation, and screen size (on screen, i.e. scaled and rotated if applicable)
 	private int ssw, ssh; // source screen width and height (possibly scaled, not rotated)
@@ -77,6 +81,10 @@ public class GBCanvas extends Canvas implements CommandListener {
 	private Command showFpsCommand = new Command(MeBoy.literal[33], Command.SCREEN, 3);
 	private Command fullScreenCommand = new Command(MeBoy.literal[34], Command.SCREEN, 4);
 	private Command setButtonsCommand = new Command(MeBoy.literal[35], Command.SCREEN, 5);
+	private Command benchmarkCommand = new Command(AppInfo.BENCHMARK_LABEL, Command.SCREEN, 5);
+	private Command fastForwardCommand = new Command(AppInfo.FAST_FORWARD_LABEL, Command.SCREEN, 2);
+	private Command normalSpeedCommand = new Command(AppInfo.NORMAL_SPEED_LABEL, Command.SCREEN, 2);
+	private Command frameTimingCommand = new Command(AppInfo.FRAME_TIMING_LABEL, Command.SCREEN, 3);
 	private Command exitCommand;
 	
 	private static int[] key = new int[] {KEY_NUM6, KEY_NUM4, KEY_NUM2, KEY_NUM8, KEY_NUM7, KEY_NUM9, KEY_POUND, KEY_STAR};
@@ -93,6 +101,8 @@ public class GBCanvas extends Canvas implements CommandListener {
 	private boolean settingKeys;
 	private boolean paused;
 	private boolean exiting;
+	private String benchmarkResult;
+	private Image frameImage;
 	
 	private String cartDisplayName;
 	private String cartID;
@@ -124,7 +134,8 @@ public class GBCanvas extends Canvas implements CommandListener {
 		
 		this.suspendName = suspendName;
 		
-		cpu = new Dmgcpu(cartID, this, suspendState);
+		Metrics.reset();
+		cpu = createCpu(suspendState);
 		setDimensions();
 		startAutoSaveThread();
 		
@@ -136,7 +147,8 @@ public class GBCanvas extends Canvas implements CommandListener {
 	public GBCanvas(String cartID, MeBoy p, String cartDisplayName) {
 		this(p, cartID, cartDisplayName);
 		
-		cpu = new Dmgcpu(cartID, this);
+		Metrics.reset();
+		cpu = createCpu(null);
 		
 		if (cpu.hasBattery())
 			loadCartRam();
@@ -148,14 +160,25 @@ public class GBCanvas extends Canvas implements CommandListener {
 		cpuThread.start();
 	}
 	
+	private Dmgcpu createCpu(byte[] suspendState) {
+		Dmgcpu cpu = new Dmgcpu(cartID, this, MeBoy.enableSound ? MidiAudioOutput.open() : null,
+				clock, new MidpRomStorage(), suspendState);
+		loadBankProfile(cpu);
+		return cpu;
+	}
+	
 	private void updateCommands() {
 		// remove and add all commands, to prevent pause/resume to end up last
 		removeCommand(pauseCommand);
 		removeCommand(resumeCommand);
 		removeCommand(saveCommand);
+		removeCommand(fastForwardCommand);
+		removeCommand(normalSpeedCommand);
 		removeCommand(showFpsCommand);
+		removeCommand(frameTimingCommand);
 		removeCommand(fullScreenCommand);
 		removeCommand(setButtonsCommand);
+		removeCommand(benchmarkCommand);
 		removeCommand(exitCommand);
 		
 		if (paused)
@@ -164,9 +187,15 @@ public class GBCanvas extends Canvas implements CommandListener {
 			addCommand(pauseCommand);
 		
 		addCommand(saveCommand);
+		if (cpu != null && cpu.getSpeed() > 1)
+			addCommand(normalSpeedCommand);
+		else
+			addCommand(fastForwardCommand);
 		addCommand(showFpsCommand);
+		addCommand(frameTimingCommand);
 		addCommand(fullScreenCommand);
 		addCommand(setButtonsCommand);
+		addCommand(benchmarkCommand);
 		addCommand(exitCommand);
 	}
 	
@@ -179,7 +208,7 @@ public class GBCanvas extends Canvas implements CommandListener {
 		boolean rotate = (MeBoy.rotations & 1) != 0;
 		
 		if (MeBoy.enableScaling) {
-			int deltah = MeBoy.showFps ? -16: 0;
+			int deltah = showBar() ? -16: 0;
 			cpu.setScale(rotate ? (h+deltah) : w, rotate ? w : (h+deltah));
 		}
 		ssw = sw = cpu.graphicsChip.scaledWidth;
@@ -192,7 +221,7 @@ public class GBCanvas extends Canvas implements CommandListener {
 		
 		l = (w - sw) / 2;
 		t = (h - sh) / 2;
-		if (MeBoy.showFps) {
+		if (showBar()) {
 			t -= 8;
 			clipHeight += 16;
 		}
@@ -205,6 +234,11 @@ public class GBCanvas extends Canvas implements CommandListener {
 		//cpu.setTranslation(trans == 0 ? l : 0, trans == 0 ? t : 0);
 	}
 	
+	/** True if the bar below the screen is shown, for the fps or the frame timing */
+	private boolean showBar() {
+		return MeBoy.showFps || cpu.frameTimer != null;
+	}
+	
 	public void keyReleased(int keyCode) {
 		for (int i = 0; i < BUTTON_COUNT; i++) {
 			if (keyCode == key[i]) {
@@ -256,13 +290,29 @@ public class GBCanvas extends Canvas implements CommandListener {
 				pause();
 			} else if (c == resumeCommand && !settingKeys) {
 				paused = false;
+				benchmarkResult = null;
 				updateCommands();
 				
 				cpuThread = new Thread(cpu);
 				cpuThread.start();
+			} else if (c == fastForwardCommand) {
+				cpu.setSpeed(MeBoy.turboSpeed);
+				updateCommands();
+			} else if (c == normalSpeedCommand) {
+				cpu.setSpeed(1);
+				updateCommands();
 			} else if (c == showFpsCommand) {
 				MeBoy.showFps = !MeBoy.showFps;
 				setDimensions();
+			} else if (c == frameTimingCommand) {
+				FrameTimer frameTimer = cpu.frameTimer;
+				if (frameTimer == null) {
+					cpu.frameTimer = new FrameTimer();
+				} else {
+					cpu.frameTimer = null;
+					MeBoy.log(cartDisplayName + " " + frameTimer.report());
+				}
+				setDimensions();
 			} else if (c == setButtonsCommand && !settingKeys) {
 				pause();
 				settingKeys = true;
@@ -278,6 +328,9 @@ public class GBCanvas extends Canvas implements CommandListener {
 				} else {
 					suspend();
 				}
+			} else if (c == benchmarkCommand && !settingKeys) {
+				pause();
+				runBenchmark();
 			} else if (c == fullScreenCommand && !settingKeys) {
 				MeBoy.fullScreen = !MeBoy.fullScreen;
 				setFullScreenMode(MeBoy.fullScreen);
@@ -304,6 +357,22 @@ public class GBCanvas extends Canvas implements CommandListener {
 		cpu.terminate();
 		waitForCpuThread();
 		cpuThread = null;
+		saveBankProfile();
+	}
+
+	private void runBenchmark() {
+		parent.showWaitForm(AppInfo.WAIT_BENCHMARK_MESSAGE);
+		Thread benchmarkThread = new Thread(new Runnable() {
+			public void run() {
+				int rate = cpu.benchmark(BENCHMARK_FRAMES);
+				int pairRate = (rate >= 0) ? cpu.benchmarkPairs(BENCHMARK_FRAMES) : -1;
+				if (pairRate >= 0) {
+					benchmarkResult = rate + " instrs/s, pairs " + pairRate;
+					MeBoy.display.setCurrent(GBCanvas.this);
+				}
+			}
+		});
+		benchmarkThread.start();
 	}
 
 	private void waitForCpuThread() {
@@ -338,7 +407,7 @@ public class GBCanvas extends Canvas implements CommandListener {
 					}
 
 					if (cpu.isBatterySaveDirty()) {
-						long idleTime = System.currentTimeMillis() - cpu.getLastBatteryWriteTime();
+						long idleTime = clock.currentTimeMillis() - cpu.getLastBatteryWriteTime();
 						if (idleTime >= AUTO_SAVE_DEBOUNCE_MS) {
 							flushBatterySave();
 						}
@@ -374,6 +443,15 @@ public class GBCanvas extends Canvas implements CommandListener {
 		cpu.markBatterySaveClean();
 	}
 	
+	public final void showFrame(GraphicsChip chip) {
+		int[] pixels = chip.getFramePixels();
+		if (pixels == null)
+			frameImage = ((SimpleGraphicsChip) chip).frameBufferImage;
+		else
+			frameImage = Image.createRGBImage(pixels, chip.scaledWidth, chip.scaledHeight, false);
+		redrawSmall();
+	}
+	
 	public final void redrawSmall() {
 		repaint(l, t, sw, clipHeight);
 	}
@@ -382,9 +460,11 @@ public class GBCanvas extends Canvas implements CommandListener {
 		g.setClip(l, t+sh, sw, FPS_BAR_HEIGHT);
 		g.setColor(0x999999);
 		g.fillRect(l, t+sh, sw, FPS_BAR_HEIGHT);
+		if (!MeBoy.showFps)
+			return;
 		g.setColor(0);
 		
-		int now = (int) System.currentTimeMillis();
+		int now = (int) clock.currentTimeMillis();
 		// calculate moving-average fps
 		// 17 ms * 60 fps * 2*16 seconds = 32640 ms
 		int estfps = ((32640 + now - previousTime[previousTimeIx]) / (now - previousTime[previousTimeIx])) >> 1;
@@ -394,6 +474,33 @@ public class GBCanvas extends Canvas implements CommandListener {
 		g.drawString(estfps + " fps * " + (cpu.getLastSkipCount() + 1), l+1, t+sh, 20);
 	}
 	
+	/**
+	 * Draws the average frame stages as a stacked bar, the cpu thread stages
+	 * on top and the paint time below. The bar spans two frames, with a mark
+	 * at one frame.
+	 */
+	public final void paintFrameTiming(Graphics g, FrameTimer frameTimer) {
+		int x = MeBoy.showFps ? l + sw/2 : l + 1;
+		int width = l + sw - 1 - x;
+		int y = t + sh + 2;
+		
+		for (int i = 0; i < FrameTimer.STAGES; i++) {
+			// average in 1/10 ms, 340 = two frames
+			int stageWidth = frameTimer.getAverage10(i) * width / 340;
+			g.setColor(STAGE_COLORS[i]);
+			if (i == FrameTimer.PAINT) {
+				g.fillRect(x, y + 9, stageWidth, 3);
+			} else {
+				g.fillRect(x, y, stageWidth, 8);
+				x += stageWidth;
+			}
+		}
+		
+		g.setColor(0);
+		int mark = (MeBoy.showFps ? l + sw/2 : l + 1) + width/2;
+		g.drawLine(mark, y - 2, mark, y + 12);
+	}
+	
 	public final void paint(Graphics g) {
 		if (cpu == null)
 			return;
@@ -416,19 +523,26 @@ public class GBCanvas extends Canvas implements CommandListener {
 			g.fillRect(0, 0, w, h);
 		}
 		
-		if (MeBoy.showFps) {
+		FrameTimer frameTimer = cpu.frameTimer;
+		long paintStart = frameTimer != null ? clock.currentTimeMillis() : 0;
+		
+		if (showBar()) {
 			paintFps(g);
+			if (frameTimer != null)
+				paintFrameTiming(g, frameTimer);
 		}
 		
 		g.setClip(l, t, sw, sh);
-		if (cpu.graphicsChip.frameBufferImage == null) {
+		if (frameImage == null) {
 			g.setColor(0xaaaaaa);
 			g.fillRect(l, t, sw, sh);
 		} else if (trans == 0) {
-			g.drawImage(cpu.graphicsChip.frameBufferImage, l, t, 20);
+			g.drawImage(frameImage, l, t, 20);
 		} else {
-			g.drawRegion(cpu.graphicsChip.frameBufferImage, 0, 0, ssw, ssh, trans, l, t, 20);
+			g.drawRegion(frameImage, 0, 0, ssw, ssh, trans, l, t, 20);
 		}
+		if (frameTimer != null)
+			frameTimer.addPaint((int) (clock.currentTimeMillis() - paintStart));
 		cpu.graphicsChip.notifyRepainted();
 		
 		if (paused) {
@@ -439,21 +553,19 @@ public class GBCanvas extends Canvas implements CommandListener {
 			g.drawString(MeBoy.literal[30], w/2, h/2+1, 65);
 			g.setColor(0xffffff);
 			g.drawString(MeBoy.literal[30], w/2, h/2, 65);
+			
+			if (benchmarkResult != null) {
+				g.drawString(benchmarkResult, w/2, h/2+18, 65);
+			}
 		}
 	}
 	
 	public static final void setInt(byte[] b, int i, int v) {
-		b[i++] = (byte) (v >> 24);
-		b[i++] = (byte) (v >> 16);
-		b[i++] = (byte) (v >> 8);
-		b[i++] = (byte) (v);
+		Dmgcpu.setInt(b, i, v);
 	}
 	
 	public static final int getInt(byte[] b, int i) {
-		int r = b[i++] & 0xFF;
-		r = (r << 8) + (b[i++] & 0xFF);
-		r = (r << 8) + (b[i++] & 0xFF);
-		return (r << 8) + (b[i++] & 0xFF);
+		return Dmgcpu.getInt(b, i);
 	}
 
 	private static boolean hasRange(byte[] b, int index, int length) {
@@ -509,7 +621,7 @@ public class GBCanvas extends Canvas implements CommandListener {
 				bLength += 1 + MeBoy.suspendName10[i].length();
 			for (int i = 0; i < MeBoy.suspendName20.length; i++)
 				bLength += 1 + MeBoy.suspendName20[i].length() * 2;
-			bLength++;
+			bLength += 3;
 			
 			byte[] b = new byte[bLength];
 			
@@ -552,6 +664,9 @@ public class GBCanvas extends Canvas implements CommandListener {
 				}
 			}
 			
+			b[index++] = (byte) MeBoy.turboSpeed;
+			b[index++] = (byte) MeBoy.romPrefetchSlots;
+			
 			if (rs.getNumRecords() == 0) {
 				rs.addRecord(b, 0, bLength);
 			} else {
@@ -642,6 +757,13 @@ public class GBCanvas extends Canvas implements CommandListener {
 					}
 					index = indexRef[0];
 				}
+
+				if (b.length > index) {
+					MeBoy.turboSpeed = b[index++];
+				}
+				if (b.length > index) {
+					MeBoy.romPrefetchSlots = b[index++];
+				}
 				MeBoy.log("Settings: loaded persisted language id " + MeBoy.language + " (bytes=" + b.length + ")");
 			} else {
 				MeBoy.log("Settings: no RecordStore settings found, using locale auto-detection");
@@ -673,6 +795,7 @@ public class GBCanvas extends Canvas implements CommandListener {
 				SaveFileStore.write(externalRomFile, cpu.exportBatterySave());
 				saveExternalRtc(externalRomFile);
 				cpu.markBatterySaveClean();
+				Metrics.batteryFlushes++;
 				return;
 			}
 
@@ -686,7 +809,7 @@ public class GBCanvas extends Canvas implements CommandListener {
 				System.arraycopy(ram[i], 0, b, i * bankSize, bankSize);
 			
 			System.arraycopy(cpu.getRtcReg(), 0, b, bankCount * bankSize, 5);
-			long now = System.currentTimeMillis();
+			long now = clock.currentTimeMillis();
 			setInt(b, bankCount * bankSize + 5, (int) (now >> 32));
 			setInt(b, bankCount * bankSize + 9, (int) now);
 
@@ -701,6 +824,7 @@ public class GBCanvas extends Canvas implements CommandListener {
 				rs.closeRecordStore();
 			}
 			cpu.markBatterySaveClean();
+			Metrics.batteryFlushes++;
 		} catch (Exception e) {
 			if (MeBoy.debug)
 				e.printStackTrace();
@@ -747,6 +871,61 @@ public class GBCanvas extends Canvas implements CommandListener {
 		}
 	}
 
+	/** Stores the ROM bank use of lazily loaded carts next to the battery save, for the next session */
+	private void saveBankProfile() {
+		try {
+			byte[] profile = cpu.getBankProfile();
+			if (profile == null)
+				return;
+			
+			String externalRomFile = MeBoy.getExternalRomFile(cartID);
+			if (externalRomFile != null) {
+				SaveFileStore.writeBankProfile(externalRomFile, profile);
+				return;
+			}
+			
+			RecordStore rs = RecordStore.openRecordStore("20P_" + cartID, true);
+			try {
+				if (rs.getNumRecords() == 0) {
+					rs.addRecord(profile, 0, profile.length);
+				} else {
+					rs.setRecord(1, profile, 0, profile.length);
+				}
+			} finally {
+				rs.closeRecordStore();
+			}
+		} catch (Exception e) {
+			if (MeBoy.debug)
+				e.printStackTrace();
+		}
+	}
+	
+	/** Preloads the banks used most in earlier sessions, see Dmgcpu.loadBankProfile */
+	private void loadBankProfile(Dmgcpu cpu) {
+		if (!cpu.hasBankProfile())
+			return;
+		try {
+			byte[] profile = null;
+			String externalRomFile = MeBoy.getExternalRomFile(cartID);
+			if (externalRomFile != null) {
+				profile = SaveFileStore.readBankProfile(externalRomFile);
+			} else {
+				RecordStore rs = RecordStore.openRecordStore("20P_" + cartID, true);
+				try {
+					if (rs.getNumRecords() > 0)
+						profile = rs.getRecord(1);
+				} finally {
+					rs.closeRecordStore();
+				}
+			}
+			cpu.loadBankProfile(profile);
+		} catch (Exception e) {
+			if (MeBoy.debug)
+				e.printStackTrace();
+			MeBoy.log(e.toString());
+		}
+	}
+	
 	private void saveExternalRtc(String externalRomFile) throws Exception {
 		if (!cpu.hasRtc()) {
 			SaveFileStore.deleteRtc(externalRomFile);
@@ -755,7 +934,7 @@ public class GBCanvas extends Canvas implements CommandListener {
 
 		byte[] rtc = new byte[13];
 		System.arraycopy(cpu.getRtcReg(), 0, rtc, 0, 5);
-		long now = System.currentTimeMillis();
+		long now = clock.currentTimeMillis();
 		setInt(rtc, 5, (int) (now >> 32));
 		setInt(rtc, 9, (int) now);
 		SaveFileStore.writeRtc(externalRomFile, rtc);
@@ -770,7 +949,7 @@ public class GBCanvas extends Canvas implements CommandListener {
 		System.arraycopy(rtc, 0, cpu.getRtcReg(), 0, 5);
 		long time = getInt(rtc, 5);
 		time = (time << 32) + ((long) getInt(rtc, 9) & 0xffffffffL);
-		time = System.currentTimeMillis() - time;
+		time = clock.currentTimeMillis() - time;
 		cpu.rtcSkip((int) (time / 1000));
 	}
 
@@ -792,7 +971,7 @@ public class GBCanvas extends Canvas implements CommandListener {
 			System.arraycopy(b, bankCount * bankSize, cpu.getRtcReg(), 0, 5);
 			long time = getInt(b, bankCount * bankSize + 5);
 			time = (time << 32) + ((long) getInt(b, bankCount * bankSize + 9) & 0xffffffffL);
-			time = System.currentTimeMillis() - time;
+			time = clock.currentTimeMillis() - time;
 			cpu.rtcSkip((int) (time / 1000));
 		}
 	}
@@ -804,7 +983,10 @@ public class GBCanvas extends Canvas implements CommandListener {
 				suspendName = (MeBoy.suspendCounter++) + ": " + cartDisplayName;
 				insertIndex = true;
 			}
-			SuspendedGameStore.save(suspendName, cartID, cpu.flatten());
+			byte[] state = cpu.flatten();
+			SuspendedGameStore.save(suspendName, cartID, state);
+			Metrics.saveStates++;
+			Metrics.saveStateSize = state.length;
 			if (insertIndex)
 				MeBoy.addSuspendedGame(suspendName);
 		} catch (Exception e) {
@@ -819,12 +1001,14 @@ public class GBCanvas extends Canvas implements CommandListener {
         flushBatterySave();
         cpu.terminate();
         waitForCpuThread();
+        saveBankProfile();
         cpu.releaseReferences();
         cpu = null;
         
         cartID = null;
         cartDisplayName = null;
         previousTime = null;
+        frameImage = null;
         parent = null;
         System.gc();
     }
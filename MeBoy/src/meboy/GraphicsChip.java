@@ -28,8 +28,6 @@ Place - Suite 330, Boston, MA 02111-1307, USA.
 
 */
 
-import javax.microedition.lcdui.*;
-
 
 public abstract class GraphicsChip {
 	protected final int MS_PER_FRAME = 17;
@@ -61,9 +59,13 @@ public abstract class GraphicsChip {
 	
 	// skipping, timing:
 	public int timer;
+	private int timerFraction; // in 1/256 ms
+	int speed = 1; // multiple of normal speed, see Dmgcpu.setSpeed
 	protected boolean skipping = true; // until graphics is set
 	protected int frameCount;
 	protected int skipCount;
+	int benchmarkFrames; // frames left to run unthrottled and undrawn, see Dmgcpu.benchmark
+	int stepFrames; // frames left to run unthrottled and drawn, see Dmgcpu.runFrames
 	
 	// some statistics
 	int lastSkipCount;
@@ -89,8 +91,6 @@ public abstract class GraphicsChip {
 	
 	protected Dmgcpu cpu;
 	
-	public Image frameBufferImage;
-	
 	// lookup table for fast image decoding
 	protected static int[] weaveLookup = new int[256];
 	static {
@@ -125,7 +125,7 @@ public abstract class GraphicsChip {
 		}
 
 		videoRam = videoRamBanks[0];
-		cpu.memory[4] = videoRam;
+		cpu.mapVideoRam(videoRam);
 		
 		scale = false;
 		
@@ -145,9 +145,9 @@ public abstract class GraphicsChip {
 		
 		for (int i = 0; i < 12; i++) {
 			if ((i & 3) == 0)
-				gbPalette[i] = 0x00ffffff & GBCanvas.getInt(flatState, offset);
+				gbPalette[i] = 0x00ffffff & Dmgcpu.getInt(flatState, offset);
 			else
-				gbPalette[i] = 0xff000000 | GBCanvas.getInt(flatState, offset);
+				gbPalette[i] = 0xff000000 | Dmgcpu.getInt(flatState, offset);
 			offset += 4;
 		}
 		
@@ -174,7 +174,7 @@ public abstract class GraphicsChip {
 		}
 		
 		for (int j = 0; j < 12; j++) {
-			GBCanvas.setInt(flatState, offset, gbPalette[j]);
+			Dmgcpu.setInt(flatState, offset, gbPalette[j]);
 			offset += 4;
 		}
 		
@@ -225,31 +225,60 @@ public abstract class GraphicsChip {
 	}
 	
 	public final void vBlank() {
-		timer += MS_PER_FRAME;
+		timerFraction += (MS_PER_FRAME << 8) / speed;
+		timer += timerFraction >> 8;
+		timerFraction &= 0xff;
 		
 		frameCount++;
+		Metrics.frames++;
+		
+		if (benchmarkFrames > 0) {
+			if (--benchmarkFrames == 0)
+				cpu.terminate = true;
+			return;
+		}
+		
+		if (stepFrames > 0) {
+			skipping = false;
+			lastSkipCount = 0;
+			if (cpu.video != null)
+				showFrame();
+			if (--stepFrames == 0)
+				cpu.terminate = true;
+			return;
+		}
 		
 		if (skipping) {
 			skipCount++;
-			if (skipCount >= MeBoy.maxFrameSkip) {
+			Metrics.skippedFrames++;
+			if (skipCount >= Math.max(MeBoy.maxFrameSkip, speed - 1)) {
 				// can't keep up, force draw next frame and reset timer (if lagging)
 				skipping = false;
-				int lag = (int) System.currentTimeMillis() - timer;
+				int lag = (int) cpu.clock.currentTimeMillis() - timer;
 				
 				if (lag > MS_PER_FRAME)
 					timer += lag - MS_PER_FRAME;
 			} else
-				skipping = (timer - ((int) System.currentTimeMillis()) < 0);
+				skipping = skipCount < speed - 1 || (timer - ((int) cpu.clock.currentTimeMillis()) < 0);
 			return;
 		}
 		
 		lastSkipCount = skipCount;
-		frameDone = false;
-		cpu.screen.redrawSmall();
+		if (cpu.video != null) {
+			// headless cpus have no video, and nothing will paint the frame
+			frameDone = false;
+			showFrame();
+		}
 		
-		int now = (int) System.currentTimeMillis();
+		FrameTimer frameTimer = cpu.frameTimer;
+		if (frameTimer != null)
+			frameTimer.enter(FrameTimer.SLEEP);
 		
-		if (MeBoy.maxFrameSkip == 0)
+		int now = (int) cpu.clock.currentTimeMillis();
+		
+		if (speed > 1)
+			skipping = true; // draw only every speed:th frame
+		else if (MeBoy.maxFrameSkip == 0)
 			skipping = false;
 		else
 			skipping = timer - now < 0;
@@ -257,18 +286,32 @@ public abstract class GraphicsChip {
 		// sleep if too far ahead
 		try {
 			while (timer > now + MS_PER_FRAME) {
-				Thread.sleep(1);
-				now = (int) System.currentTimeMillis();
+				cpu.clock.sleep(1);
+				now = (int) cpu.clock.currentTimeMillis();
 			}
 		} catch (InterruptedException e) {
 			// e.printStackTrace();
 		}
 		
+		if (frameTimer != null)
+			frameTimer.enter(FrameTimer.WAIT);
 		while (!frameDone && !cpu.terminate) {
 			Thread.yield();
 		}
 		skipCount = 0;
 	}
+	
+	/** Hands the frame to the video output, timed as conversion since that is where the image is made */
+	private final void showFrame() {
+		FrameTimer frameTimer = cpu.frameTimer;
+		if (frameTimer != null) {
+			int stage = frameTimer.enter(FrameTimer.CONVERT);
+			cpu.video.showFrame(this);
+			frameTimer.enter(stage);
+		} else {
+			cpu.video.showFrame(this);
+		}
+	}
 
 	/** Set the palette from the internal Gameboy format */
 	public void decodePalette(int startIndex, int data) {
@@ -301,13 +344,24 @@ public abstract class GraphicsChip {
 	public void setVRamBank(int value) {
 		tileOffset = value * 384;
 		videoRam = videoRamBanks[value];
-		cpu.memory[4] = videoRam;
+		cpu.mapVideoRam(videoRam);
+	}
+	
+	/** Draws the next frames unthrottled and unskipped, then terminates the cpu, see Dmgcpu.runFrames. */
+	public final void drawFrames(int frames) {
+		stepFrames = frames;
+		skipping = false;
 	}
 	
 	public final void notifyRepainted() {
 		frameDone = true;
 	}
 	
+	/** The finished frame as scaledWidth * scaledHeight pixels (rgb in the low 24 bits), or null if the chip draws to an Image. */
+	public int[] getFramePixels() {
+		return null;
+	}
+	
 	public void stopWindowFromLine() {}
 	
 	public abstract void setScale(int screenWidth, int screenHeight);
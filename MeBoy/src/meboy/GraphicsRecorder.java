@@ -0,0 +1,52 @@
+package meboy;
+
+/*
+
+MeBoy
+
+Copyright 2005-2009 Bjorn Carlin
+http://www.arktos.se/
+
+Based on JavaBoy, COPYRIGHT (C) 2001 Neil Millstone and The Victoria
+University of Manchester. Bluetooth support based on code contributed by
+Martin Neumann.
+
+This program is free software; you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the Free
+Software Foundation; either version 2 of the License, or (at your option)
+any later version.
+
+This program is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+more details.
+
+
+You should have received a copy of the GNU General Public License along with
+this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+Place - Suite 330, Boston, MA 02111-1307, USA.
+
+*/
+
+/**
+ * Sees everything the graphics chip sees of a running cpu: video ram, oam
+ * and io register writes, scanlines and vblanks. Set as
+ * Dmgcpu.graphicsRecorder to record a session, so that the graphics chips
+ * can be replayed and measured without the cpu.
+ */
+public interface GraphicsRecorder {
+	/** A write to the current video ram bank, addr is relative to 0x8000. */
+	void vramWrite(int addr, int data);
+	
+	/** A write to oam (directly or by dma), addr is relative to 0xfe00. */
+	void oamWrite(int addr, int data);
+	
+	/** A write to io register 0xff00 + num, called before the write is handled. */
+	void ioWrite(int num, int data);
+	
+	/** Called before the graphics chip is notified of a scanline. */
+	void scanline(int line);
+	
+	/** Called before the graphics chip's vBlank. */
+	void vBlank();
+}
@@ -0,0 +1,54 @@
+package meboy;
+
+/*
+
+MeBoy
+
+Copyright 2005-2009 Bjorn Carlin
+http://www.arktos.se/
+
+Based on JavaBoy, COPYRIGHT (C) 2001 Neil Millstone and The Victoria
+University of Manchester. Bluetooth support based on code contributed by
+Martin Neumann.
+
+This program is free software; you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the Free
+Software Foundation; either version 2 of the License, or (at your option)
+any later version.
+
+This program is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+more details.
+
+
+You should have received a copy of the GNU General Public License along with
+this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+Place - Suite 330, Boston, MA 02111-1307, USA.
+
+*/
+
+/**
+ * Keeps the last frame in an int[] of pixels (rgb in the low 24 bits), for
+ * running the emulator without a display. Only AdvancedGraphicsChip renders to pixels;
+ * with SimpleGraphicsChip the frames are counted but not copied.
+ */
+public class HeadlessVideo implements VideoOutput {
+	public int[] pixels = new int[160 * 144];
+	public int width = 160;
+	public int height = 144;
+	public int frames;
+	
+	public void showFrame(GraphicsChip chip) {
+		int[] source = chip.getFramePixels();
+		if (source != null) {
+			if (pixels.length != source.length)
+				pixels = new int[source.length];
+			System.arraycopy(source, 0, pixels, 0, source.length);
+			width = chip.scaledWidth;
+			height = chip.scaledHeight;
+		}
+		frames++;
+		chip.notifyRepainted();
+	}
+}
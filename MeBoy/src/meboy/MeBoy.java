@@ -56,8 +56,10 @@ import meboy.util.StringArrayUtil;
 public class MeBoy extends MIDlet implements CommandListener, ResumeGameController.Host, SettingsController.Host, DeviceInfoController.Host, FileBrowserController.Host, MainMenuController.Host, CartListController.Host {
 	// Settings, etc.
 	public static final boolean debug = true;
+	public static final boolean profile = false; // see Profiler
 	public static int rotations = 0;
 	public static int maxFrameSkip = 7;
+	public static int turboSpeed = 4; // speed multiple when fast forwarding
 	public static boolean enableScaling = false;
 	public static int scalingMode = 0;
 	public static boolean keepProportions = false;
@@ -69,6 +71,7 @@ public class MeBoy extends MIDlet implements CommandListener, ResumeGameControll
 	public static boolean showFps = false;
 	public static boolean showLogItem = false;
 	public static int lazyLoadingThreshold = 64; // number of banks, each 0x4000 bytes = 16kB
+	public static int romPrefetchSlots = 2; // lazily loaded banks read ahead, see RomPrefetcher
 	public static int language;
 	private static boolean bluetoothAvailable = false;
 	
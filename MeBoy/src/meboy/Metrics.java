@@ -0,0 +1,94 @@
+package meboy;
+
+/*
+
+MeBoy
+
+Copyright 2005-2009 Bjorn Carlin
+http://www.arktos.se/
+
+Based on JavaBoy, COPYRIGHT (C) 2001 Neil Millstone and The Victoria
+University of Manchester. Bluetooth support based on code contributed by
+Martin Neumann.
+
+This program is free software; you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the Free
+Software Foundation; either version 2 of the License, or (at your option)
+any later version.
+
+This program is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+more details.
+
+
+You should have received a copy of the GNU General Public License along with
+this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+Place - Suite 330, Boston, MA 02111-1307, USA.
+
+*/
+
+/**
+ * Counters and gauges from the emulator core. They are plain static fields
+ * updated in place, without allocation, so they are always on.
+ */
+public final class Metrics {
+	/** Emulated instructions, in Dmgcpu.instrCount units, added once per frame */
+	public static long instrs;
+	public static int frames;
+	public static int skippedFrames;
+	public static int romBankSwitches;
+	public static int romBankLoads; // lazy loading misses in Dmgcpu.mapRom()
+	public static int romBankHits; // lazy loading switches to a loaded bank
+	public static int romBankEvictions;
+	public static int romPrefetches; // banks read ahead by RomPrefetcher
+	public static int romPrefetchHits; // loads served by a prefetched bank
+	public static int romPrefetchesWasted; // prefetched banks dropped unused
+	public static int romBanksLoaded; // gauge
+	public static int tileInvalidations;
+	public static int paletteInvalidations;
+	public static int batteryFlushes;
+	public static int saveStates;
+	public static int saveStateSize; // gauge, bytes in the last save state
+	
+	private Metrics() {
+	}
+	
+	public static void reset() {
+		instrs = 0;
+		frames = 0;
+		skippedFrames = 0;
+		romBankSwitches = 0;
+		romBankLoads = 0;
+		romBankHits = 0;
+		romBankEvictions = 0;
+		romPrefetches = 0;
+		romPrefetchHits = 0;
+		romPrefetchesWasted = 0;
+		tileInvalidations = 0;
+		paletteInvalidations = 0;
+		batteryFlushes = 0;
+		saveStates = 0;
+	}
+	
+	/** Returns the metrics as "label: value" lines */
+	public static String report() {
+		StringBuffer sb = new StringBuffer();
+		sb.append("Instructions: ").append(instrs).append('\n');
+		sb.append("Frames: ").append(frames).append('\n');
+		sb.append("Skipped frames: ").append(skippedFrames).append('\n');
+		sb.append("ROM bank switches: ").append(romBankSwitches).append('\n');
+		sb.append("ROM bank loads: ").append(romBankLoads).append('\n');
+		sb.append("ROM bank hits: ").append(romBankHits).append('\n');
+		sb.append("ROM bank evictions: ").append(romBankEvictions).append('\n');
+		sb.append("ROM prefetches: ").append(romPrefetches).append(", ").append(romPrefetchHits)
+				.append(" used, ").append(romPrefetchesWasted).append(" wasted\n");
+		sb.append("ROM banks loaded: ").append(romBanksLoaded).append('\n');
+		sb.append("Tile invalidations: ").append(tileInvalidations).append('\n');
+		sb.append("Palette invalidations: ").append(paletteInvalidations).append('\n');
+		sb.append("Battery flushes: ").append(batteryFlushes).append('\n');
+		sb.append("Save states: ").append(saveStates).append('\n');
+		sb.append("Last save state: ").append(saveStateSize).append(" bytes\n");
+		return sb.toString();
+	}
+}
@@ -0,0 +1,72 @@
+package meboy;
+
+/*
+
+MeBoy
+
+Copyright 2005-2009 Bjorn Carlin
+http://www.arktos.se/
+
+Based on JavaBoy, COPYRIGHT (C) 2001 Neil Millstone and The Victoria
+University of Manchester. Bluetooth support based on code contributed by
+Martin Neumann.
+
+This program is free software; you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the Free
+Software Foundation; either version 2 of the License, or (at your option)
+any later version.
+
+This program is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+more details.
+
+
+You should have received a copy of the GNU General Public License along with
+this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+Place - Suite 330, Boston, MA 02111-1307, USA.
+
+*/
+
+import javax.microedition.media.*;
+import javax.microedition.media.control.*;
+
+/**
+ * Plays the sound through the midi device of the phone.
+ */
+public class MidiAudioOutput implements AudioOutput {
+	private Player player;
+	private MIDIControl synth;
+	
+	/** Returns null if the phone has no usable midi device. */
+	public static MidiAudioOutput open() {
+		MidiAudioOutput output = new MidiAudioOutput();
+		try {
+			output.player = Manager.createPlayer(Manager.MIDI_DEVICE_LOCATOR);
+			output.player.realize();
+			output.player.start();
+			output.synth = (MIDIControl) output.player.getControl("MIDIControl");
+			if (MeBoy.advancedSound) {
+				output.synth.shortMidiEvent(0xC0, 81, 0);
+				output.synth.shortMidiEvent(0xC1, 81, 0);
+				output.synth.shortMidiEvent(0xC2, 81, 0);
+			}
+			return output;
+		} catch (Exception ex) {
+			ex.printStackTrace();
+			output.close();
+			return null;
+		}
+	}
+	
+	public void midiEvent(int status, int data1, int data2) {
+		synth.shortMidiEvent(status, data1, data2);
+	}
+	
+	public void close() {
+		if (player != null)
+			player.close();
+		player = null;
+		synth = null;
+	}
+}
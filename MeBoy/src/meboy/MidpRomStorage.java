@@ -0,0 +1,68 @@
+package meboy;
+
+/*
+
+MeBoy
+
+Copyright 2005-2009 Bjorn Carlin
+http://www.arktos.se/
+
+Based on JavaBoy, COPYRIGHT (C) 2001 Neil Millstone and The Victoria
+University of Manchester. Bluetooth support based on code contributed by
+Martin Neumann.
+
+This program is free software; you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the Free
+Software Foundation; either version 2 of the License, or (at your option)
+any later version.
+
+This program is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+more details.
+
+
+You should have received a copy of the GNU General Public License along with
+this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+Place - Suite 330, Boston, MA 02111-1307, USA.
+
+*/
+
+import java.io.IOException;
+import java.io.InputStream;
+import javax.microedition.io.Connector;
+import javax.microedition.io.file.FileConnection;
+
+/**
+ * Reads bundled carts from the jar file, and "file:" urls using the file
+ * connection api.
+ */
+public class MidpRomStorage extends ResourceRomStorage {
+	public InputStream open(String name) throws IOException {
+		if (!name.startsWith("file:"))
+			return super.open(name);
+		
+		FileConnection fc = (FileConnection) Connector.open(name, Connector.READ);
+		try {
+			if (!fc.exists() || fc.isDirectory())
+				return null;
+			return fc.openInputStream(); // stays open when the connection is closed
+		} finally {
+			fc.close();
+		}
+	}
+	
+	public long size(String name) throws IOException {
+		if (!name.startsWith("file:"))
+			return super.size(name);
+		
+		FileConnection fc = (FileConnection) Connector.open(name, Connector.READ);
+		try {
+			if (!fc.exists() || fc.isDirectory())
+				return -1;
+			return fc.fileSize();
+		} finally {
+			fc.close();
+		}
+	}
+}
@@ -0,0 +1,148 @@
+package meboy;
+
+/*
+
+MeBoy
+
+Copyright 2005-2009 Bjorn Carlin
+http://www.arktos.se/
+
+Based on JavaBoy, COPYRIGHT (C) 2001 Neil Millstone and The Victoria
+University of Manchester. Bluetooth support based on code contributed by
+Martin Neumann.
+
+This program is free software; you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the Free
+Software Foundation; either version 2 of the License, or (at your option)
+any later version.
+
+This program is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+more details.
+
+
+You should have received a copy of the GNU General Public License along with
+this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+Place - Suite 330, Boston, MA 02111-1307, USA.
+
+*/
+
+/**
+ * Counts executed opcodes, samples where in the cartridge the cpu spends its
+ * time, and measures the time spent handling timed events. Dmgcpu only calls
+ * it when MeBoy.profile is set, which is a compile time constant, so the
+ * calls are left out of normal builds.
+ */
+public final class Profiler {
+	private static final int SAMPLE_INTERVAL = 64; // instructions per hot spot sample, power of two
+	private static final int HOTSPOT_SLOTS = 4096; // power of two
+	private static final int REPORT_ENTRIES = 16;
+	
+	private int[] opcodes = new int[256];
+	private int[] cbOpcodes = new int[256];
+	private int tick;
+	
+	// open addressing table of (bank << 16) + pc + 1, so that 0 is a free slot
+	private int[] hotspotKeys = new int[HOTSPOT_SLOTS];
+	private int[] hotspotCounts = new int[HOTSPOT_SLOTS];
+	private int samples;
+	private int droppedSamples;
+	
+	private int eventCalls;
+	private long eventTime;
+	private long eventStart;
+	
+	/** Counts an opcode, and returns true if a hot spot sample should be taken */
+	public final boolean instruction(int b1, int b2) {
+		if (b1 == 0xcb)
+			cbOpcodes[b2]++;
+		else
+			opcodes[b1]++;
+		
+		return (++tick & (SAMPLE_INTERVAL - 1)) == 0;
+	}
+	
+	/** Records that the cpu was executing at pc, in the given rom or ram bank */
+	public final void sample(int bank, int pc) {
+		int key = (bank << 16) + pc + 1;
+		int slot = (key * 0x9E3779B1) >>> 20;
+		samples++;
+		
+		for (int i = 0; i < HOTSPOT_SLOTS; i++) {
+			if (hotspotKeys[slot] == key) {
+				hotspotCounts[slot]++;
+				return;
+			} else if (hotspotKeys[slot] == 0) {
+				hotspotKeys[slot] = key;
+				hotspotCounts[slot] = 1;
+				return;
+			}
+			slot = (slot + 1) & (HOTSPOT_SLOTS - 1);
+		}
+		droppedSamples++;
+	}
+	
+	public final void eventStart() {
+		eventStart = System.currentTimeMillis();
+	}
+	
+	/**
+	 * Adds the time since eventStart(). Most calls take less than a
+	 * millisecond, but the sum over many calls is still a fair estimate.
+	 */
+	public final void eventEnd() {
+		eventTime += System.currentTimeMillis() - eventStart;
+		eventCalls++;
+	}
+	
+	/** Writes the collected counts to the log */
+	public final void dump() {
+		long total = 0;
+		for (int i = 0; i < 256; i++)
+			total += opcodes[i] + cbOpcodes[i];
+		
+		MeBoy.log("Profile: " + total + " instrs, timed events " + eventCalls + " calls in "
+				+ eventTime + " ms (including vblank)");
+		dumpTop("Opcodes:", opcodes, null, total, "");
+		dumpTop("CB opcodes:", cbOpcodes, null, total, "cb");
+		dumpTop("Hot spots (" + samples + " samples, " + droppedSamples + " dropped):",
+				hotspotCounts, hotspotKeys, samples, null);
+	}
+	
+	/** Logs the largest counts, labeled by opcode or by bank and pc */
+	private final void dumpTop(String title, int[] counts, int[] keys, long total, String prefix) {
+		MeBoy.log(title);
+		if (total == 0)
+			return;
+		
+		boolean[] used = new boolean[counts.length];
+		for (int n = 0; n < REPORT_ENTRIES; n++) {
+			int best = -1;
+			for (int i = 0; i < counts.length; i++) {
+				if (!used[i] && counts[i] > 0 && (best < 0 || counts[i] > counts[best]))
+					best = i;
+			}
+			if (best < 0)
+				return;
+			used[best] = true;
+			
+			String label;
+			if (keys == null) {
+				label = prefix + hex(best, 2);
+			} else {
+				int key = keys[best] - 1;
+				label = hex(key >> 16, 2) + ":" + hex(key & 0xffff, 4);
+			}
+			int permille = (int) (counts[best] * 1000L / total);
+			MeBoy.log("  " + label + " " + counts[best] + " (" + permille / 10 + "." + permille % 10 + "%)");
+		}
+	}
+	
+	private static String hex(int value, int digits) {
+		String s = Integer.toHexString(value);
+		while (s.length() < digits)
+			s = "0" + s;
+		return s;
+	}
+}
@@ -0,0 +1,107 @@
+package meboy;
+
+/*
+
+MeBoy
+
+Copyright 2005-2009 Bjorn Carlin
+http://www.arktos.se/
+
+Based on JavaBoy, COPYRIGHT (C) 2001 Neil Millstone and The Victoria
+University of Manchester. Bluetooth support based on code contributed by
+Martin Neumann.
+
+This program is free software; you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the Free
+Software Foundation; either version 2 of the License, or (at your option)
+any later version.
+
+This program is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+more details.
+
+
+You should have received a copy of the GNU General Public License along with
+this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+Place - Suite 330, Boston, MA 02111-1307, USA.
+
+*/
+
+/**
+ * Least recently used order of the loaded ROM banks of a lazily loaded
+ * cart. The banks form a circular doubly linked list, threaded through two
+ * int arrays indexed by bank number, with a sentinel after the last bank.
+ * The most recently used bank is first, so every operation takes constant
+ * time, however large the cart. Dmgcpu keeps the bank data itself, and
+ * reuses the buffers of evicted banks.
+ */
+public final class RomBankCache {
+	private int[] prev;
+	private int[] next;
+	private int sentinel;
+	private int size;
+	private int capacity;
+
+	public int hits; // bank switches to a loaded bank
+	public int misses; // bank switches that loaded the bank
+	public int evictions;
+
+	/** Creates an empty cache for a cart with bankCount banks, holding at most capacity of them */
+	public RomBankCache(int bankCount, int capacity) {
+		prev = new int[bankCount + 1];
+		next = new int[bankCount + 1];
+		sentinel = bankCount;
+		prev[sentinel] = sentinel;
+		next[sentinel] = sentinel;
+		this.capacity = Math.max(capacity, 1);
+	}
+
+	public final int size() {
+		return size;
+	}
+
+	public final int capacity() {
+		return capacity;
+	}
+
+	public final boolean isFull() {
+		return size >= capacity;
+	}
+
+	/** Marks a bank in the cache as the most recently used */
+	public final void touch(int bank) {
+		if (next[sentinel] == bank)
+			return;
+		unlink(bank);
+		linkFirst(bank);
+	}
+
+	/** Adds a bank that is not in the cache as the most recently used */
+	public final void add(int bank) {
+		linkFirst(bank);
+		size++;
+	}
+
+	/** Removes the least recently used bank from the cache, and returns it */
+	public final int removeEldest() {
+		int bank = prev[sentinel];
+		unlink(bank);
+		size--;
+		evictions++;
+		return bank;
+	}
+
+	private final void unlink(int bank) {
+		next[prev[bank]] = next[bank];
+		prev[next[bank]] = prev[bank];
+	}
+
+	private final void linkFirst(int bank) {
+		int first = next[sentinel];
+		next[bank] = first;
+		prev[bank] = sentinel;
+		prev[first] = bank;
+		next[sentinel] = bank;
+	}
+}
@@ -0,0 +1,135 @@
+package meboy;
+
+/*
+
+MeBoy
+
+Copyright 2005-2009 Bjorn Carlin
+http://www.arktos.se/
+
+Based on JavaBoy, COPYRIGHT (C) 2001 Neil Millstone and The Victoria
+University of Manchester. Bluetooth support based on code contributed by
+Martin Neumann.
+
+This program is free software; you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the Free
+Software Foundation; either version 2 of the License, or (at your option)
+any later version.
+
+This program is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+more details.
+
+
+You should have received a copy of the GNU General Public License along with
+this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+Place - Suite 330, Boston, MA 02111-1307, USA.
+
+*/
+
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads single ROM banks of a lazily loaded cart. Bundled carts have one
+ * resource per bank, or in older builds one file per 8 banks, and carts
+ * opened from the file system are a single file. The last stream is kept
+ * open, so a bank further on in the same file is reached by skipping from
+ * the current position instead of reopening the file. Going back reopens
+ * the file (mark and reset are not used, as some streams would buffer
+ * everything read since the mark).
+ *
+ * Used by the cpu and the prefetch thread, so reads are synchronized.
+ */
+public final class RomBankReader {
+	/** One resource per bank, named by Dmgcpu.romBankName */
+	public static final int BANKS = 0;
+	/** Files of 8 banks, named cartName + fileNumber */
+	public static final int CHUNKS = 1;
+	/** One file, opened by its url */
+	public static final int FILE = 2;
+
+	private RomStorage storage;
+	private String name;
+	private int layout;
+
+	private InputStream is;
+	private int file = -1; // the file is is reading from
+	private long position; // offset of is in the file
+
+	public RomBankReader(RomStorage storage, String name, int layout) {
+		this.storage = storage;
+		this.name = name;
+		this.layout = layout;
+	}
+
+	/**
+	 * Reads a bank into two halfbank buffers. The part of a bank past the
+	 * end of a short file is cleared.
+	 */
+	public final synchronized void read(int bankNo, byte[][] dest) throws IOException {
+		int newFile;
+		long offset;
+		if (layout == BANKS) {
+			newFile = bankNo;
+			offset = 0;
+		} else if (layout == CHUNKS) {
+			newFile = bankNo >> 3;
+			offset = (bankNo & 7) * 0x4000;
+		} else {
+			newFile = 0;
+			offset = bankNo * 0x4000L;
+		}
+
+		seek(newFile, offset);
+
+		for (int i = 0; i < 2; i++) {
+			int total = 0;
+			while (total < 0x2000) {
+				int r = is.read(dest[i], total, 0x2000 - total);
+				if (r <= 0)
+					break;
+				total += r;
+			}
+			position += total;
+			for (int j = total; j < 0x2000; j++)
+				dest[i][j] = 0;
+		}
+
+		if (layout == BANKS)
+			close(); // the next bank is another resource anyway
+	}
+
+	private final void seek(int newFile, long offset) throws IOException {
+		if (is == null || newFile != file || offset < position) {
+			close();
+			String fileName = layout == BANKS ? Dmgcpu.romBankName(name, newFile) : layout == CHUNKS ? name + newFile : name;
+			is = storage.open(fileName);
+			if (is == null)
+				throw new IOException("Missing " + fileName);
+			file = newFile;
+			position = 0;
+		}
+
+		while (position < offset) {
+			long skipped = is.skip(offset - position);
+			if (skipped <= 0)
+				throw new IOException("Failed skipping to " + offset);
+			position += skipped;
+		}
+	}
+
+	/** Closes the open file, if any. The next read opens it again. */
+	public final synchronized void close() {
+		if (is != null) {
+			try {
+				is.close();
+			} catch (IOException e) {
+			}
+			is = null;
+		}
+		file = -1;
+	}
+}
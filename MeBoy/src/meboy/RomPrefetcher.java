@@ -0,0 +1,269 @@
+package meboy;
+
+/*
+
+MeBoy
+
+Copyright 2005-2009 Bjorn Carlin
+http://www.arktos.se/
+
+Based on JavaBoy, COPYRIGHT (C) 2001 Neil Millstone and The Victoria
+University of Manchester. Bluetooth support based on code contributed by
+Martin Neumann.
+
+This program is free software; you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the Free
+Software Foundation; either version 2 of the License, or (at your option)
+any later version.
+
+This program is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+more details.
+
+
+You should have received a copy of the GNU General Public License along with
+this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+Place - Suite 330, Boston, MA 02111-1307, USA.
+
+*/
+
+/**
+ * Loads the ROM banks of a lazily loaded cart that are likely to be mapped
+ * next, on a background thread. For each bank, the banks switched to from
+ * it are counted in a small table (the WAYS most frequent successors, with
+ * counts halved now and then so that the table follows the game). After a
+ * switch, the most frequent successors that are not loaded are read into
+ * prefetch slots.
+ *
+ * The slots have their own buffers, so the background thread never touches
+ * the ROM banks mapped by the cpu. When the cpu misses a bank that is in a
+ * slot, it swaps its free buffers for the slot's (waiting if the slot is
+ * still loading), so the handoff is a few reference writes under the lock.
+ * The table is only used by the cpu thread. The thread is started on the
+ * first request, and ends after IDLE_MILLIS without requests.
+ */
+public final class RomPrefetcher implements Runnable {
+	private static final int WAYS = 4; // successors counted per bank
+	private static final int MAX_COUNT = 255; // counts of a bank are halved when one reaches this
+	private static final int IDLE_MILLIS = 2000;
+
+	private static final int EMPTY = 0;
+	private static final int REQUESTED = 1;
+	private static final int LOADING = 2;
+	private static final int READY = 3;
+
+	private RomBankReader reader;
+
+	// successor table: bank+1 (0 when unused) and count, WAYS entries per bank
+	private int[] successors;
+	private int[] counts;
+
+	private int[] slotBank;
+	private int[] slotState;
+	private byte[][][] slotData;
+	private boolean[] keep; // slots holding predicted banks, in predict()
+
+	private Thread thread;
+	private boolean stopped;
+
+	public int loads; // banks read ahead of time
+	public int hits; // misses served from a slot
+	public int wasted; // loaded banks dropped before they were used
+
+	public RomPrefetcher(RomBankReader reader, int bankCount, int slots) {
+		this.reader = reader;
+		successors = new int[bankCount * WAYS];
+		counts = new int[bankCount * WAYS];
+		slotBank = new int[slots];
+		slotState = new int[slots];
+		slotData = new byte[slots][][];
+		keep = new boolean[slots];
+		for (int i = 0; i < slots; i++)
+			slotData[i] = new byte[][] {new byte[0x2000], new byte[0x2000]};
+	}
+
+	/** Counts a switch from one bank to another, on the cpu thread */
+	public final void learn(int from, int to) {
+		int base = from * WAYS;
+		int least = base;
+		for (int i = base; i < base + WAYS; i++) {
+			if (successors[i] == to + 1) {
+				if (++counts[i] >= MAX_COUNT) {
+					for (int j = base; j < base + WAYS; j++)
+						counts[j] >>= 1;
+				}
+				return;
+			}
+			if (counts[i] < counts[least])
+				least = i;
+		}
+		successors[least] = to + 1;
+		counts[least] = 1;
+	}
+
+	/**
+	 * Requests the most likely successors of the bank just mapped, skipping
+	 * those in loaded (the cpu's halfbank array, where loaded banks are not
+	 * null). Slots that hold other banks are reused, unless they are loading.
+	 */
+	public final synchronized void predict(int bank, byte[][] loaded) {
+		if (stopped)
+			return;
+		int base = bank * WAYS;
+		boolean requested = false;
+		int picked = 0; // bit mask of the table entries already tried
+		for (int slot = 0; slot < keep.length; slot++)
+			keep[slot] = false;
+
+		for (int n = 0; n < slotBank.length; n++) {
+			// the n:th most frequent successor
+			int best = -1;
+			for (int i = base; i < base + WAYS; i++) {
+				if (successors[i] != 0 && (picked & (1 << (i - base))) == 0 && (best < 0 || counts[i] > counts[best]))
+					best = i;
+			}
+			if (best < 0)
+				break;
+			picked |= 1 << (best - base);
+			int next = successors[best] - 1;
+			if (loaded[next * 2] != null)
+				continue;
+
+			int slot = findSlot(next);
+			if (slot >= 0) {
+				keep[slot] = true;
+				continue;
+			}
+			for (slot = 0; slot < slotBank.length; slot++) {
+				if (!keep[slot] && slotState[slot] != LOADING)
+					break;
+			}
+			if (slot == slotBank.length)
+				break;
+			if (slotState[slot] == READY) {
+				wasted++;
+				Metrics.romPrefetchesWasted++;
+			}
+			slotBank[slot] = next;
+			slotState[slot] = REQUESTED;
+			keep[slot] = true;
+			requested = true;
+		}
+
+		if (requested) {
+			if (thread == null) {
+				thread = new Thread(this);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				thread.start();
+			}
+			notifyAll();
+		}
+	}
+
+	private final int findSlot(int bank) {
+		for (int slot = 0; slot < slotBank.length; slot++) {
+			if (slotState[slot] != EMPTY && slotBank[slot] == bank)
+				return slot;
+		}
+		return -1;
+	}
+
+	/**
+	 * Called by the cpu on a miss. If the bank has been read ahead, swaps
+	 * the two halfbank buffers in dest for the slot's and returns true.
+	 * Waits if the bank is being read, and returns false if it is not in a
+	 * slot (or was only requested, which is then cancelled).
+	 */
+	public final synchronized boolean take(int bank, byte[][] dest) {
+		int slot = findSlot(bank);
+		if (slot < 0)
+			return false;
+		if (slotState[slot] == REQUESTED) {
+			slotState[slot] = EMPTY;
+			return false;
+		}
+		while (slotState[slot] == LOADING) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				return false;
+			}
+		}
+		if (slotState[slot] != READY || slotBank[slot] != bank)
+			return false;
+
+		byte[][] data = slotData[slot];
+		byte[] b = dest[0];
+		dest[0] = data[0];
+		data[0] = b;
+		b = dest[1];
+		dest[1] = data[1];
+		data[1] = b;
+		slotState[slot] = EMPTY;
+		hits++;
+		Metrics.romPrefetchHits++;
+		return true;
+	}
+
+	/** Ends the thread and drops the slots */
+	public final synchronized void stop() {
+		stopped = true;
+		notifyAll();
+	}
+
+	public void run() {
+		while (true) {
+			int slot = -1;
+			int bank;
+			byte[][] data;
+			synchronized (this) {
+				long idleStart = System.currentTimeMillis();
+				while (!stopped && (slot = nextRequest()) < 0) {
+					if (System.currentTimeMillis() - idleStart >= IDLE_MILLIS) {
+						thread = null;
+						return;
+					}
+					try {
+						wait(IDLE_MILLIS);
+					} catch (InterruptedException e) {
+					}
+				}
+				if (stopped) {
+					thread = null;
+					notifyAll();
+					return;
+				}
+				slotState[slot] = LOADING;
+				bank = slotBank[slot];
+				data = slotData[slot];
+			}
+
+			boolean ok;
+			try {
+				reader.read(bank, data);
+				ok = true;
+			} catch (Throwable t) {
+				// the cpu will read it again, and report the error
+				ok = false;
+			}
+
+			synchronized (this) {
+				slotState[slot] = ok ? READY : EMPTY;
+				if (ok) {
+					loads++;
+					Metrics.romPrefetches++;
+				}
+				notifyAll();
+			}
+		}
+	}
+
+	private final int nextRequest() {
+		for (int slot = 0; slot < slotBank.length; slot++) {
+			if (slotState[slot] == REQUESTED)
+				return slot;
+		}
+		return -1;
+	}
+}
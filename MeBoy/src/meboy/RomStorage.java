@@ -0,0 +1,44 @@
+package meboy;
+
+/*
+
+MeBoy
+
+Copyright 2005-2009 Bjorn Carlin
+http://www.arktos.se/
+
+Based on JavaBoy, COPYRIGHT (C) 2001 Neil Millstone and The Victoria
+University of Manchester. Bluetooth support based on code contributed by
+Martin Neumann.
+
+This program is free software; you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the Free
+Software Foundation; either version 2 of the License, or (at your option)
+any later version.
+
+This program is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+more details.
+
+
+You should have received a copy of the GNU General Public License along with
+this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+Place - Suite 330, Boston, MA 02111-1307, USA.
+
+*/
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Source of cartridge data. Bundled carts are stored per bank or in files
+ * of 128 kB (see RomBankReader), external roms are opened by their url.
+ */
+public interface RomStorage {
+	/** Returns null if there is no such file. */
+	InputStream open(String name) throws IOException;
+	
+	/** Returns the size of the file in bytes, or -1 if unknown. */
+	long size(String name) throws IOException;
+}
@@ -45,6 +45,8 @@ public class SimpleGraphicsChip extends GraphicsChip {
 	// Hacks to allow some raster effects to work.  Or at least not to break as badly.
 	boolean savedWindowDataSelect = false;
 	
+	public Image frameBufferImage;
+	
 	// tiles & image cache
 	private Image transparentImage;
 	private Image[] tileImage;
@@ -71,7 +73,7 @@ public class SimpleGraphicsChip extends GraphicsChip {
 		imageBounds = new int[tileCount][];
 		tileReadState = new boolean[tileCount];
 		
-		cpu.memory[4] = videoRam;
+		cpu.mapVideoRam(videoRam);
 		
 		tempPix = new int[tileWidth * tileHeight * 2];
 		transparentImage = Image.createRGBImage(tempPix, tileWidth, tileHeight, true);
@@ -98,6 +100,7 @@ public class SimpleGraphicsChip extends GraphicsChip {
 			int tileIndex = (addr >> 4) + tileOffset;
 			
 			if (tileReadState[tileIndex]) {
+				Metrics.tileInvalidations++;
 				int r = tileImage.length - tileCount + tileIndex;
 				
 				do {
@@ -116,6 +119,7 @@ public class SimpleGraphicsChip extends GraphicsChip {
 		int start = pal * tileCount * 4;
 		int stop = (pal + 1) * tileCount * 4;
 		
+		Metrics.paletteInvalidations++;
 		for (int r = start; r < stop; r++) {
 			tileImage[r] = null;
 		}
@@ -256,7 +260,14 @@ public class SimpleGraphicsChip extends GraphicsChip {
 		if (line == 143) {
 			if (!screenFilled)
 				notifyScanline(144); // fudge to update last part of screen when scrolling in y direction
-			updateFrameBufferImage();
+			FrameTimer frameTimer = cpu.frameTimer;
+			if (frameTimer != null) {
+				int stage = frameTimer.enter(FrameTimer.CONVERT);
+				updateFrameBufferImage();
+				frameTimer.enter(stage);
+			} else {
+				updateFrameBufferImage();
+			}
 		}
 	}
 	
@@ -22,9 +22,18 @@ public final class AppInfo {
 	public static final String DEVICE_INFO_TITLE = "Device Info";
 	public static final String BACK_LABEL = "Back";
 	public static final String LOG_LABEL = "Log";
+	public static final String METRICS_LABEL = "Metrics";
+	public static final String METRICS_TITLE = "Emulator Metrics";
+	public static final String BENCHMARK_LABEL = "Benchmark";
+	public static final String FAST_FORWARD_LABEL = "Fast forward";
+	public static final String NORMAL_SPEED_LABEL = "Normal speed";
+	public static final String FRAME_TIMING_LABEL = "Frame timing";
+	public static final String TURBO_SPEED_LABEL = "Fast forward speed";
+	public static final String ROM_PREFETCH_LABEL = "ROM banks to read ahead";
 	public static final String WAIT_FORM_TITLE = "MeBoy";
 	public static final String WAIT_STORAGE_MESSAGE = "Opening storage...";
 	public static final String WAIT_LOADING_ROM_MESSAGE = "Loading ROM...";
+	public static final String WAIT_BENCHMARK_MESSAGE = "Running benchmark...";
 	public static final String NO_BUNDLED_ROMS_MESSAGE = "No bundled ROMs found. Use \"";
 	public static final String FILE_BROWSER_OPEN_ERROR = "Could not open file browser.";
 	public static final String ROM_LOAD_MEMORY_ERROR = "Not enough memory to load ROM.";
@@ -9,6 +9,7 @@ import javax.microedition.io.file.FileConnection;
 public final class SaveFileStore {
 	private static final String SAVE_EXTENSION = ".sav";
 	private static final String RTC_EXTENSION = ".rtc";
+	private static final String BANK_PROFILE_EXTENSION = ".bnk";
 
 	private SaveFileStore() {
 	}
@@ -21,6 +22,10 @@ public final class SaveFileStore {
 		return replaceExtension(romFileUrl, RTC_EXTENSION);
 	}
 
+	public static String getBankProfileFileUrl(String romFileUrl) {
+		return replaceExtension(romFileUrl, BANK_PROFILE_EXTENSION);
+	}
+
 	private static String replaceExtension(String romFileUrl, String extension) {
 		if (romFileUrl == null || romFileUrl.length() == 0) {
 			return null;
@@ -41,6 +46,10 @@ public final class SaveFileStore {
 		writeFile(getRtcFileUrl(romFileUrl), data);
 	}
 
+	public static void writeBankProfile(String romFileUrl, byte[] data) throws Exception {
+		writeFile(getBankProfileFileUrl(romFileUrl), data);
+	}
+
 	private static void writeFile(String fileUrl, byte[] data) throws Exception {
 		FileConnection fc = null;
 		OutputStream os = null;
@@ -78,6 +87,10 @@ public final class SaveFileStore {
 		return readFile(getRtcFileUrl(romFileUrl));
 	}
 
+	public static byte[] readBankProfile(String romFileUrl) throws Exception {
+		return readFile(getBankProfileFileUrl(romFileUrl));
+	}
+
 	private static byte[] readFile(String fileUrl) throws Exception {
 		FileConnection fc = null;
 		InputStream is = null;
@@ -5,6 +5,7 @@ import javax.microedition.lcdui.CommandListener;
 import javax.microedition.lcdui.Display;
 import javax.microedition.lcdui.Displayable;
 import javax.microedition.lcdui.Form;
+import meboy.Metrics;
 import meboy.app.AppInfo;
 
 public final class DeviceInfoController implements CommandListener {
@@ -41,6 +42,8 @@ public final class DeviceInfoController implements CommandListener {
 
 	private final Host host;
 	private Form deviceInfoForm;
+	private Form metricsForm;
+	private Command metricsCommand;
 
 	public DeviceInfoController(Host host) {
 		this.host = host;
@@ -50,16 +53,27 @@ public final class DeviceInfoController implements CommandListener {
 		deviceInfoForm = new Form(AppInfo.DEVICE_INFO_TITLE);
 		deviceInfoForm.append(buildDeviceInfoText());
 		deviceInfoForm.addCommand(new Command(AppInfo.LOG_LABEL, Command.SCREEN, 0));
+		metricsCommand = new Command(AppInfo.METRICS_LABEL, Command.SCREEN, 1);
+		deviceInfoForm.addCommand(metricsCommand);
 		deviceInfoForm.addCommand(new Command(AppInfo.BACK_LABEL, Command.BACK, 0));
 		deviceInfoForm.setCommandListener(this);
 		host.getDisplay().setCurrent(deviceInfoForm);
 	}
 
 	public boolean handles(Displayable displayable) {
-		return displayable == deviceInfoForm;
+		return displayable == deviceInfoForm || displayable == metricsForm;
 	}
 
 	public void commandAction(Command com, Displayable s) {
+		if (s == metricsForm) {
+			metricsForm = null;
+			host.getDisplay().setCurrent(deviceInfoForm);
+			return;
+		}
+		if (com == metricsCommand) {
+			showMetrics();
+			return;
+		}
 		if (com.getCommandType() != Command.BACK) {
 			host.appendLog(buildDeviceInfoLogText());
 			host.openLog();
@@ -69,6 +83,14 @@ public final class DeviceInfoController implements CommandListener {
 		host.showMainMenu();
 	}
 
+	private void showMetrics() {
+		metricsForm = new Form(AppInfo.METRICS_TITLE);
+		metricsForm.append(Metrics.report());
+		metricsForm.addCommand(new Command(AppInfo.BACK_LABEL, Command.BACK, 0));
+		metricsForm.setCommandListener(this);
+		host.getDisplay().setCurrent(metricsForm);
+	}
+
 	private String buildDeviceInfoText() {
 		StringBuffer buffer = new StringBuffer();
 		Runtime runtime = Runtime.getRuntime();
@@ -106,7 +128,7 @@ public final class DeviceInfoController implements CommandListener {
 	}
 
 	private String buildDeviceInfoLogText() {
-		return "=== Device Info ===\n" + buildDeviceInfoText();
+		return "=== Device Info ===\n" + buildDeviceInfoText() + "\n=== Metrics ===\n" + Metrics.report();
 	}
 
 	private void appendSectionTitle(StringBuffer buffer, String title) {
@@ -9,6 +9,7 @@ import javax.microedition.lcdui.Form;
 import javax.microedition.lcdui.TextField;
 import meboy.GBCanvas;
 import meboy.MeBoy;
+import meboy.app.AppInfo;
 
 public final class SettingsController implements CommandListener {
 	public interface Host {
@@ -23,6 +24,8 @@ public final class SettingsController implements CommandListener {
 	private final Host host;
 	private Form settingsForm;
 	private TextField frameSkipField;
+	private TextField turboSpeedField;
+	private TextField romPrefetchField;
 	private TextField rotationField;
 	private TextField loadThresholdField;
 	private TextField scalingModeField;
@@ -40,6 +43,8 @@ public final class SettingsController implements CommandListener {
 
 		frameSkipField = new TextField(host.getLiteral(12), "" + MeBoy.maxFrameSkip, 3, TextField.NUMERIC);
 		settingsForm.append(frameSkipField);
+		turboSpeedField = new TextField(AppInfo.TURBO_SPEED_LABEL, "" + MeBoy.turboSpeed, 2, TextField.NUMERIC);
+		settingsForm.append(turboSpeedField);
 		rotationField = new TextField(host.getLiteral(13), "" + MeBoy.rotations, 2, TextField.NUMERIC);
 		settingsForm.append(rotationField);
 
@@ -75,6 +80,8 @@ public final class SettingsController implements CommandListener {
 
 		loadThresholdField = new TextField(host.getLiteral(26), "" + MeBoy.lazyLoadingThreshold * 16, 5, TextField.NUMERIC);
 		settingsForm.append(loadThresholdField);
+		romPrefetchField = new TextField(AppInfo.ROM_PREFETCH_LABEL, "" + MeBoy.romPrefetchSlots, 1, TextField.NUMERIC);
+		settingsForm.append(romPrefetchField);
 
 		settingsForm.addCommand(new Command(host.getLiteral(10), Command.BACK, 0));
 		settingsForm.addCommand(new Command(host.getLiteral(27), Command.OK, 1));
@@ -95,8 +102,12 @@ public final class SettingsController implements CommandListener {
 
 		int f = Integer.parseInt(frameSkipField.getString());
 		MeBoy.maxFrameSkip = Math.max(Math.min(f, 59), 0);
+		f = Integer.parseInt(turboSpeedField.getString());
+		MeBoy.turboSpeed = Math.max(Math.min(f, 16), 2);
 		MeBoy.rotations = Integer.parseInt(rotationField.getString()) & 3;
 		MeBoy.lazyLoadingThreshold = Math.max(Integer.parseInt(loadThresholdField.getString()) / 16, 20);
+		f = Integer.parseInt(romPrefetchField.getString());
+		MeBoy.romPrefetchSlots = Math.max(Math.min(f, 4), 0);
 		MeBoy.enableScaling = graphicsGroup.isSelected(0);
 		MeBoy.keepProportions = graphicsGroup.isSelected(1);
 		MeBoy.advancedGraphics = graphicsGroup.isSelected(2);
@@ -500,12 +500,15 @@ public class MeBoyBuilder implements ActionListener, ListSelectionListener, Wind
 			cartsTxt.add(g.fileName);
 			cartsTxt.add(g.cartID);
 
-			int maxFileSize = 1 << 17; // for each split file
-
-			int parts = Math.max(1, (g.data.length + maxFileSize - 1) / maxFileSize);
-			for (int j = 0; j < parts; j++) {
-				zo.putNextEntry(new ZipEntry("meboy/" + g.cartID + j));
-				zo.write(g.data, j * maxFileSize, Math.min(maxFileSize, g.data.length - j * maxFileSize));
+			// One entry per 16 kB bank, so that the emulator can load a single
+			// bank without inflating the banks before it. Jars built by older
+			// versions split the ROM in 128 kB files, which MeBoy still reads.
+			int bankSize = 1 << 14;
+
+			int banks = Math.max(1, (g.data.length + bankSize - 1) / bankSize);
+			for (int j = 0; j < banks; j++) {
+				zo.putNextEntry(new ZipEntry("meboy/" + g.cartID + "/" + j));
+				zo.write(g.data, j * bankSize, Math.min(bankSize, g.data.length - j * bankSize));
 			}
 		}
 
@@ -0,0 +1,71 @@
+/*
+
+MeBoy
+
+Copyright 2005-2009 Bjorn Carlin
+http://www.arktos.se/
+
+Based on JavaBoy, COPYRIGHT (C) 2001 Neil Millstone and The Victoria
+University of Manchester. Bluetooth support based on code contributed by
+Martin Neumann.
+
+This program is free software; you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the Free
+Software Foundation; either version 2 of the License, or (at your option)
+any later version.
+
+This program is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+more details.
+
+
+You should have received a copy of the GNU General Public License along with
+this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+Place - Suite 330, Boston, MA 02111-1307, USA.
+
+*/
+
+package se.arktos.meboy.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import meboy.Dmgcpu;
+import meboy.MeBoy;
+
+/**
+ * ROM bank switches through the MBC1 bank register, on a 1 MB cart.
+ * Without lazy loading all 64 banks are in memory; with it, only
+ * LAZY_BANKS are kept, so most switches load the bank from storage.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BankSwitchBenchmark {
+	private static final int BANKS = 64;
+	private static final int LAZY_BANKS = 8;
+
+	@Param({"false", "true"})
+	public boolean lazy;
+
+	private Dmgcpu cpu;
+	private int bank = 1;
+
+	@Setup
+	public void setUp() {
+		MeBoy.lazyLoadingThreshold = lazy ? LAZY_BANKS : BANKS;
+		cpu = SyntheticCart.start(SyntheticCart.rom("alu", BANKS), null);
+	}
+
+	@Benchmark
+	public int switchBank() {
+		bank = (bank * 5 + 3) & (BANKS - 1); // visits every bank
+		cpu.addressWrite(0x2000, bank);
+		return cpu.addressRead(0x4000);
+	}
+}
@@ -0,0 +1,91 @@
+/*
+
+MeBoy
+
+Copyright 2005-2009 Bjorn Carlin
+http://www.arktos.se/
+
+Based on JavaBoy, COPYRIGHT (C) 2001 Neil Millstone and The Victoria
+University of Manchester. Bluetooth support based on code contributed by
+Martin Neumann.
+
+This program is free software; you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the Free
+Software Foundation; either version 2 of the License, or (at your option)
+any later version.
+
+This program is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+more details.
+
+
+You should have received a copy of the GNU General Public License along with
+this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+Place - Suite 330, Boston, MA 02111-1307, USA.
+
+*/
+
+package se.arktos.meboy.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import meboy.MeBoy;
+import se.arktos.meboy.tools.GraphicsReplay;
+import se.arktos.meboy.tools.GraphicsTrace;
+
+/**
+ * Rendering cost of the graphics chips, separate from the cpu: one
+ * operation replays one frame of a graphics trace. The trace is generated
+ * (synthetic, synthetic-color) or a file recorded with GraphicsTrace. Run
+ * with -prof gc for the bytes allocated per frame.
+ * 
+ * The simple chip draws through lcdui Images, so chip=simple needs a working
+ * MIDP implementation on the classpath rather than the WTK api jars.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GraphicsReplayBenchmark {
+	@Param({"synthetic", "synthetic-color"})
+	public String trace;
+
+	@Param({"advanced"})
+	public String chip;
+
+	@Param({"160x144", "176x208", "240x320"})
+	public String size;
+
+	@Param({"0", "1", "2", "3"})
+	public int scalingMode;
+
+	private GraphicsReplay replay;
+
+	@Setup
+	public void setUp() throws IOException {
+		GraphicsTrace t;
+		if (trace.equals("synthetic"))
+			t = SyntheticTrace.create(false);
+		else if (trace.equals("synthetic-color"))
+			t = SyntheticTrace.create(true);
+		else
+			t = GraphicsTrace.read(new File(trace));
+
+		int x = size.indexOf('x');
+		MeBoy.scalingMode = scalingMode;
+		replay = new GraphicsReplay(t, chip.equals("advanced"), Integer.parseInt(size.substring(0, x)),
+				Integer.parseInt(size.substring(x + 1)));
+	}
+
+	@Benchmark
+	public void frame() {
+		replay.frame();
+	}
+}
@@ -0,0 +1,64 @@
+/*
+
+MeBoy
+
+Copyright 2005-2009 Bjorn Carlin
+http://www.arktos.se/
+
+Based on JavaBoy, COPYRIGHT (C) 2001 Neil Millstone and The Victoria
+University of Manchester. Bluetooth support based on code contributed by
+Martin Neumann.
+
+This program is free software; you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the Free
+Software Foundation; either version 2 of the License, or (at your option)
+any later version.
+
+This program is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+more details.
+
+
+You should have received a copy of the GNU General Public License along with
+this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+Place - Suite 330, Boston, MA 02111-1307, USA.
+
+*/
+
+package se.arktos.meboy.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import meboy.Dmgcpu;
+
+/**
+ * Interpreter throughput on the synthetic instruction mixes. One operation
+ * is one emulated frame, i.e. a fixed number of cpu cycles, so frames per
+ * second compare directly across commits.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InstructionMixBenchmark {
+	@Param({"alu", "load", "cb", "pairs", "branch"})
+	public String mix;
+
+	private Dmgcpu cpu;
+
+	@Setup
+	public void setUp() {
+		cpu = SyntheticCart.start(SyntheticCart.rom(mix, 2), null);
+		cpu.runFrames(1); // past the prologue
+	}
+
+	@Benchmark
+	public void frame() {
+		cpu.runFrames(1);
+	}
+}
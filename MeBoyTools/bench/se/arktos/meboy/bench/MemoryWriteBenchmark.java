@@ -0,0 +1,73 @@
+/*
+
+MeBoy
+
+Copyright 2005-2009 Bjorn Carlin
+http://www.arktos.se/
+
+Based on JavaBoy, COPYRIGHT (C) 2001 Neil Millstone and The Victoria
+University of Manchester. Bluetooth support based on code contributed by
+Martin Neumann.
+
+This program is free software; you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the Free
+Software Foundation; either version 2 of the License, or (at your option)
+any later version.
+
+This program is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+more details.
+
+
+You should have received a copy of the GNU General Public License along with
+this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+Place - Suite 330, Boston, MA 02111-1307, USA.
+
+*/
+
+package se.arktos.meboy.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import meboy.Dmgcpu;
+
+/**
+ * addressWrite over each writable memory region, 256 writes per operation.
+ * Writes to the ROM region are bank switches, see BankSwitchBenchmark. The
+ * io registers are left out, since writing them starts dma, sound etc.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MemoryWriteBenchmark {
+	@Param({"vram", "cartram", "wram", "echo", "oam", "hram"})
+	public String region;
+
+	private Dmgcpu cpu;
+	private int base;
+	private int length;
+	private int value;
+
+	@Setup
+	public void setUp() {
+		cpu = SyntheticCart.start(SyntheticCart.rom("alu", 4), null);
+		cpu.runFrames(1);
+		cpu.addressWrite(0x0000, 0x0a); // enable cart ram
+		base = SyntheticCart.regionBase(region);
+		length = SyntheticCart.regionLength(region);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(256)
+	public void write() {
+		int v = value++;
+		for (int i = 0; i < 256; i++)
+			cpu.addressWrite(base + (i % length), v + i);
+	}
+}
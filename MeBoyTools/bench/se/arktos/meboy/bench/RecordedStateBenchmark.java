@@ -0,0 +1,93 @@
+/*
+
+MeBoy
+
+Copyright 2005-2009 Bjorn Carlin
+http://www.arktos.se/
+
+Based on JavaBoy, COPYRIGHT (C) 2001 Neil Millstone and The Victoria
+University of Manchester. Bluetooth support based on code contributed by
+Martin Neumann.
+
+This program is free software; you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the Free
+Software Foundation; either version 2 of the License, or (at your option)
+any later version.
+
+This program is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+more details.
+
+
+You should have received a copy of the GNU General Public License along with
+this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+Place - Suite 330, Boston, MA 02111-1307, USA.
+
+*/
+
+package se.arktos.meboy.bench;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import meboy.Dmgcpu;
+
+/**
+ * Replays the same stretch of a game on every operation. The cart is run
+ * for startFrames once, its state is recorded with flatten(), and each
+ * operation restores that state with unflatten() and runs framesPerOp
+ * frames. Pass a ROM file with -p rom=path/to/game.gb; without one, the
+ * synthetic "alu" cart is used. Frames are drawn, so this includes the
+ * graphics chip.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecordedStateBenchmark {
+	@Param({""})
+	public String rom;
+
+	@Param({"300"})
+	public int startFrames;
+
+	@Param({"60"})
+	public int framesPerOp;
+
+	private Dmgcpu cpu;
+	private byte[] state;
+
+	@Setup
+	public void setUp() throws IOException {
+		byte[] data = rom.length() == 0 ? SyntheticCart.rom("alu", 2) : readFile(new File(rom));
+		cpu = SyntheticCart.start(data, null);
+		cpu.runFrames(startFrames);
+		state = cpu.flatten();
+	}
+
+	@Benchmark
+	public Dmgcpu replay() {
+		cpu.unflatten(state);
+		cpu.runFrames(framesPerOp);
+		return cpu;
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		byte[] data = new byte[(int) file.length()];
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			in.readFully(data);
+		} finally {
+			in.close();
+		}
+		return data;
+	}
+}
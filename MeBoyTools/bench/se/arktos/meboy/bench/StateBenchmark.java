@@ -0,0 +1,70 @@
+/*
+
+MeBoy
+
+Copyright 2005-2009 Bjorn Carlin
+http://www.arktos.se/
+
+Based on JavaBoy, COPYRIGHT (C) 2001 Neil Millstone and The Victoria
+University of Manchester. Bluetooth support based on code contributed by
+Martin Neumann.
+
+This program is free software; you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the Free
+Software Foundation; either version 2 of the License, or (at your option)
+any later version.
+
+This program is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+more details.
+
+
+You should have received a copy of the GNU General Public License along with
+this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+Place - Suite 330, Boston, MA 02111-1307, USA.
+
+*/
+
+package se.arktos.meboy.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import meboy.Dmgcpu;
+
+/**
+ * flatten() and unflatten() of a color cart state, as done when a game is
+ * suspended and resumed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StateBenchmark {
+	private Dmgcpu cpu;
+	private byte[] state;
+
+	@Setup
+	public void setUp() {
+		byte[] rom = SyntheticCart.rom("load", 4);
+		rom[0x143] = (byte) 0x80; // color
+		cpu = SyntheticCart.start(rom, null);
+		cpu.runFrames(10);
+		state = cpu.flatten();
+	}
+
+	@Benchmark
+	public byte[] flatten() {
+		return cpu.flatten();
+	}
+
+	@Benchmark
+	public Dmgcpu unflatten() {
+		cpu.unflatten(state);
+		return cpu;
+	}
+}
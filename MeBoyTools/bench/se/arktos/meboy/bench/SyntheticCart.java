@@ -0,0 +1,200 @@
+/*
+
+MeBoy
+
+Copyright 2005-2009 Bjorn Carlin
+http://www.arktos.se/
+
+Based on JavaBoy, COPYRIGHT (C) 2001 Neil Millstone and The Victoria
+University of Manchester. Bluetooth support based on code contributed by
+Martin Neumann.
+
+This program is free software; you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the Free
+Software Foundation; either version 2 of the License, or (at your option)
+any later version.
+
+This program is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+more details.
+
+
+You should have received a copy of the GNU General Public License along with
+this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+Place - Suite 330, Boston, MA 02111-1307, USA.
+
+*/
+
+package se.arktos.meboy.bench;
+
+import meboy.Dmgcpu;
+import meboy.EmulatedClock;
+import meboy.MeBoy;
+import se.arktos.meboy.tools.MemoryRomStorage;
+
+/**
+ * Builds small MBC1 carts whose code is an endless loop over one
+ * instruction mix, with the LCD off and interrupts disabled, so that the
+ * time of a frame is spent in the cpu. The carts are generated here rather
+ * than read from files, so the benchmark input is the same on every commit.
+ */
+final class SyntheticCart {
+	static final String CART_NAME = "bench";
+
+	private static final int PROLOGUE = 0x0150;
+	private static final int LOOP = 0x0160;
+
+	private static final int[] PROLOGUE_CODE = {
+		0xf3, // DI
+		0x31, 0xfe, 0xdf, // LD SP, DFFE
+		0xaf, // XOR A
+		0xe0, 0x40, // LDH (40), A: lcd off
+		0x21, 0x00, 0xc0, // LD HL, C000
+		0x01, 0x34, 0x12, // LD BC, 1234
+		0x11, 0x00, 0xc8, // LD DE, C800
+	};
+
+	private static final int[] ALU = {
+		0x80, 0xa9, 0xa2, 0xb3, 0x94, 0x8d, 0x9a, 0xbc, // ADD B, XOR C, AND D, OR E, SUB H, ADC L, SBC D, CP H
+		0x3c, 0x05, 0x0c, 0x1d, 0x2f, 0x37, 0x3f, 0x27, // INC A, DEC B, INC C, DEC E, CPL, SCF, CCF, DAA
+		0xc6, 0x11, 0xee, 0x5a, 0xfe, 0x40, // ADD 11, XOR 5A, CP 40
+	};
+
+	private static final int[] LOAD = {
+		0x46, 0x70, 0x4e, 0x71, 0x56, 0x72, 0x5e, 0x73, // LD r, (HL) and LD (HL), r
+		0x7e, 0x77, 0x2a, 0x32, // LD A, (HL); LD (HL), A; LD A, (HL+); LD (HL-), A
+		0x78, 0x41, 0x4a, 0x53, 0x5f, // LD A, B; LD B, C; LD C, D; LD D, E; LD E, A
+		0xfa, 0x00, 0xc1, 0xea, 0x01, 0xc1, // LD A, (C100); LD (C101), A
+		0x2c, 0x7d, 0xe6, 0x3f, 0x6f, // INC L; LD A, L; AND 3F; LD L, A
+	};
+
+	private static final int[] CB = {
+		0xcb, 0x00, 0xcb, 0x09, 0xcb, 0x12, 0xcb, 0x1b, // RLC B, RRC C, RL D, RR E
+		0xcb, 0x27, 0xcb, 0x2f, 0xcb, 0x37, 0xcb, 0x38, // SLA A, SRA A, SWAP A, SRL B
+		0xcb, 0x47, 0xcb, 0x59, 0xcb, 0x80, 0xcb, 0xc9, // BIT 0, A; BIT 3, C; RES 0, B; SET 1, C
+		0xcb, 0x46, 0xcb, 0x86, 0xcb, 0xc6, 0xcb, 0x06, // BIT 0, (HL); RES 0, (HL); SET 0, (HL); RLC (HL)
+	};
+
+	private static final int[] PAIRS = {
+		0x0a, 0x12, 0x03, 0x13, // LD A, (BC); LD (DE), A; INC BC; INC DE
+		0xc5, 0xd5, 0xd1, 0xc1, // PUSH BC, PUSH DE, POP DE, POP BC
+		0x09, 0x19, // ADD HL, BC; ADD HL, DE
+		0x7a, 0xe6, 0xcf, 0xf6, 0xc0, 0x57, // keep DE in C000-CFFF
+	};
+
+	// CALL and JP targets are filled in by code()
+	private static final int[] BRANCH = {
+		0xcd, 0x00, 0x00, // CALL sub
+		0x18, 0x00, // JR +0
+		0xc3, 0x00, 0x00, // JP next
+		0xc5, 0xd5, 0xe5, 0xf5, 0xf1, 0xe1, 0xd1, 0xc1, // PUSH/POP all pairs
+		0xb7, 0x20, 0x00, 0x28, 0x00, // OR A; JR NZ, +0; JR Z, +0
+	};
+
+	static final String[] MIXES = {"alu", "load", "cb", "pairs", "branch"};
+
+	private SyntheticCart() {
+	}
+
+	/** Returns a cart of the given number of 16 kB banks (2-64) running the mix. */
+	static byte[] rom(String mix, int banks) {
+		byte[] rom = new byte[banks * 0x4000];
+		for (int bank = 1; bank < banks; bank++) {
+			for (int i = 0; i < 0x4000; i++)
+				rom[bank * 0x4000 + i] = (byte) bank;
+		}
+
+		// entry point: NOP; JP 0150
+		rom[0x100] = 0x00;
+		rom[0x101] = (byte) 0xc3;
+		rom[0x102] = (byte) PROLOGUE;
+		rom[0x103] = (byte) (PROLOGUE >> 8);
+		rom[0x147] = 0x03; // MBC1 + RAM + battery
+		rom[0x148] = (byte) (Integer.numberOfTrailingZeros(banks) - 1);
+		rom[0x149] = 0x02; // 8 kB RAM
+
+		int pc = put(rom, PROLOGUE, PROLOGUE_CODE);
+		if (pc != LOOP)
+			throw new IllegalStateException("prologue size");
+		int[] body = code(mix);
+		pc = put(rom, pc, body);
+		rom[pc] = 0x18; // JR LOOP
+		rom[pc + 1] = (byte) (LOOP - (pc + 2));
+		rom[pc + 2] = (byte) 0xc9; // RET, the subroutine called by the branch mix
+		return rom;
+	}
+
+	private static int[] code(String mix) {
+		if (mix.equals("alu"))
+			return ALU;
+		if (mix.equals("load"))
+			return LOAD;
+		if (mix.equals("cb"))
+			return CB;
+		if (mix.equals("pairs"))
+			return PAIRS;
+		if (mix.equals("branch")) {
+			int[] code = BRANCH.clone();
+			int sub = LOOP + code.length + 2;
+			code[1] = sub & 0xff;
+			code[2] = sub >> 8;
+			int next = LOOP + 8;
+			code[6] = next & 0xff;
+			code[7] = next >> 8;
+			return code;
+		}
+		throw new IllegalArgumentException("unknown mix " + mix);
+	}
+
+	private static int put(byte[] rom, int pc, int[] code) {
+		for (int i = 0; i < code.length; i++)
+			rom[pc++] = (byte) code[i];
+		return pc;
+	}
+
+	/** First address used by the memory benchmarks in the named region. */
+	static int regionBase(String region) {
+		if (region.equals("rom0"))
+			return 0x0100;
+		if (region.equals("romx"))
+			return 0x4000;
+		if (region.equals("vram"))
+			return 0x8000;
+		if (region.equals("cartram"))
+			return 0xa000;
+		if (region.equals("wram"))
+			return 0xc100;
+		if (region.equals("echo"))
+			return 0xe100;
+		if (region.equals("oam"))
+			return 0xfe00;
+		if (region.equals("io"))
+			return 0xff00;
+		if (region.equals("hram"))
+			return 0xff80;
+		throw new IllegalArgumentException("unknown region " + region);
+	}
+
+	static int regionLength(String region) {
+		if (region.equals("oam"))
+			return 0xa0;
+		if (region.equals("io"))
+			return 0x80;
+		if (region.equals("hram"))
+			return 0x7f; // not the interrupt enable register
+		return 0x100;
+	}
+
+	/**
+	 * Starts a cpu on the cart. The cart is served through MemoryRomStorage, so
+	 * banks beyond MeBoy.lazyLoadingThreshold are loaded lazily like for carts
+	 * bundled in the jar. The graphics chip is always AdvancedGraphicsChip,
+	 * since SimpleGraphicsChip needs a real MIDP display.
+	 */
+	static Dmgcpu start(byte[] rom, byte[] flatState) {
+		MeBoy.advancedGraphics = true;
+		return new Dmgcpu(CART_NAME, null, null, new EmulatedClock(0),
+				new MemoryRomStorage(CART_NAME, rom), flatState);
+	}
+}
@@ -0,0 +1,109 @@
+/*
+
+MeBoy
+
+Copyright 2005-2009 Bjorn Carlin
+http://www.arktos.se/
+
+Based on JavaBoy, COPYRIGHT (C) 2001 Neil Millstone and The Victoria
+University of Manchester. Bluetooth support based on code contributed by
+Martin Neumann.
+
+This program is free software; you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the Free
+Software Foundation; either version 2 of the License, or (at your option)
+any later version.
+
+This program is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+more details.
+
+
+You should have received a copy of the GNU General Public License along with
+this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+Place - Suite 330, Boston, MA 02111-1307, USA.
+
+*/
+
+package se.arktos.meboy.bench;
+
+import meboy.Dmgcpu;
+import se.arktos.meboy.tools.GraphicsTrace;
+
+/**
+ * Generates graphics traces in code, like SyntheticCart does for the cpu:
+ * a tiled background scrolling diagonally under a window status bar and 40
+ * moving sprites, with one animated tile rewritten per frame. The color
+ * variant also sets gbc palettes and background attributes.
+ */
+final class SyntheticTrace {
+	static final int FRAMES = 120;
+
+	private SyntheticTrace() {
+	}
+
+	static GraphicsTrace create(boolean color) {
+		byte[] rom = SyntheticCart.rom("alu", 2);
+		if (color)
+			rom[0x143] = (byte) 0x80;
+		Dmgcpu cpu = SyntheticCart.start(rom, null);
+		GraphicsTrace trace = GraphicsTrace.attach(cpu);
+		cpu.graphicsRecorder = null; // the events are generated below, not recorded
+
+		// lcd on, window map at 9c00, window on, tiles at 8000, 8x8 sprites on, background on
+		trace.ioWrite(0x40, 0xf3);
+		trace.ioWrite(0x47, 0xe4);
+		trace.ioWrite(0x48, 0xd2);
+		trace.ioWrite(0x49, 0x1b);
+		trace.ioWrite(0x4a, 128); // WY: status bar on the last two tile rows
+		trace.ioWrite(0x4b, 7);
+
+		if (color) {
+			for (int index = 0x68; index <= 0x6a; index += 2) {
+				trace.ioWrite(index, 0x80); // auto increment from 0
+				for (int i = 0; i < 64; i++)
+					trace.ioWrite(index + 1, (i * 37 + index) & 0xff);
+			}
+			trace.ioWrite(0x4f, 1);
+			for (int i = 0; i < 0x800; i++)
+				trace.vramWrite(0x1800 + i, (i & 7) | ((i & 0x40) != 0 ? 0x20 : 0)); // palette, x flip
+			trace.ioWrite(0x4f, 0);
+		}
+
+		for (int i = 0; i < 128 * 16; i++)
+			trace.vramWrite(i, tileByte(i, 0));
+		for (int i = 0; i < 0x400; i++)
+			trace.vramWrite(0x1800 + i, (i * 5 + (i >> 5)) & 0x7f);
+		for (int i = 0; i < 0x400; i++)
+			trace.vramWrite(0x1c00 + i, 0x70 + (i & 0x0f));
+
+		for (int frame = 0; frame < FRAMES; frame++) {
+			trace.ioWrite(0x42, frame >> 1); // SCY
+			trace.ioWrite(0x43, frame); // SCX
+			for (int sprite = 0; sprite < 40; sprite++) {
+				int x = (sprite * 19 + frame * ((sprite & 3) + 1)) % 168;
+				int y = 16 + (sprite * 11 + frame) % 136;
+				trace.oamWrite(sprite * 4, y);
+				trace.oamWrite(sprite * 4 + 1, x);
+				trace.oamWrite(sprite * 4 + 2, 0x40 + sprite);
+				trace.oamWrite(sprite * 4 + 3, (sprite & 1) << 4 | (sprite & 2) << 4 | (color ? sprite & 7 : 0));
+			}
+			int tile = frame & 0x3f;
+			for (int i = 0; i < 16; i++)
+				trace.vramWrite(tile * 16 + i, tileByte(tile * 16 + i, frame));
+
+			for (int line = 0; line < 144; line++)
+				trace.scanline(line);
+			trace.vBlank();
+		}
+		trace.detach(cpu);
+		return trace;
+	}
+
+	private static int tileByte(int addr, int frame) {
+		int tile = addr >> 4;
+		int row = (addr >> 1) & 7;
+		return ((tile * 7 + row * 13 + frame) ^ (row << 4)) & 0xff;
+	}
+}
@@ -0,0 +1,337 @@
+/*
+
+MeBoy
+
+Copyright 2005-2009 Bjorn Carlin
+http://www.arktos.se/
+
+Based on JavaBoy, COPYRIGHT (C) 2001 Neil Millstone and The Victoria
+University of Manchester. Bluetooth support based on code contributed by
+Martin Neumann.
+
+This program is free software; you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the Free
+Software Foundation; either version 2 of the License, or (at your option)
+any later version.
+
+This program is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+more details.
+
+
+You should have received a copy of the GNU General Public License along with
+this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+Place - Suite 330, Boston, MA 02111-1307, USA.
+
+*/
+
+package se.arktos.meboy.tools;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import meboy.Dmgcpu;
+import meboy.EmulatedClock;
+import meboy.FrameTimer;
+import meboy.HeadlessVideo;
+import meboy.MeBoy;
+import meboy.ResourceRomStorage;
+
+/**
+ * Runs every ROM in a directory for a number of frames without a display,
+ * spread over a fixed pool of worker threads, and writes a CSV or JSON
+ * report. For each ROM, the report has the emulated frames per second, a
+ * hash of the last frame, the ROM bank switches and misses, the ms per frame
+ * spent emulating, drawing scanlines and converting the frame (see
+ * FrameTimer), and any exception the emulation threw.
+ * 
+ * The ROMs are loaded like external ROMs on the phone (see
+ * MeBoy.registerExternalRom), and run with Dmgcpu.runFrames, so nothing is
+ * throttled or skipped. They run on an EmulatedClock, so carts with a
+ * realtime clock give the same result on every run.
+ */
+public class BatchRunner {
+	private static final String[] ROM_EXTENSIONS = {".gb", ".gbc", ".cgb"};
+	private static final String USAGE = "usage: BatchRunner romDir [-frames n] [-threads n] "
+			+ "[-timeout seconds] [-out report.csv|report.json]";
+
+	static class Result {
+		String rom;
+		int size;
+		int frames;
+		long nanos;
+		String frameHash;
+		int bankSwitches;
+		int bankMisses;
+		double cpuMs;
+		double scanlineMs;
+		double convertMs;
+		String error = "";
+
+		double seconds() {
+			return nanos / 1e9;
+		}
+
+		double fps() {
+			return nanos > 0 ? frames / seconds() : 0;
+		}
+	}
+
+	File romDir;
+	File out = new File("batch-report.csv");
+	int frames = 600;
+	int threads = Runtime.getRuntime().availableProcessors();
+	int timeoutSeconds = 120;
+
+	// cpus still running, with the time (ms) when they are stopped
+	private final Map<Dmgcpu, Long> deadlines = new ConcurrentHashMap<Dmgcpu, Long>();
+
+	public static void main(String[] args) throws Exception {
+		BatchRunner runner = new BatchRunner();
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if (args[i].equals("-frames")) {
+					runner.frames = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-threads")) {
+					runner.threads = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-timeout")) {
+					runner.timeoutSeconds = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-out")) {
+					runner.out = new File(args[++i]);
+				} else if (runner.romDir == null && !args[i].startsWith("-")) {
+					runner.romDir = new File(args[i]);
+				} else {
+					throw new IllegalArgumentException(args[i]);
+				}
+			}
+		} catch (RuntimeException e) {
+			runner.romDir = null;
+		}
+		if (runner.romDir == null || !runner.romDir.isDirectory() || runner.frames <= 0 || runner.threads <= 0) {
+			System.err.println(USAGE);
+			System.exit(2);
+		}
+
+		List<Result> results = runner.run();
+		runner.writeReport(results);
+
+		int failed = 0;
+		long frameTotal = 0;
+		for (Result r : results) {
+			if (r.error.length() > 0)
+				failed++;
+			frameTotal += r.frames;
+		}
+		System.err.println(results.size() + " ROMs, " + failed + " failed, " + frameTotal
+				+ " frames. Report written to " + runner.out);
+	}
+
+	List<Result> run() throws InterruptedException, ExecutionException {
+		// Frames are hashed from the pixels, which only the advanced graphics chip renders
+		MeBoy.advancedGraphics = true;
+
+		File[] roms = listRoms();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		Thread watchdog = startWatchdog();
+		try {
+			List<Future<Result>> futures = new ArrayList<Future<Result>>();
+			for (int i = 0; i < roms.length; i++) {
+				final File rom = roms[i];
+				final int index = i;
+				futures.add(pool.submit(new Callable<Result>() {
+					public Result call() {
+						return runRom(rom, index);
+					}
+				}));
+			}
+
+			List<Result> results = new ArrayList<Result>();
+			for (Future<Result> f : futures) {
+				Result r = f.get();
+				System.err.println(r.rom + ": " + r.frames + " frames, " + format(r.fps()) + " fps"
+						+ (r.error.length() > 0 ? ", " + r.error : ""));
+				results.add(r);
+			}
+			return results;
+		} finally {
+			pool.shutdown();
+			watchdog.interrupt();
+		}
+	}
+
+	private File[] listRoms() {
+		File[] roms = romDir.listFiles(new FileFilter() {
+			public boolean accept(File f) {
+				String name = f.getName().toLowerCase();
+				for (String extension : ROM_EXTENSIONS) {
+					if (name.endsWith(extension))
+						return f.isFile();
+				}
+				return false;
+			}
+		});
+		Arrays.sort(roms);
+		return roms;
+	}
+
+	/** Stops cpus that run past their deadline, so one hanging ROM can't stall the batch. */
+	private Thread startWatchdog() {
+		Thread watchdog = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while (true) {
+						Thread.sleep(1000);
+						long now = System.currentTimeMillis();
+						for (Map.Entry<Dmgcpu, Long> e : deadlines.entrySet()) {
+							if (e.getValue().longValue() < now)
+								e.getKey().terminate = true;
+						}
+					}
+				} catch (InterruptedException e) {
+					// batch done
+				}
+			}
+		}, "BatchRunner watchdog");
+		watchdog.setDaemon(true);
+		watchdog.start();
+		return watchdog;
+	}
+
+	Result runRom(File file, int index) {
+		Result r = new Result();
+		r.rom = file.getName();
+		HeadlessVideo video = new HeadlessVideo();
+		Dmgcpu cpu = null;
+		long start = System.nanoTime();
+		try {
+			byte[] data = readFile(file);
+			r.size = data.length;
+
+			String cartName = "batch" + index; // unique, since the workers share the external ROM table
+			MeBoy.registerExternalRom(cartName, data);
+			cpu = new Dmgcpu(cartName, video, null, new EmulatedClock(0), new ResourceRomStorage(), null);
+			cpu.frameTimer = new FrameTimer();
+
+			deadlines.put(cpu, Long.valueOf(System.currentTimeMillis() + timeoutSeconds * 1000L));
+			start = System.nanoTime();
+			cpu.runFrames(frames);
+			if (video.frames < frames)
+				r.error = "timeout after " + timeoutSeconds + " s";
+		} catch (Throwable t) {
+			r.error = t.toString();
+		} finally {
+			if (cpu != null)
+				deadlines.remove(cpu);
+		}
+		r.nanos = System.nanoTime() - start;
+		r.frames = video.frames;
+		r.frameHash = hash(video.pixels);
+		if (cpu != null) {
+			r.bankSwitches = cpu.romBankSwitches;
+			r.bankMisses = cpu.romBankMisses;
+			FrameTimer timer = cpu.frameTimer;
+			if (timer != null && timer.getTotalFrames() > 0) {
+				r.cpuMs = timer.getTotal(FrameTimer.CPU) / (double) timer.getTotalFrames();
+				r.scanlineMs = timer.getTotal(FrameTimer.SCANLINE) / (double) timer.getTotalFrames();
+				r.convertMs = timer.getTotal(FrameTimer.CONVERT) / (double) timer.getTotalFrames();
+			}
+		}
+		return r;
+	}
+
+	static byte[] readFile(File file) throws IOException {
+		byte[] data = new byte[(int) file.length()];
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			in.readFully(data);
+		} finally {
+			in.close();
+		}
+		return data;
+	}
+
+	/** 64-bit FNV-1a of the rgb part of the pixels. */
+	static String hash(int[] pixels) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < pixels.length; i++) {
+			int p = pixels[i];
+			for (int shift = 16; shift >= 0; shift -= 8) {
+				h ^= (p >> shift) & 0xff;
+				h *= 0x100000001b3L;
+			}
+		}
+		String s = Long.toHexString(h);
+		while (s.length() < 16)
+			s = "0" + s;
+		return s;
+	}
+
+	void writeReport(List<Result> results) throws IOException {
+		PrintWriter w = new PrintWriter(new OutputStreamWriter(new FileOutputStream(out), "UTF-8"));
+		try {
+			if (out.getName().toLowerCase().endsWith(".json"))
+				writeJson(w, results);
+			else
+				writeCsv(w, results);
+		} finally {
+			w.close();
+		}
+		if (w.checkError())
+			throw new IOException("Could not write " + out);
+	}
+
+	private void writeCsv(PrintWriter w, List<Result> results) {
+		w.println("rom,size,frames,seconds,fps,frame_hash,bank_switches,bank_misses,cpu_ms,scanline_ms,convert_ms,error");
+		for (Result r : results) {
+			w.println(csv(r.rom) + "," + r.size + "," + r.frames + "," + format(r.seconds()) + ","
+					+ format(r.fps()) + "," + r.frameHash + "," + r.bankSwitches + "," + r.bankMisses
+					+ "," + format(r.cpuMs) + "," + format(r.scanlineMs) + "," + format(r.convertMs)
+					+ "," + csv(r.error));
+		}
+	}
+
+	private void writeJson(PrintWriter w, List<Result> results) {
+		w.println("{");
+		w.println("  \"frames\": " + frames + ",");
+		w.println("  \"threads\": " + threads + ",");
+		w.println("  \"roms\": [");
+		for (int i = 0; i < results.size(); i++) {
+			Result r = results.get(i);
+			w.print("    {\"rom\": " + json(r.rom) + ", \"size\": " + r.size + ", \"frames\": " + r.frames
+					+ ", \"seconds\": " + format(r.seconds()) + ", \"fps\": " + format(r.fps())
+					+ ", \"frame_hash\": " + json(r.frameHash) + ", \"bank_switches\": " + r.bankSwitches
+					+ ", \"bank_misses\": " + r.bankMisses + ", \"cpu_ms\": " + format(r.cpuMs)
+					+ ", \"scanline_ms\": " + format(r.scanlineMs) + ", \"convert_ms\": " + format(r.convertMs)
+					+ ", \"error\": " + (r.error.length() > 0 ? json(r.error) : "null") + "}");
+			w.println(i < results.size() - 1 ? "," : "");
+		}
+		w.println("  ]");
+		w.println("}");
+	}
+
+	static String format(double d) {
+		return String.format(Locale.ROOT, "%.3f", d);
+	}
+
+	static String csv(String s) {
+		if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0)
+			return s;
+		return '"' + s.replace("\"", "\"\"") + '"';
+	}
+
+	private static String json(String s) {
+		StringBuilder b = new StringBuilder("\"");
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\')
+				b.append('\\').append(c);
+			else if (c < 0x20)
+				b.append(String.format("\\u%04x", (int) c));
+			else
+				b.append(c);
+		}
+		return b.append('"').toString();
+	}
+}
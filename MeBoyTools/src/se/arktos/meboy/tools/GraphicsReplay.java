@@ -0,0 +1,250 @@
+/*
+
+MeBoy
+
+Copyright 2005-2009 Bjorn Carlin
+http://www.arktos.se/
+
+Based on JavaBoy, COPYRIGHT (C) 2001 Neil Millstone and The Victoria
+University of Manchester. Bluetooth support based on code contributed by
+Martin Neumann.
+
+This program is free software; you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the Free
+Software Foundation; either version 2 of the License, or (at your option)
+any later version.
+
+This program is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+more details.
+
+
+You should have received a copy of the GNU General Public License along with
+this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+Place - Suite 330, Boston, MA 02111-1307, USA.
+
+*/
+
+package se.arktos.meboy.tools;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.*;
+
+import meboy.Dmgcpu;
+import meboy.EmulatedClock;
+import meboy.GraphicsChip;
+import meboy.MeBoy;
+import meboy.VideoOutput;
+
+/**
+ * Feeds a GraphicsTrace into SimpleGraphicsChip or AdvancedGraphicsChip,
+ * without running the cpu, so that the cost of rendering can be measured on
+ * its own. The chip belongs to a cpu on an empty cart, which is only used
+ * for its registers, oam and io register handling.
+ * 
+ * Run as a program, it replays a trace in every chip, screen size and
+ * scaling mode and reports the time and the bytes allocated per frame.
+ */
+public class GraphicsReplay implements VideoOutput {
+	private static final String USAGE = "usage: GraphicsReplay trace [-repeat n] [-out report.csv]";
+
+	// unscaled, and the screens of some common phones
+	static final int[][] SIZES = {{160, 144}, {176, 208}, {240, 320}, {320, 240}};
+	static final int SCALING_MODES = 4;
+
+	private final GraphicsTrace trace;
+	private final Dmgcpu cpu;
+	private final GraphicsChip chip;
+	private int next; // index of the next event
+	int framesShown;
+
+	/**
+	 * Creates the chip for the trace. The scaling mode of AdvancedGraphicsChip
+	 * is read from MeBoy.scalingMode on every frame.
+	 */
+	public GraphicsReplay(GraphicsTrace trace, boolean advanced, int width, int height) {
+		this.trace = trace;
+
+		byte[] rom = new byte[0x8000];
+		rom[0x143] = (byte) (trace.gbcFeatures ? 0x80 : 0);
+		MeBoy.advancedGraphics = advanced;
+		cpu = new Dmgcpu("replay", this, null, new EmulatedClock(0), new MemoryRomStorage("replay", rom), null);
+		if (cpu.hasGbcFeatures() != trace.gbcFeatures)
+			throw new IllegalStateException("color mode differs from the trace (MeBoy.disableColor)");
+		chip = cpu.graphicsChip;
+		chip.setScale(width, height);
+		rewind();
+	}
+
+	public GraphicsChip getChip() {
+		return chip;
+	}
+
+	/** Restores the video state from the start of the trace. */
+	public void rewind() {
+		System.arraycopy(trace.registers, 0, cpu.registers, 0, 0x100);
+		System.arraycopy(trace.oam, 0, cpu.oam, 0, 0x100);
+		chip.unflatten(trace.videoState, 0);
+		chip.drawFrames(Integer.MAX_VALUE);
+		next = 0;
+	}
+
+	/** Replays the events of the next frame, starting over after the last one. */
+	public void frame() {
+		if (next == trace.eventCount)
+			rewind();
+
+		int[] events = trace.events;
+		while (true) {
+			int event = events[next++];
+			int addr = (event >> 8) & 0xffff;
+			int data = event & 0xff;
+			switch (event >>> 24) {
+				case GraphicsTrace.VRAM:
+					chip.addressWrite(addr, (byte) data);
+					break;
+				case GraphicsTrace.OAM:
+					cpu.oam[addr] = (byte) data;
+					break;
+				case GraphicsTrace.IO:
+					cpu.ioWrite(addr, data);
+					break;
+				case GraphicsTrace.SCANLINE:
+					cpu.registers[0x44] = (byte) data;
+					chip.notifyScanline(data);
+					break;
+				case GraphicsTrace.VBLANK:
+					cpu.registers[0x44] = (byte) 144;
+					chip.vBlank();
+					return;
+			}
+		}
+	}
+
+	public void showFrame(GraphicsChip chip) {
+		framesShown++;
+		chip.notifyRepainted();
+	}
+
+	static class Result {
+		String chip;
+		int scalingMode;
+		int width;
+		int height;
+		int frames;
+		double nanosPerFrame;
+		double bytesPerFrame = -1;
+		String error = "";
+	}
+
+	/** Replays the whole trace repeat times as warmup, then repeat times while measuring. */
+	static Result measure(GraphicsTrace trace, boolean advanced, int width, int height, int scalingMode, int repeat) {
+		Result r = new Result();
+		r.chip = advanced ? "advanced" : "simple";
+		r.scalingMode = scalingMode;
+		r.width = width;
+		r.height = height;
+		try {
+			MeBoy.scalingMode = scalingMode;
+			GraphicsReplay replay = new GraphicsReplay(trace, advanced, width, height);
+			r.width = replay.chip.scaledWidth; // after MeBoy.keepProportions
+			r.height = replay.chip.scaledHeight;
+			int frames = trace.frames * repeat;
+			for (int i = 0; i < frames; i++)
+				replay.frame();
+
+			long allocated = allocatedBytes();
+			long start = System.nanoTime();
+			for (int i = 0; i < frames; i++)
+				replay.frame();
+			long nanos = System.nanoTime() - start;
+			long allocatedAfter = allocatedBytes();
+
+			r.frames = frames;
+			r.nanosPerFrame = (double) nanos / frames;
+			if (allocated >= 0)
+				r.bytesPerFrame = (double) (allocatedAfter - allocated) / frames;
+		} catch (Throwable t) {
+			r.error = t.toString();
+		}
+		return r;
+	}
+
+	/** Bytes allocated by the current thread so far, or -1 if the JVM can't tell. */
+	private static long allocatedBytes() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) bean;
+			if (hotspot.isThreadAllocatedMemoryEnabled())
+				return hotspot.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	public static void main(String[] args) throws Exception {
+		File traceFile = null;
+		File out = new File("replay-report.csv");
+		int repeat = 5;
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if (args[i].equals("-repeat")) {
+					repeat = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-out")) {
+					out = new File(args[++i]);
+				} else if (traceFile == null && !args[i].startsWith("-")) {
+					traceFile = new File(args[i]);
+				} else {
+					throw new IllegalArgumentException(args[i]);
+				}
+			}
+		} catch (RuntimeException e) {
+			traceFile = null;
+		}
+		if (traceFile == null || !traceFile.isFile() || repeat <= 0) {
+			System.err.println(USAGE);
+			System.exit(2);
+		}
+
+		GraphicsTrace trace = GraphicsTrace.read(traceFile);
+		System.err.println(traceFile + ": " + trace.frames + " frames, " + (trace.gbcFeatures ? "color" : "gb"));
+
+		List<Result> results = new ArrayList<Result>();
+		for (int chip = 0; chip < 2; chip++) {
+			boolean advanced = chip == 0;
+			for (int[] size : SIZES) {
+				boolean scaled = size[0] != 160 || size[1] != 144;
+				// only the advanced chip has scaling modes
+				int modes = advanced && scaled ? SCALING_MODES : 1;
+				for (int mode = 0; mode < modes; mode++) {
+					Result r = measure(trace, advanced, size[0], size[1], mode, repeat);
+					System.err.println(r.chip + " " + r.width + "x" + r.height + " mode " + r.scalingMode + ": "
+							+ (r.error.length() > 0 ? r.error
+							: BatchRunner.format(r.nanosPerFrame) + " ns/frame, "
+							+ BatchRunner.format(r.bytesPerFrame) + " bytes/frame"));
+					results.add(r);
+				}
+			}
+		}
+		writeReport(out, results);
+		System.err.println("Report written to " + out);
+	}
+
+	static void writeReport(File out, List<Result> results) throws IOException {
+		PrintWriter w = new PrintWriter(new OutputStreamWriter(new FileOutputStream(out), "UTF-8"));
+		try {
+			w.println("chip,width,height,scaling_mode,frames,ns_per_frame,bytes_per_frame,error");
+			for (Result r : results) {
+				w.println(r.chip + "," + r.width + "," + r.height + "," + r.scalingMode + "," + r.frames + ","
+						+ BatchRunner.format(r.nanosPerFrame) + "," + BatchRunner.format(r.bytesPerFrame) + ","
+						+ BatchRunner.csv(r.error));
+			}
+		} finally {
+			w.close();
+		}
+		if (w.checkError())
+			throw new IOException("Could not write " + out);
+	}
+}
@@ -0,0 +1,237 @@
+/*
+
+MeBoy
+
+Copyright 2005-2009 Bjorn Carlin
+http://www.arktos.se/
+
+Based on JavaBoy, COPYRIGHT (C) 2001 Neil Millstone and The Victoria
+University of Manchester. Bluetooth support based on code contributed by
+Martin Neumann.
+
+This program is free software; you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the Free
+Software Foundation; either version 2 of the License, or (at your option)
+any later version.
+
+This program is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+more details.
+
+
+You should have received a copy of the GNU General Public License along with
+this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+Place - Suite 330, Boston, MA 02111-1307, USA.
+
+*/
+
+package se.arktos.meboy.tools;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import meboy.Dmgcpu;
+import meboy.EmulatedClock;
+import meboy.GraphicsRecorder;
+import meboy.MeBoy;
+
+/**
+ * A recorded graphics session: the video state of the cpu when recording
+ * started, followed by every video ram, oam and lcd register write, scanline
+ * and vblank until it stopped. GraphicsReplay feeds a trace into either
+ * graphics chip without running the cpu.
+ * 
+ * Events are packed in ints as kind << 24 | address << 8 | data. The trace
+ * always ends with a vblank.
+ */
+public class GraphicsTrace implements GraphicsRecorder {
+	static final int VRAM = 0;
+	static final int OAM = 1;
+	static final int IO = 2;
+	static final int SCANLINE = 3;
+	static final int VBLANK = 4;
+
+	private static final int MAGIC = 0x4d424754; // "MBGT"
+	private static final int VERSION = 1;
+	private static final String USAGE = "usage: GraphicsTrace rom trace [-skip frames] [-frames n]";
+
+	// the io registers read by the graphics chips, or handled by calling them
+	private static final boolean[] VIDEO_REGISTERS = new boolean[0x100];
+	static {
+		int[] video = {0x40, 0x42, 0x43, 0x47, 0x48, 0x49, 0x4a, 0x4b, 0x4f, 0x68, 0x69, 0x6a, 0x6b};
+		for (int num : video)
+			VIDEO_REGISTERS[num] = true;
+	}
+
+	final boolean gbcFeatures;
+	final byte[] registers;
+	final byte[] oam;
+	final byte[] videoState; // GraphicsChip.flatten
+
+	int[] events = new int[0x10000];
+	int eventCount;
+	int frames;
+
+	private final byte[] oamShadow; // oam as seen by the replay
+
+	private GraphicsTrace(boolean gbcFeatures, byte[] registers, byte[] oam, byte[] videoState) {
+		this.gbcFeatures = gbcFeatures;
+		this.registers = registers;
+		this.oam = oam;
+		this.videoState = videoState;
+		oamShadow = oam.clone();
+	}
+
+	/** Starts recording the cpu from its current state. */
+	public static GraphicsTrace attach(Dmgcpu cpu) {
+		byte[] videoState = new byte[2 * 0x2000 + 12 * 4 + 1 + 128];
+		int length = cpu.graphicsChip.flatten(videoState, 0);
+		GraphicsTrace trace = new GraphicsTrace(cpu.hasGbcFeatures(), cpu.registers.clone(), cpu.oam.clone(),
+				Arrays.copyOf(videoState, length));
+		cpu.graphicsRecorder = trace;
+		return trace;
+	}
+
+	/** Stops recording, dropping any events after the last vblank. */
+	public void detach(Dmgcpu cpu) {
+		if (cpu.graphicsRecorder == this)
+			cpu.graphicsRecorder = null;
+		while (eventCount > 0 && events[eventCount - 1] >>> 24 != VBLANK)
+			eventCount--;
+	}
+
+	public int getFrames() {
+		return frames;
+	}
+
+	public boolean isColor() {
+		return gbcFeatures;
+	}
+
+	public void vramWrite(int addr, int data) {
+		add(VRAM, addr, data);
+	}
+
+	public void oamWrite(int addr, int data) {
+		// oam dma copies all of oam every frame, but usually changes little of it
+		if ((oamShadow[addr] & 0xff) != data) {
+			oamShadow[addr] = (byte) data;
+			add(OAM, addr, data);
+		}
+	}
+
+	public void ioWrite(int num, int data) {
+		if (VIDEO_REGISTERS[num])
+			add(IO, num, data);
+	}
+
+	public void scanline(int line) {
+		add(SCANLINE, line, line);
+	}
+
+	public void vBlank() {
+		add(VBLANK, 0, 0);
+		frames++;
+	}
+
+	private void add(int kind, int addr, int data) {
+		if (eventCount == events.length)
+			events = Arrays.copyOf(events, events.length * 2);
+		events[eventCount++] = (kind << 24) | (addr << 8) | (data & 0xff);
+	}
+
+	public void write(File file) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new GZIPOutputStream(new FileOutputStream(file))));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeBoolean(gbcFeatures);
+			out.write(registers, 0, 0x100);
+			out.write(oam, 0, 0x100);
+			out.writeInt(videoState.length);
+			out.write(videoState);
+			out.writeInt(frames);
+			out.writeInt(eventCount);
+			for (int i = 0; i < eventCount; i++)
+				out.writeInt(events[i]);
+		} finally {
+			out.close();
+		}
+	}
+
+	public static GraphicsTrace read(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new GZIPInputStream(new FileInputStream(file))));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				throw new IOException(file + " is not a graphics trace");
+			boolean gbcFeatures = in.readBoolean();
+			byte[] registers = new byte[0x100];
+			in.readFully(registers);
+			byte[] oam = new byte[0x100];
+			in.readFully(oam);
+			byte[] videoState = new byte[in.readInt()];
+			in.readFully(videoState);
+
+			GraphicsTrace trace = new GraphicsTrace(gbcFeatures, registers, oam, videoState);
+			trace.frames = in.readInt();
+			trace.eventCount = in.readInt();
+			trace.events = new int[trace.eventCount];
+			for (int i = 0; i < trace.eventCount; i++)
+				trace.events[i] = in.readInt();
+			return trace;
+		} finally {
+			in.close();
+		}
+	}
+
+	/** Records frames of a ROM, after skipping its first frames (the boot logo, say). */
+	public static GraphicsTrace record(byte[] rom, int skip, int frames) {
+		MeBoy.advancedGraphics = true; // the recording doesn't depend on the chip
+		Dmgcpu cpu = new Dmgcpu("trace", null, null, new EmulatedClock(0), new MemoryRomStorage("trace", rom), null);
+		cpu.runFrames(skip);
+		GraphicsTrace trace = attach(cpu);
+		try {
+			cpu.runFrames(frames);
+		} finally {
+			trace.detach(cpu);
+		}
+		return trace;
+	}
+
+	public static void main(String[] args) throws Exception {
+		File rom = null;
+		File out = null;
+		int skip = 300;
+		int frames = 600;
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if (args[i].equals("-skip")) {
+					skip = Integer.parseInt(args[++i]);
+				} else if (args[i].equals("-frames")) {
+					frames = Integer.parseInt(args[++i]);
+				} else if (rom == null && !args[i].startsWith("-")) {
+					rom = new File(args[i]);
+				} else if (out == null && !args[i].startsWith("-")) {
+					out = new File(args[i]);
+				} else {
+					throw new IllegalArgumentException(args[i]);
+				}
+			}
+		} catch (RuntimeException e) {
+			out = null;
+		}
+		if (out == null || !rom.isFile() || skip < 0 || frames <= 0) {
+			System.err.println(USAGE);
+			System.exit(2);
+		}
+
+		GraphicsTrace trace = record(BatchRunner.readFile(rom), skip, frames);
+		trace.write(out);
+		System.err.println(trace.frames + " frames, " + trace.eventCount + " events written to " + out);
+	}
+}
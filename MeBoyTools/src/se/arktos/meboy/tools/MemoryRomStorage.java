@@ -0,0 +1,90 @@
+/*
+
+MeBoy
+
+Copyright 2005-2009 Bjorn Carlin
+http://www.arktos.se/
+
+Based on JavaBoy, COPYRIGHT (C) 2001 Neil Millstone and The Victoria
+University of Manchester. Bluetooth support based on code contributed by
+Martin Neumann.
+
+This program is free software; you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the Free
+Software Foundation; either version 2 of the License, or (at your option)
+any later version.
+
+This program is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+more details.
+
+
+You should have received a copy of the GNU General Public License along with
+this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+Place - Suite 330, Boston, MA 02111-1307, USA.
+
+*/
+
+package se.arktos.meboy.tools;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+import meboy.RomStorage;
+
+/**
+ * Serves a ROM image from memory the way bundled carts are stored in the
+ * MeBoy jar: one resource of 16 kB per bank named cartName/bankNumber, or,
+ * like jars built by older versions of MeBoyBuilder, split in files of 128 kB
+ * named cartName + fileNumber. Lets the desktop tools exercise the lazy bank
+ * loading path in Dmgcpu.
+ */
+public class MemoryRomStorage implements RomStorage {
+	private static final int BANK_SIZE = 0x4000;
+	private static final int FILE_SIZE = 0x20000;
+
+	private final String cartName;
+	private final byte[] rom;
+	private final boolean perBank;
+
+	public MemoryRomStorage(String cartName, byte[] rom) {
+		this(cartName, rom, true);
+	}
+
+	public MemoryRomStorage(String cartName, byte[] rom, boolean perBank) {
+		this.cartName = cartName;
+		this.rom = rom;
+		this.perBank = perBank;
+	}
+
+	public InputStream open(String name) {
+		int size = perBank ? BANK_SIZE : FILE_SIZE;
+		int index = index(name, size);
+		if (index < 0)
+			return null;
+		int offset = index * size;
+		return new ByteArrayInputStream(rom, offset, Math.min(size, rom.length - offset));
+	}
+
+	public long size(String name) {
+		int size = perBank ? BANK_SIZE : FILE_SIZE;
+		int index = index(name, size);
+		if (index < 0)
+			return -1;
+		return Math.min(size, rom.length - index * size);
+	}
+
+	/** The bank or file number in name, or -1 if there is no such resource */
+	private int index(String name, int size) {
+		String prefix = perBank ? cartName + "/" : cartName;
+		if (!name.startsWith(prefix))
+			return -1;
+		try {
+			int index = Integer.parseInt(name.substring(prefix.length()));
+			return (index >= 0 && index * size < rom.length) ? index : -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,297 @@
+/*
+
+MeBoy
+
+Copyright 2005-2009 Bjorn Carlin
+http://www.arktos.se/
+
+Based on JavaBoy, COPYRIGHT (C) 2001 Neil Millstone and The Victoria
+University of Manchester. Bluetooth support based on code contributed by
+Martin Neumann.
+
+This program is free software; you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the Free
+Software Foundation; either version 2 of the License, or (at your option)
+any later version.
+
+This program is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+more details.
+
+
+You should have received a copy of the GNU General Public License along with
+this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+Place - Suite 330, Boston, MA 02111-1307, USA.
+
+*/
+
+package se.arktos.meboy.tools;
+
+import java.io.*;
+import java.util.*;
+
+import meboy.Dmgcpu;
+import meboy.EmulatedClock;
+import meboy.HeadlessVideo;
+import meboy.MeBoy;
+
+/**
+ * Runs a fixed set of carts headless and checks them for correctness and
+ * speed. The frame at each check point is hashed and compared to the golden
+ * hashes (committed with the suite), and the emulated frames per second
+ * must not drop more than a tolerance below the baseline recorded earlier
+ * on the same machine. Exits with 1 if any check fails.
+ *
+ * Speed is measured after every cart has been run once untimed, so that
+ * the first cart does not pay for the JIT warmup of the others. Each cart
+ * is then timed SPEED_RUNS times for at least SPEED_MILLIS each, the runs
+ * taking turns between the carts, and the median run counts.
+ *
+ * The carts are generated by TestCarts, covering gb and gbc mode, MBC1,
+ * MBC3 and MBC5 bank switching and HDMA. ROMs from a directory can be added
+ * with -roms. A missing baseline is recorded by the first run;
+ * -update-golden and -update-baseline replace the stored values.
+ */
+public class RegressionSuite {
+	private static final String USAGE = "usage: RegressionSuite [-golden file] [-baseline file] [-roms dir] "
+			+ "[-tolerance percent] [-update-golden] [-update-baseline]";
+
+	static final int[] CHECK_FRAMES = {30, 120, 300};
+	static final int SPEED_MILLIS = 2000; // minimum length of a timed run
+	static final int WARMUP_MILLIS = 1000;
+	static final int SPEED_RUNS = 5; // the median run counts
+	static final int SPEED_CHUNK = 100; // frames between looks at the clock
+
+	File goldenFile = new File("regression/golden.properties");
+	File baselineFile = new File("build/regression-baseline.properties");
+	File romDir;
+	double tolerance = 10;
+	boolean updateGolden;
+	boolean updateBaseline;
+
+	private final Properties golden = new Properties();
+	private final Properties baseline = new Properties();
+	private final List<String> failures = new ArrayList<String>();
+
+	public static void main(String[] args) throws Exception {
+		RegressionSuite suite = new RegressionSuite();
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if (args[i].equals("-golden")) {
+					suite.goldenFile = new File(args[++i]);
+				} else if (args[i].equals("-baseline")) {
+					suite.baselineFile = new File(args[++i]);
+				} else if (args[i].equals("-roms")) {
+					suite.romDir = new File(args[++i]);
+				} else if (args[i].equals("-tolerance")) {
+					suite.tolerance = Double.parseDouble(args[++i]);
+				} else if (args[i].equals("-update-golden")) {
+					suite.updateGolden = true;
+				} else if (args[i].equals("-update-baseline")) {
+					suite.updateBaseline = true;
+				} else {
+					throw new IllegalArgumentException(args[i]);
+				}
+			}
+		} catch (RuntimeException e) {
+			System.err.println(USAGE);
+			System.exit(2);
+		}
+		if (suite.romDir != null && !suite.romDir.isDirectory()) {
+			System.err.println(USAGE);
+			System.exit(2);
+		}
+
+		boolean passed = suite.run();
+		System.exit(passed ? 0 : 1);
+	}
+
+	boolean run() throws IOException {
+		load(golden, goldenFile);
+		load(baseline, baselineFile);
+		boolean goldenChanged = false;
+		boolean baselineChanged = false;
+
+		// Frames are hashed from the pixels, which only the advanced graphics chip renders
+		MeBoy.advancedGraphics = true;
+
+		Map<String, byte[]> carts = new LinkedHashMap<String, byte[]>();
+		for (String name : TestCarts.NAMES)
+			carts.put(name, TestCarts.create(name));
+		if (romDir != null) {
+			File[] roms = romDir.listFiles();
+			Arrays.sort(roms);
+			for (File rom : roms) {
+				if (rom.isFile())
+					carts.put(rom.getName(), BatchRunner.readFile(rom));
+			}
+		}
+
+		Map<String, byte[]> timed = new LinkedHashMap<String, byte[]>();
+		for (Map.Entry<String, byte[]> cart : carts.entrySet()) {
+			String name = cart.getKey();
+			try {
+				goldenChanged |= checkFrames(name, cart.getValue());
+				timed.put(name, cart.getValue());
+			} catch (Throwable t) {
+				fail(name + ": " + t);
+			}
+		}
+		baselineChanged = checkSpeed(timed);
+
+		if (goldenChanged)
+			store(golden, goldenFile, "Golden frame hashes, see RegressionSuite");
+		if (baselineChanged)
+			store(baseline, baselineFile, "Emulated frames per second on this machine, see RegressionSuite");
+
+		System.err.println(carts.size() + " carts, " + failures.size() + " failures");
+		for (String failure : failures)
+			System.err.println("FAILED " + failure);
+		return failures.isEmpty();
+	}
+
+	/**
+	 * Compares the frame hashes at the check points. New hashes are only
+	 * copied to golden once the cart has run to the last check point, so a
+	 * cart that throws records nothing. Returns true if golden was updated.
+	 */
+	private boolean checkFrames(String name, byte[] rom) {
+		HeadlessVideo video = new HeadlessVideo();
+		Dmgcpu cpu = start(name, rom, video);
+		Properties recorded = new Properties();
+		for (int frame : CHECK_FRAMES) {
+			cpu.runFrames(frame - video.frames);
+			String key = name + "." + frame;
+			String hash = BatchRunner.hash(video.pixels);
+			String expected = golden.getProperty(key);
+			if (expected == null || updateGolden) {
+				if (!hash.equals(expected))
+					recorded.setProperty(key, hash);
+			} else if (!hash.equals(expected)) {
+				fail(name + " frame " + frame + ": hash " + hash + ", expected " + expected);
+			}
+		}
+
+		for (String key : recorded.stringPropertyNames()) {
+			golden.setProperty(key, recorded.getProperty(key));
+			System.err.println(key + ": " + recorded.getProperty(key) + " (recorded)");
+		}
+		return !recorded.isEmpty();
+	}
+
+	/**
+	 * Measures the carts and compares their median fps to the baseline.
+	 * Carts that throw are failed and left out. Returns true if the
+	 * baseline was updated.
+	 */
+	private boolean checkSpeed(Map<String, byte[]> carts) {
+		Map<String, double[]> runs = new LinkedHashMap<String, double[]>();
+		for (String name : carts.keySet())
+			runs.put(name, new double[SPEED_RUNS]);
+
+		// run -1 warms up every cart before any is timed
+		for (int run = -1; run < SPEED_RUNS; run++) {
+			for (Iterator<Map.Entry<String, byte[]>> it = carts.entrySet().iterator(); it.hasNext();) {
+				Map.Entry<String, byte[]> cart = it.next();
+				String name = cart.getKey();
+				try {
+					double fps = measure(name, cart.getValue(), run < 0 ? WARMUP_MILLIS : SPEED_MILLIS);
+					if (run >= 0)
+						runs.get(name)[run] = fps;
+				} catch (Throwable t) {
+					fail(name + ": " + t);
+					it.remove();
+					runs.remove(name);
+				}
+			}
+		}
+
+		boolean changed = false;
+		for (Map.Entry<String, double[]> cart : runs.entrySet()) {
+			double[] fps = cart.getValue();
+			Arrays.sort(fps);
+			changed |= compareSpeed(cart.getKey(), fps[SPEED_RUNS / 2]);
+		}
+		return changed;
+	}
+
+	/** Runs a cart from the start for at least the given time, and returns its emulated fps */
+	private static double measure(String name, byte[] rom, int millis) {
+		Dmgcpu cpu = start(name, rom, null);
+		int frames = 0;
+		long start = System.nanoTime();
+		long elapsed;
+		do {
+			cpu.runFrames(SPEED_CHUNK);
+			frames += SPEED_CHUNK;
+			elapsed = System.nanoTime() - start;
+		} while (elapsed < millis * 1000000L);
+		return frames / (elapsed / 1e9);
+	}
+
+	/** Compares the fps of a cart to the baseline. Returns true if the baseline was updated. */
+	private boolean compareSpeed(String name, double fps) {
+		String key = name + ".fps";
+		String recorded = baseline.getProperty(key);
+		if (recorded == null || updateBaseline) {
+			baseline.setProperty(key, BatchRunner.format(fps));
+			System.err.println(name + ": " + BatchRunner.format(fps) + " fps (recorded)");
+			return true;
+		}
+
+		double expected = Double.parseDouble(recorded);
+		double change = (fps - expected) * 100 / expected;
+		System.err.println(name + ": " + BatchRunner.format(fps) + " fps, " + BatchRunner.format(change)
+				+ "% against the baseline");
+		if (change < -tolerance)
+			fail(name + ": " + BatchRunner.format(fps) + " fps, more than " + BatchRunner.format(tolerance)
+					+ "% below the baseline of " + recorded);
+		return false;
+	}
+
+	private static Dmgcpu start(String name, byte[] rom, HeadlessVideo video) {
+		return new Dmgcpu(name, video, null, new EmulatedClock(0), new MemoryRomStorage(name, rom), null);
+	}
+
+	private void fail(String message) {
+		failures.add(message);
+	}
+
+	private static void load(Properties p, File file) throws IOException {
+		if (!file.isFile())
+			return;
+		InputStream in = new FileInputStream(file);
+		try {
+			p.load(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void store(Properties p, File file, String comment) throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		p.store(buffer, null);
+		// sorted and without the date, so that the committed golden file diffs well
+		List<String> lines = new ArrayList<String>();
+		for (String line : buffer.toString("ISO-8859-1").split("\\r?\\n")) {
+			if (!line.startsWith("#") && line.length() > 0)
+				lines.add(line);
+		}
+		Collections.sort(lines);
+
+		File dir = file.getAbsoluteFile().getParentFile();
+		if (dir != null)
+			dir.mkdirs();
+		PrintWriter w = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "ISO-8859-1"));
+		try {
+			w.println("# " + comment);
+			for (String line : lines)
+				w.println(line);
+		} finally {
+			w.close();
+		}
+		if (w.checkError())
+			throw new IOException("Could not write " + file);
+	}
+}
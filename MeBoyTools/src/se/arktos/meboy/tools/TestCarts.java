@@ -0,0 +1,262 @@
+/*
+
+MeBoy
+
+Copyright 2005-2009 Bjorn Carlin
+http://www.arktos.se/
+
+Based on JavaBoy, COPYRIGHT (C) 2001 Neil Millstone and The Victoria
+University of Manchester. Bluetooth support based on code contributed by
+Martin Neumann.
+
+This program is free software; you can redistribute it and/or modify it
+under the terms of the GNU General Public License as published by the Free
+Software Foundation; either version 2 of the License, or (at your option)
+any later version.
+
+This program is distributed in the hope that it will be useful, but WITHOUT
+ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+FITNESS FOR A PARTICULAR PURPOSE. See the GNU General Public License for
+more details.
+
+
+You should have received a copy of the GNU General Public License along with
+this program; if not, write to the Free Software Foundation, Inc., 59 Temple
+Place - Suite 330, Boston, MA 02111-1307, USA.
+
+*/
+
+package se.arktos.meboy.tools;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Generates small test carts for the regression suite, so that it needs no
+ * ROM files. Every cart draws a scrolling background of tiles copied from
+ * its ROM banks, with 40 moving sprites. On each vblank it switches ROM bank
+ * through its MBC and copies a tile from the new bank to video ram, so a
+ * broken bank switch, tile cache or sprite shows up in the frame hash.
+ * Color carts also set gbc palettes and tile attributes, and copy with
+ * general purpose and hblank HDMA instead of the cpu.
+ */
+public final class TestCarts {
+	public static final int MBC1 = 0x01;
+	public static final int MBC3 = 0x11;
+	public static final int MBC5 = 0x19;
+
+	static final String[] NAMES = {"dmg-mbc1", "dmg-mbc3", "dmg-mbc5", "cgb-mbc1", "cgb-mbc3", "cgb-mbc5"};
+
+	private static final int BANKS = 64;
+	private static final int MAIN = 0x0150;
+	private static final int VBLANK_HANDLER = 0x0400;
+	private static final int FRAME = 0x80; // frame counter in hram
+	private static final int SPRITES = 0xc1; // sprite table at c100, copied by oam dma
+
+	private TestCarts() {
+	}
+
+	/** Returns the cart with the given name from NAMES. */
+	public static byte[] create(String name) {
+		boolean color = name.startsWith("cgb-");
+		if (name.endsWith("-mbc1"))
+			return create(color, MBC1);
+		if (name.endsWith("-mbc3"))
+			return create(color, MBC3);
+		if (name.endsWith("-mbc5"))
+			return create(color, MBC5);
+		throw new IllegalArgumentException(name);
+	}
+
+	public static byte[] create(boolean color, int cartType) {
+		byte[] rom = new byte[BANKS * 0x4000];
+		for (int bank = 1; bank < BANKS; bank++) {
+			for (int i = 0; i < 0x4000; i++)
+				rom[bank * 0x4000 + i] = (byte) ((i * (bank + 1)) ^ (bank << 3) ^ (i >> 5));
+		}
+
+		Asm a = new Asm(rom, 0x0040);
+		a.emit(0xc3).word(VBLANK_HANDLER); // JP handler
+		a.org(0x0100);
+		a.emit(0x00, 0xc3).word(MAIN); // NOP; JP main
+		rom[0x143] = (byte) (color ? 0x80 : 0x00);
+		rom[0x147] = (byte) cartType;
+		rom[0x148] = 0x05; // 1 MB
+		rom[0x149] = 0x00;
+
+		a.org(MAIN);
+		a.emit(0xf3); // DI
+		a.emit(0x31).word(0xdffe); // LD SP, dffe
+		a.emit(0xaf, 0xe0, 0x40); // XOR A; LDH (40), A: lcd off
+		a.emit(0xe0, FRAME); // LDH (frame), A
+
+		// tiles 0-63 from the start of banks 1-4
+		a.emit(0x11).word(0x8000); // LD DE, 8000
+		a.emit(0x06, 0x01); // LD B, 1
+		a.label("bank");
+		a.emit(0x78, 0xea).word(0x2000); // LD A, B; LD (2000), A
+		if (color) {
+			// general purpose hdma of 256 bytes from 4000 to DE
+			a.emit(0x3e, 0x40, 0xe0, 0x51); // LD A, 40; LDH (51), A
+			a.emit(0xaf, 0xe0, 0x52); // XOR A; LDH (52), A
+			a.emit(0x7a, 0xe0, 0x53); // LD A, D; LDH (53), A
+			a.emit(0x7b, 0xe0, 0x54); // LD A, E; LDH (54), A
+			a.emit(0x3e, 0x0f, 0xe0, 0x55); // LD A, 0f; LDH (55), A: 16 blocks
+			a.emit(0x14); // INC D
+		} else {
+			a.emit(0x21).word(0x4000); // LD HL, 4000
+			a.emit(0x0e, 0x00); // LD C, 0: 256 bytes
+			a.label("copy");
+			a.emit(0x2a, 0x12, 0x13, 0x0d); // LD A, (HL+); LD (DE), A; INC DE; DEC C
+			a.jrnz("copy");
+		}
+		a.emit(0x04, 0x78, 0xfe, 0x05); // INC B; LD A, B; CP 5
+		a.jrnz("bank");
+
+		// background map 9800-9bff: tile (L & 3f)
+		a.emit(0x21).word(0x9800); // LD HL, 9800
+		a.label("map");
+		a.emit(0x7d, 0xe6, 0x3f, 0x22); // LD A, L; AND 3f; LD (HL+), A
+		a.emit(0x7c, 0xfe, 0x9c); // LD A, H; CP 9c
+		a.jrnz("map");
+
+		if (color) {
+			// attributes in vram bank 1: palette (L >> 2) & 7, x flip for odd rows
+			a.emit(0x3e, 0x01, 0xe0, 0x4f); // LD A, 1; LDH (4f), A
+			a.emit(0x21).word(0x9800); // LD HL, 9800
+			a.label("attr");
+			a.emit(0x7d, 0x0f, 0x0f, 0xe6, 0x07); // LD A, L; RRCA; RRCA; AND 07
+			a.emit(0xcb, 0x6d, 0x28, 0x02, 0xf6, 0x20); // BIT 5, L; JR Z, +2; OR 20
+			a.emit(0x22, 0x7c, 0xfe, 0x9c); // LD (HL+), A; LD A, H; CP 9c
+			a.jrnz("attr");
+			a.emit(0xaf, 0xe0, 0x4f); // XOR A; LDH (4f), A
+
+			// background and sprite palettes, 64 bytes each with auto increment
+			for (int index = 0x68; index <= 0x6a; index += 2) {
+				a.emit(0x3e, 0x80, 0xe0, index); // LD A, 80; LDH (index), A
+				a.emit(0x0e, 0x40); // LD C, 40
+				a.label("pal" + index);
+				a.emit(0x79, 0x07, 0x07, 0xa9, 0xee, index); // LD A, C; RLCA; RLCA; XOR C; XOR index
+				a.emit(0xe0, index + 1, 0x0d); // LDH (index + 1), A; DEC C
+				a.jrnz("pal" + index);
+			}
+		} else {
+			a.emit(0x3e, 0xe4, 0xe0, 0x47); // LD A, e4; LDH (47), A
+			a.emit(0x3e, 0xd2, 0xe0, 0x48); // LD A, d2; LDH (48), A
+			a.emit(0x3e, 0x1b, 0xe0, 0x49); // LD A, 1b; LDH (49), A
+		}
+
+		// sprite table: y = 16 + 3i, x = 8 + 4i, tile i, attributes i & 37
+		a.emit(0x21).word(SPRITES << 8); // LD HL, c100
+		a.emit(0x06, 0x00); // LD B, 0
+		a.label("sprite");
+		a.emit(0x78, 0x87, 0x80, 0xc6, 0x10, 0x22); // LD A, B; ADD A; ADD B; ADD 10; LD (HL+), A
+		a.emit(0x78, 0x87, 0x87, 0xc6, 0x08, 0x22); // LD A, B; ADD A; ADD A; ADD 08; LD (HL+), A
+		a.emit(0x78, 0x22); // LD A, B; LD (HL+), A
+		a.emit(0x78, 0xe6, 0x37, 0x22); // LD A, B; AND 37; LD (HL+), A
+		a.emit(0x04, 0x78, 0xfe, 0x28); // INC B; LD A, B; CP 40
+		a.jrnz("sprite");
+		a.emit(0x3e, SPRITES, 0xe0, 0x46); // LD A, c1; LDH (46), A: oam dma
+
+		a.emit(0x3e, 0x93, 0xe0, 0x40); // LD A, 93; LDH (40), A: lcd, sprites and background on
+		a.emit(0x3e, 0x01, 0xe0, 0xff); // LD A, 1; LDH (ff), A: vblank interrupt
+		a.emit(0xfb); // EI
+		a.label("idle");
+		a.emit(0x76, 0x00); // HALT; NOP
+		a.jr("idle");
+
+		a.org(VBLANK_HANDLER);
+		a.emit(0xf5, 0xc5, 0xd5, 0xe5); // PUSH AF, BC, DE, HL
+		a.emit(0xf0, FRAME, 0x3c, 0xe0, FRAME); // LDH A, (frame); INC A; LDH (frame), A
+		a.emit(0xe0, 0x43); // LDH (43), A: SCX = frame
+		a.emit(0xcb, 0x3f, 0xe0, 0x42); // SRL A; LDH (42), A: SCY = frame / 2
+
+		// switch rom bank
+		if (cartType == MBC1) {
+			a.emit(0xf0, FRAME, 0xe6, 0x1f, 0xea).word(0x2000); // LDH A, (frame); AND 1f; LD (2000), A
+			a.emit(0xf0, FRAME, 0xcb, 0x37, 0x0f, 0xe6, 0x01, 0xea).word(0x4000); // SWAP A; RRCA; AND 1; LD (4000), A
+		} else {
+			a.emit(0xf0, FRAME, 0xe6, 0x3f, 0xea).word(0x2000); // LDH A, (frame); AND 3f; LD (2000), A
+			if (cartType == MBC5)
+				a.emit(0xaf, 0xea).word(0x3000); // XOR A; LD (3000), A: high bit of the bank
+		}
+
+		// DE = 8000 + (frame & 3f) * 16, the tile to replace
+		a.emit(0xf0, FRAME, 0xe6, 0x0f, 0xcb, 0x37, 0x5f); // LDH A, (frame); AND 0f; SWAP A; LD E, A
+		a.emit(0xf0, FRAME, 0xe6, 0x30, 0xcb, 0x37, 0xc6, 0x80, 0x57); // AND 30; SWAP A; ADD 80; LD D, A
+		if (color) {
+			// general purpose hdma of one tile from 4100, then hblank hdma of one tile from 4200
+			// to the tile 32 further on
+			a.emit(0x3e, 0x41, 0xe0, 0x51, 0xaf, 0xe0, 0x52); // LD A, 41; LDH (51), A; XOR A; LDH (52), A
+			a.emit(0x7a, 0xe0, 0x53, 0x7b, 0xe0, 0x54); // LD A, D; LDH (53), A; LD A, E; LDH (54), A
+			a.emit(0xaf, 0xe0, 0x55); // XOR A; LDH (55), A
+			a.emit(0x3e, 0x42, 0xe0, 0x51, 0xaf, 0xe0, 0x52); // LD A, 42; LDH (51), A; XOR A; LDH (52), A
+			a.emit(0x7a, 0xee, 0x02, 0xe0, 0x53); // LD A, D; XOR 02; LDH (53), A
+			a.emit(0x7b, 0xe0, 0x54); // LD A, E; LDH (54), A
+			a.emit(0x3e, 0x80, 0xe0, 0x55); // LD A, 80; LDH (55), A
+		} else {
+			a.emit(0x21).word(0x4100); // LD HL, 4100
+			a.emit(0x0e, 0x10); // LD C, 10
+			a.label("tile");
+			a.emit(0x2a, 0x12, 0x13, 0x0d); // LD A, (HL+); LD (DE), A; INC DE; DEC C
+			a.jrnz("tile");
+		}
+
+		// move the sprites right, at speeds 1-4
+		a.emit(0x21).word((SPRITES << 8) + 1); // LD HL, c101
+		a.emit(0x06, 0x28); // LD B, 40
+		a.label("move");
+		a.emit(0x78, 0xe6, 0x03, 0x3c, 0x86, 0x77); // LD A, B; AND 3; INC A; ADD (HL); LD (HL), A
+		a.emit(0x7d, 0xc6, 0x04, 0x6f, 0x05); // LD A, L; ADD 4; LD L, A; DEC B
+		a.jrnz("move");
+		a.emit(0x3e, SPRITES, 0xe0, 0x46); // LD A, c1; LDH (46), A
+
+		a.emit(0xe1, 0xd1, 0xc1, 0xf1, 0xd9); // POP HL, DE, BC, AF; RETI
+		return rom;
+	}
+
+	/** Just enough of an assembler to place code and resolve relative jumps backwards. */
+	private static final class Asm {
+		private final byte[] rom;
+		private int pc;
+		private final Map<String, Integer> labels = new HashMap<String, Integer>();
+
+		Asm(byte[] rom, int pc) {
+			this.rom = rom;
+			this.pc = pc;
+		}
+
+		void org(int address) {
+			pc = address;
+		}
+
+		Asm emit(int... bytes) {
+			for (int b : bytes)
+				rom[pc++] = (byte) b;
+			return this;
+		}
+
+		Asm word(int word) {
+			return emit(word & 0xff, word >> 8);
+		}
+
+		void label(String name) {
+			labels.put(name, Integer.valueOf(pc));
+		}
+
+		void jr(String label) {
+			jump(0x18, label);
+		}
+
+		void jrnz(String label) {
+			jump(0x20, label);
+		}
+
+		private void jump(int opcode, String label) {
+			int offset = labels.get(label).intValue() - (pc + 2);
+			if (offset < -128)
+				throw new IllegalStateException("jump too far: " + label);
+			emit(opcode, offset);
+		}
+	}
+}